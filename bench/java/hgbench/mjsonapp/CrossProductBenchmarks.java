@@ -0,0 +1,74 @@
+package hgbench.mjsonapp;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mjson.hgdb.querying.CrossProductResultSet;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.handle.UUIDPersistentHandle;
+import org.hypergraphdb.query.impl.HandleArrayResultSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>
+ * Iteration over the {@link CrossProductResultSet} of in-memory result sets, isolating
+ * the cost of tuple enumeration from storage access.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CrossProductBenchmarks
+{
+	@Param({"2", "3"})
+	public int components;
+
+	@Param({"10", "100"})
+	public int size;
+
+	HGHandle [][] inputs;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		inputs = new HGHandle[components][size];
+		for (int i = 0; i < components; i++)
+			for (int j = 0; j < size; j++)
+				inputs[i][j] = UUIDPersistentHandle.makeHandle();
+	}
+
+	@Benchmark
+	public int iterate(Blackhole bh)
+	{
+		HandleArrayResultSet [] results = new HandleArrayResultSet[components];
+		for (int i = 0; i < components; i++)
+			results[i] = new HandleArrayResultSet(inputs[i]);
+		int count = 0;
+		try (CrossProductResultSet<HGHandle> rs = new CrossProductResultSet<HGHandle>(results))
+		{
+			while (rs.hasNext())
+			{
+				List<HGHandle> tuple = rs.next();
+				bh.consume(tuple);
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,139 @@
+package hgbench.mjsonapp;
+
+import java.util.List;
+import java.util.Random;
+
+import mjson.Json;
+
+/**
+ * <p>
+ * Generates synthetic JSON documents of a few representative shapes. Documents are
+ * produced from a seeded random generator so that runs are reproducible. Values are
+ * drawn from small vocabularies so that, as in real data, many of them repeat and get
+ * shared in storage.
+ * </p>
+ */
+public class JsonDocuments
+{
+	public enum Shape
+	{
+		/** A dozen primitive properties. */
+		FLAT,
+		/** Objects nested a few levels deep. */
+		NESTED,
+		/** Arrays of primitives and of small objects. */
+		ARRAYS,
+		/** Entities referring to other entities. */
+		ENTITIES
+	}
+
+	static final String [] CITIES = new String[50];
+	static final String [] WORDS = new String[200];
+	static
+	{
+		for (int i = 0; i < CITIES.length; i++)
+			CITIES[i] = "city" + i;
+		for (int i = 0; i < WORDS.length; i++)
+			WORDS[i] = "word" + i;
+	}
+
+	private Random random;
+	private int count = 0;
+
+	public JsonDocuments(long seed)
+	{
+		this.random = new Random(seed);
+	}
+
+	public static String city(int i)
+	{
+		return CITIES[i % CITIES.length];
+	}
+
+	public Json flat()
+	{
+		int id = count++;
+		return Json.object("id", id,
+						   "name", "user" + id,
+						   "email", "user" + id + "@example.com",
+						   "age", 18 + random.nextInt(62),
+						   "active", random.nextBoolean(),
+						   "score", random.nextDouble() * 100,
+						   "city", CITIES[random.nextInt(CITIES.length)],
+						   "country", "country" + random.nextInt(10),
+						   "status", random.nextInt(5) == 0 ? "inactive" : "active",
+						   "level", random.nextInt(10),
+						   "registered", "2017-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10),
+						   "verified", random.nextInt(3) > 0);
+	}
+
+	public Json nested(int depth)
+	{
+		int id = count++;
+		Json leaf = Json.object("value", random.nextInt(100), "label", WORDS[random.nextInt(WORDS.length)]);
+		for (int i = 0; i < depth; i++)
+			leaf = Json.object("level" + i, leaf, "weight", random.nextInt(10));
+		return Json.object("id", id,
+						   "address", Json.object("city", CITIES[random.nextInt(CITIES.length)],
+								   				  "zip", 10000 + random.nextInt(1000),
+								   				  "geo", Json.object("lat", random.nextInt(180) - 90,
+								   						  			 "lng", random.nextInt(360) - 180)),
+						   "tree", leaf);
+	}
+
+	public Json arrays()
+	{
+		int id = count++;
+		Json tags = Json.array(), readings = Json.array(), points = Json.array();
+		for (int i = 0; i < 10; i++)
+			tags.add(WORDS[random.nextInt(WORDS.length)]);
+		for (int i = 0; i < 20; i++)
+			readings.add(random.nextInt(1000));
+		for (int i = 0; i < 5; i++)
+			points.add(Json.object("x", random.nextInt(100), "y", random.nextInt(100)));
+		return Json.object("id", id, "tags", tags, "readings", readings, "points", points);
+	}
+
+	public Json customer()
+	{
+		int id = count++;
+		return Json.object("entity", "customer",
+						   "customerId", id,
+						   "name", "customer" + id,
+						   "city", CITIES[random.nextInt(CITIES.length)]);
+	}
+
+	/**
+	 * <p>Return an order entity referring to one of the passed in (stored) customer entities.</p>
+	 */
+	public Json order(List<Json> customers)
+	{
+		int id = count++;
+		Json lines = Json.array();
+		for (int i = random.nextInt(4); i >= 0; i--)
+			lines.add(Json.object("product", WORDS[random.nextInt(WORDS.length)], "quantity", 1 + random.nextInt(5)));
+		return Json.object("entity", "order",
+						   "orderId", id,
+						   "customer", customers.get(random.nextInt(customers.size())),
+						   "total", random.nextInt(100000) / 100.0,
+						   "lines", lines);
+	}
+
+	/**
+	 * <p>
+	 * Return the next document of the given shape. Documents of the {@link Shape#ENTITIES}
+	 * shape refer to one of the <code>customers</code>, which may not be empty for that shape.
+	 * </p>
+	 */
+	public Json next(Shape shape, List<Json> customers)
+	{
+		switch (shape)
+		{
+			case FLAT: return flat();
+			case NESTED: return nested(4);
+			case ARRAYS: return arrays();
+			case ENTITIES: return order(customers);
+			default: throw new IllegalArgumentException(shape.toString());
+		}
+	}
+}
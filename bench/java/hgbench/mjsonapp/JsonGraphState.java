@@ -0,0 +1,103 @@
+package hgbench.mjsonapp;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import mjson.Json;
+import mjson.hgdb.HyperNodeJson;
+import mjson.hgdb.JsonTypeSchema;
+
+import org.hypergraphdb.HGConfiguration;
+import org.hypergraphdb.HGEnvironment;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.util.HGUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * <p>
+ * A JSON database in a fresh temporary directory, pre-loaded with <code>documents</code>
+ * generated documents of the given <code>shape</code>. The database is deleted at the end
+ * of the trial.
+ * </p>
+ */
+@State(Scope.Benchmark)
+public class JsonGraphState
+{
+	@Param({"FLAT", "NESTED", "ARRAYS", "ENTITIES"})
+	public JsonDocuments.Shape shape;
+
+	@Param({"10000"})
+	public int documents;
+
+	public HyperGraph graph;
+	public HyperNodeJson node;
+	public JsonDocuments generator = new JsonDocuments(42);
+	public List<Json> customers = new ArrayList<Json>();
+	public List<HGHandle> customerHandles = new ArrayList<HGHandle>();
+	public List<HGHandle> handles = new ArrayList<HGHandle>();
+
+	public static HyperGraph openGraph() throws IOException
+	{
+		HGConfiguration config = new HGConfiguration();
+		config.getTypeConfiguration().addSchema(new JsonTypeSchema());
+		String location = Files.createTempDirectory("hgbench").toFile().getAbsolutePath();
+		return HGEnvironment.get(location, config);
+	}
+
+	public static void dropGraph(HyperGraph graph)
+	{
+		String location = graph.getLocation();
+		graph.close();
+		HGUtils.dropHyperGraphInstance(location);
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		graph = openGraph();
+		node = new HyperNodeJson(graph);
+		for (int i = 0; i < 100; i++)
+		{
+			HGHandle h = node.add(generator.customer());
+			customerHandles.add(h);
+			customers.add((Json)node.get(h));
+		}
+		for (int i = 0; i < documents; i++)
+			handles.add(node.add(next()));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		dropGraph(graph);
+	}
+
+	public Json next()
+	{
+		return generator.next(shape, customers);
+	}
+
+	/**
+	 * <p>The random generator of the calling thread, so that threads measured together don't
+	 * contend on a shared one.</p>
+	 */
+	public Random random()
+	{
+		return ThreadLocalRandom.current();
+	}
+
+	public HGHandle randomHandle()
+	{
+		return handles.get(random().nextInt(handles.size()));
+	}
+}
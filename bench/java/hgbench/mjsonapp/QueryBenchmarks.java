@@ -0,0 +1,118 @@
+package hgbench.mjsonapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGSearchResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>
+ * Read path benchmarks: getting documents by handle, pattern queries (both exact
+ * and not) and property lookups. Result sets are always fully consumed.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryBenchmarks
+{
+	/**
+	 * Copies of some stored documents, to be used as exact patterns.
+	 */
+	@State(Scope.Benchmark)
+	public static class Stored
+	{
+		List<Json> documents = new ArrayList<Json>();
+
+		@Setup(Level.Trial)
+		public void setUp(JsonGraphState state)
+		{
+			for (int i = 0; i < 100; i++)
+			{
+				Json j = state.node.get(state.randomHandle());
+				documents.add(j.dup().delAt(state.node.getEntityInterface().entityHandleProperty()));
+			}
+		}
+	}
+
+	static int drain(HGSearchResult<HGHandle> rs, Blackhole bh)
+	{
+		int count = 0;
+		try
+		{
+			while (rs.hasNext())
+			{
+				bh.consume(rs.next());
+				count++;
+			}
+		}
+		finally
+		{
+			rs.close();
+		}
+		return count;
+	}
+
+	/**
+	 * A pattern matching a small part of the documents of the state's shape.
+	 */
+	static Json pattern(JsonGraphState state)
+	{
+		String city = JsonDocuments.city(state.random().nextInt(1000));
+		switch (state.shape)
+		{
+			case FLAT: return Json.object("city", city, "status", "active");
+			case NESTED: return Json.object("address", Json.object("city", city));
+			case ARRAYS: return Json.object("id", state.random().nextInt(state.documents));
+			default: return Json.object("entity", "order", "orderId", 100 + state.random().nextInt(state.documents));
+		}
+	}
+
+	@Benchmark
+	public Json get(JsonGraphState state)
+	{
+		return state.node.get(state.randomHandle());
+	}
+
+	@Benchmark
+	public Json getLazy(JsonGraphState state)
+	{
+		return state.node.getLazy(state.randomHandle());
+	}
+
+	@Benchmark
+	public int find(JsonGraphState state, Blackhole bh)
+	{
+		return drain(state.node.find(pattern(state), false), bh);
+	}
+
+	@Benchmark
+	public int findExact(JsonGraphState state, Stored stored, Blackhole bh)
+	{
+		return drain(state.node.find(stored.documents.get(state.random().nextInt(stored.documents.size())), true), bh);
+	}
+
+	@Benchmark
+	public int findPropertyPattern(JsonGraphState state, Blackhole bh)
+	{
+		return drain(state.node.findPropertyPattern("city", JsonDocuments.city(state.random().nextInt(1000))), bh);
+	}
+}
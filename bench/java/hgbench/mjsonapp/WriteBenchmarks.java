@@ -0,0 +1,56 @@
+package hgbench.mjsonapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import mjson.Json;
+import mjson.hgdb.JsonTypeSchema;
+
+import org.hypergraphdb.HGHandle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <p>
+ * Write path benchmarks: adding single documents, bulk loading and replacing entities.
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WriteBenchmarks
+{
+	@Benchmark
+	public HGHandle add(JsonGraphState state)
+	{
+		return state.node.add(state.next());
+	}
+
+	/**
+	 * Bulk load 100 documents, the result is per batch.
+	 */
+	@Benchmark
+	public Json addAll(JsonGraphState state)
+	{
+		List<Json> batch = new ArrayList<Json>(100);
+		for (int i = 0; i < 100; i++)
+			batch.add(state.next());
+		return state.node.addAll(batch);
+	}
+
+	@Benchmark
+	public boolean replace(JsonGraphState state)
+	{
+		int i = state.random().nextInt(state.customerHandles.size());
+		Json customer = state.customers.get(i).dup().set("city", JsonDocuments.city(state.random().nextInt(1000)));
+		return state.node.replace(state.customerHandles.get(i), customer, JsonTypeSchema.objectTypeHandle);
+	}
+}
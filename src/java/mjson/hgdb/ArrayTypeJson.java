@@ -4,7 +4,6 @@ import mjson.Json;
 
 import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.HGPersistentHandle;
-import org.hypergraphdb.HGValueLink;
 import org.hypergraphdb.IncidenceSetRef;
 import org.hypergraphdb.LazyRef;
 import org.hypergraphdb.type.HGAtomTypeBase;
@@ -23,22 +22,11 @@ public class ArrayTypeJson extends HGAtomTypeBase
                        IncidenceSetRef incidenceSet)
     {
         HGHandle [] targets = targetSet.deref();
+        if (node.isLazyMaterialization())
+        	return new LazyArrayJson(node, targets);
         Json A = Json.array();
         for (int i = 0; i < targets.length; i++)
-        {
-            Object x = graph.get(targets[i]);
-            if (x instanceof HGValueLink)
-            {
-                Json value = (Json)((HGValueLink)x).getValue();
-                if (value.isObject() && node.getEntityInterface().isEntity(value))
-                	value = node.getEntityInterface().createEntityReference(node, targets[i]);
-//                if (value.isObject())
-//                    value.set("hghandle", targets[i].getPersistent().toString());
-                A.add(value);
-            }
-            else
-                A.add(x);
-        }
+            A.add(node.nestedValue(targets[i], false));
         return A;
     }
 
@@ -0,0 +1,96 @@
+package mjson.hgdb;
+
+import java.util.Comparator;
+
+import mjson.Json;
+
+import org.hypergraphdb.type.javaprimitive.PrimitiveTypeBase;
+
+/**
+ * <p>
+ * The type of nested JSON objects and arrays stored as a single atom in the binary encoding
+ * of {@link JsonCodec}, instead of as links to their properties and elements. Equal values have
+ * equal encodings so, like other primitives, they are stored once and found by value. See
+ * {@link HyperNodeJson#setCompactValues(int, int)}.
+ * </p>
+ */
+public class BlobTypeJson extends PrimitiveTypeBase<Json>
+{
+	public static final String INDEX_NAME = "hg_json_blob_value_index";
+
+	private static final Comparator<byte[]> comparator = new BytesComparator();
+
+	/**
+	 * The value about to be stored or looked up by the current thread with its encoding, so
+	 * it's not encoded again. See {@link #prepare(Json, byte[])}.
+	 */
+	private static final ThreadLocal<Object[]> prepared = new ThreadLocal<Object[]>();
+
+	/**
+	 * Make the current thread reuse the <code>encoding</code> of <code>value</code>, as returned by
+	 * <code>JsonCodec.encode(value, 0)</code>, when that same instance is written next. The caller
+	 * must {@link #release()} it once the value is stored or found.
+	 */
+	static void prepare(Json value, byte [] encoding)
+	{
+		prepared.set(new Object[] { value, encoding });
+	}
+
+	/**
+	 * Forget the value prepared by the current thread.
+	 */
+	static void release()
+	{
+		prepared.remove();
+	}
+
+	/**
+	 * Orders encoded values by their bytes, unsigned. This is only needed to find equal values.
+	 */
+	public static class BytesComparator implements Comparator<byte[]>, java.io.Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		public int compare(byte [] left, byte [] right)
+		{
+			int n = Math.min(left.length, right.length);
+			for (int i = 0; i < n; i++)
+			{
+				int c = (left[i] & 0xff) - (right[i] & 0xff);
+				if (c != 0)
+					return c;
+			}
+			return left.length - right.length;
+		}
+	}
+
+	protected String getIndexName()
+	{
+		return INDEX_NAME;
+	}
+
+	protected byte [] writeBytes(Json value)
+	{
+		if (!value.isObject() && !value.isArray())
+			throw new IllegalArgumentException("Only JSON objects and arrays are stored compactly: " + value);
+		Object [] p = prepared.get();
+		if (p != null && p[0] == value)
+		{
+			byte [] encoding = (byte[])p[1];
+			byte [] data = new byte[dataOffset + encoding.length];
+			System.arraycopy(encoding, 0, data, dataOffset, encoding.length);
+			return data;
+		}
+		return JsonCodec.encode(value, dataOffset);
+	}
+
+	protected Json readBytes(byte [] data, int offset)
+	{
+		return JsonCodec.decode(data, offset);
+	}
+
+	public Comparator<byte[]> getComparator()
+	{
+		return comparator;
+	}
+}
@@ -0,0 +1,167 @@
+package mjson.hgdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HyperGraph;
+
+/**
+ * <p>
+ * Indexes JSON objects by the values found at a path inside them. A path is a sequence of
+ * property names separated by dots, each optionally followed by an array selector:
+ * <code>[*]</code> for all elements of an array or <code>[n]</code> for the element at position
+ * <code>n</code>. For example <code>address.city</code>, <code>tags[*]</code> or
+ * <code>friends[*].name</code>. When a path goes through all elements of an array, an object
+ * may have many values at that path and it is indexed under each of them.
+ * </p>
+ *
+ * <p>
+ * As with {@link ByJsonPropertyIndexer}, only values of the indexed primitive JSON type are indexed.
+ * The path is the indexer's property name. {@link HyperNodeJson#createIndex(String, HGHandle)} creates
+ * an indexer of this class whenever the property name is a path (see {@link #isPath(String)}).
+ * </p>
+ */
+public class ByJsonPathIndexer extends ByJsonPropertyIndexer
+{
+    private static final int ALL = -1, NONE = -2;
+
+    private String [] names = null;
+    private int [] selectors = null;
+
+    /**
+     * <p>Return <code>true</code> if <code>name</code> contains a dot or an array selector and <code>false</code>
+     * if it is a plain property name.</p>
+     */
+    public static boolean isPath(String name)
+    {
+        return name.indexOf('.') > -1 || name.indexOf('[') > -1;
+    }
+
+    public ByJsonPathIndexer()
+    {
+    }
+
+    public ByJsonPathIndexer(String path, HGHandle propertyType)
+    {
+        super(path, propertyType);
+    }
+
+    public synchronized void setPropertyName(String path)
+    {
+        super.setPropertyName(path);
+        names = null;
+    }
+
+    private synchronized void parse()
+    {
+        if (names != null)
+            return;
+        String [] segments = getPropertyName().split("\\.");
+        String [] N = new String[segments.length];
+        int [] S = new int[segments.length];
+        for (int i = 0; i < segments.length; i++)
+        {
+            String segment = segments[i];
+            int bracket = segment.indexOf('[');
+            if (bracket < 0)
+            {
+                N[i] = segment;
+                S[i] = NONE;
+                continue;
+            }
+            if (!segment.endsWith("]"))
+                throw new IllegalArgumentException("Malformed JSON path " + getPropertyName());
+            N[i] = segment.substring(0, bracket);
+            String selector = segment.substring(bracket + 1, segment.length() - 1).trim();
+            try
+            {
+                S[i] = selector.equals("*") ? ALL : Integer.parseInt(selector);
+            }
+            catch (NumberFormatException ex)
+            {
+                throw new IllegalArgumentException("Malformed array selector in JSON path " + getPropertyName());
+            }
+        }
+        selectors = S;
+        names = N;
+    }
+
+    private void collect(Json j, int segment, List<Json> values)
+    {
+        if (j == null)
+            return;
+        if (segment == names.length)
+        {
+            values.add(j);
+            return;
+        }
+        if (names[segment].length() > 0)
+        {
+            if (!j.isObject())
+                return;
+            j = j.at(names[segment]);
+        }
+        if (j == null || selectors[segment] == NONE)
+            collect(j, segment + 1, values);
+        else if (!j.isArray())
+            return;
+        else if (selectors[segment] == ALL)
+            for (Json x : j.asJsonList())
+                collect(x, segment + 1, values);
+        else if (selectors[segment] >= 0 && selectors[segment] < j.asJsonList().size())
+            collect(j.at(selectors[segment]), segment + 1, values);
+    }
+
+    /**
+     * <p>Return all distinct index keys of a JSON object, one for each value of the
+     * indexed type found at the path.</p>
+     */
+    public Set<Object> getKeys(Json j)
+    {
+        parse();
+        List<Json> values = new ArrayList<Json>();
+        collect(j, 0, values);
+        if (values.isEmpty())
+            return Collections.emptySet();
+        Set<Object> keys = new LinkedHashSet<Object>();
+        for (Json value : values)
+        {
+            Object key = valueKey(value);
+            if (key != null)
+                keys.add(key);
+        }
+        return keys;
+    }
+
+    /**
+     * Return the first key at the path. Use {@link #getKeys(Json)} to get all of them.
+     */
+    public Object getKey(HyperGraph graph, Object atom)
+    {
+        Set<Object> keys = getKeys(json(atom));
+        return keys.isEmpty() ? null : keys.iterator().next();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void index(HyperGraph graph, HGHandle atomHandle, Object atom, HGIndex index)
+    {
+        for (Object key : getKeys(json(atom)))
+            index.addEntry(key, graph.getPersistentHandle(atomHandle));
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void unindex(HyperGraph graph, HGHandle atomHandle, Object atom, HGIndex index)
+    {
+        for (Object key : getKeys(json(atom)))
+            index.removeEntry(key, graph.getPersistentHandle(atomHandle));
+    }
+}
@@ -1,5 +1,6 @@
 package mjson.hgdb;
 
+import java.math.BigDecimal;
 import java.util.Comparator;
 import mjson.Json;
 import org.hypergraphdb.HGHandle;
@@ -11,8 +12,50 @@ import org.hypergraphdb.storage.ByteArrayConverter;
 import org.hypergraphdb.type.HGAtomType;
 import org.hypergraphdb.type.HGPrimitiveType;
 
+/**
+ * <p>
+ * Indexes JSON objects by the value of one of their top-level properties. The
+ * property type is one of the primitive JSON types from {@link JsonTypeSchema}
+ * and objects where the property has a value of a different type are not indexed.
+ * Indexes are normally managed through {@link HyperNodeJson#createIndex(String, HGHandle)}.
+ * </p>
+ */
 public class ByJsonPropertyIndexer extends HGKeyIndexer
 {
+    /**
+     * Keys of long indexes: 8 bytes, big-endian with the sign bit flipped so that the
+     * byte order is the numeric order.
+     */
+    static final class LongKeys implements ByteArrayConverter<Long>, Comparator<byte[]>
+    {
+        static final LongKeys I = new LongKeys();
+        
+        public byte [] toByteArray(Long value)
+        {
+            long v = value ^ Long.MIN_VALUE;
+            byte [] data = new byte[8];
+            for (int i = 7; i >= 0; i--, v >>>= 8)
+                data[i] = (byte)v;
+            return data;
+        }
+
+        public Long fromByteArray(byte [] data, int offset, int length)
+        {
+            long v = 0;
+            for (int i = 0; i < 8; i++)
+                v = (v << 8) | (data[offset + i] & 0xff);
+            return v ^ Long.MIN_VALUE;
+        }
+
+        public int compare(byte [] left, byte [] right)
+        {
+            for (int i = 0; i < 8; i++)
+                if (left[i] != right[i])
+                    return (left[i] & 0xff) - (right[i] & 0xff);
+            return 0;
+        }
+    }
+    
     private String propertyName;
     private HGHandle propertyType;
 
@@ -27,15 +70,31 @@ public class ByJsonPropertyIndexer extends HGKeyIndexer
         this.propertyType = propertyType;
     }
     
+    /**
+     * The type used to store keys: the JSON string, double and decimal number types are their own 
+     * converters, booleans are stored with the Java boolean type and longs with {@link LongKeys}.
+     */
+    private HGAtomType keyType(HyperGraph graph)
+    {
+        if (JsonTypeSchema.booleanTypeHandle.equals(propertyType))
+            return graph.getTypeSystem().getAtomType(Boolean.class);
+        else
+            return graph.get(propertyType);
+    }
+    
     public ByteArrayConverter<?> getConverter(HyperGraph graph)
     {
-        HGAtomType type = graph.get(propertyType);        
+        if (JsonTypeSchema.longTypeHandle.equals(propertyType))
+            return LongKeys.I;
+        HGAtomType type = keyType(graph);
         return (ByteArrayConverter<?>)type;
     }
 
     public Comparator<?> getComparator(HyperGraph graph)
     {
-        HGAtomType type = graph.get(propertyType);
+        if (JsonTypeSchema.longTypeHandle.equals(propertyType))
+            return LongKeys.I;
+        HGAtomType type = keyType(graph);
         if (type instanceof Comparator)
         	return (Comparator<?>)type;
         else if (type instanceof HGPrimitiveType)
@@ -44,22 +103,52 @@ public class ByJsonPropertyIndexer extends HGKeyIndexer
         	return null;
     }
 
-    public Object getKey(HyperGraph graph, Object atom)
+    /**
+     * Return the JSON value of an atom being indexed.
+     */
+    protected Json json(Object atom)
     {
-        Json j;
         if (atom instanceof Json)
-            j = (Json)atom;
+            return (Json)atom;
         else
-            j = (Json)((HGValueLink)atom).getValue();        
-        Json p = j.at(propertyName);
+            return (Json)((HGValueLink)atom).getValue();        
+    }
+    
+    /**
+     * <p>Return the index key for the given property value or <code>null</code> if
+     * the value is not of the indexed type. Number indexes only hold the numbers their keys
+     * represent exactly: a double index holds doubles and integers of magnitude below 2^53, 
+     * a long index holds integers, a decimal index holds all numbers.</p>
+     */
+    public Object valueKey(Json p)
+    {
+        // Values not of the indexed type are simply not indexed.
         if (p == null)
             return null;
+        else if (JsonTypeSchema.numberTypeHandle.equals(propertyType))
+            return p.isNumber() ? JsonNumbers.exactDouble(p) : null;
+        else if (JsonTypeSchema.longTypeHandle.equals(propertyType))
+            return p.isNumber() ? JsonNumbers.integer(p) : null;
+        else if (JsonTypeSchema.decimalTypeHandle.equals(propertyType))
+        {
+            BigDecimal d = p.isNumber() ? JsonNumbers.decimal(p) : null;
+            return d == null ? null : JsonNumbers.canonical(d);
+        }
+        else if (JsonTypeSchema.stringTypeHandle.equals(propertyType))
+            return p.isString() ? p.asString() : null;
+        else if (JsonTypeSchema.booleanTypeHandle.equals(propertyType))
+            return p.isBoolean() ? p.asBoolean() : null;
         else if (p.isNumber())
             return p.asDouble();
         else
             return p.getValue();
     }
     
+    public Object getKey(HyperGraph graph, Object atom)
+    {
+        return valueKey(json(atom).at(propertyName));
+    }
+    
     @Override
     public void index(HyperGraph graph, HGHandle atomHandle, Object atom,
                       HGIndex index)
@@ -0,0 +1,140 @@
+package mjson.hgdb;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGLink;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.indexing.HGKeyIndexer;
+import org.hypergraphdb.storage.ByteArrayConverter;
+
+/**
+ * <p>
+ * Indexes JSON objects or arrays by a hash of their structure, that is of the handles of their
+ * property links (sorted, since property order doesn't matter) or of their elements (in order).
+ * Finding whether an object or array with given components exists is then a single index probe
+ * instead of intersecting the incidence sets of all its components, some of which, e.g. a
+ * <code>"entity":"user"</code> property, may be very large. Since different structures may
+ * have the same hash, matches must be verified, see {@link HyperNodeJson#createStructureIndex()}.
+ * </p>
+ */
+public class ByJsonStructureIndexer extends HGKeyIndexer
+{
+    static final int KEY_SIZE = 16;
+
+    /**
+     * Keys are the first bytes of the SHA-256 hash of the structure, stored as is.
+     */
+    static final class StructureKeys implements ByteArrayConverter<byte[]>, Comparator<byte[]>
+    {
+        static final StructureKeys I = new StructureKeys();
+
+        public byte [] toByteArray(byte [] key)
+        {
+            return key;
+        }
+
+        public byte [] fromByteArray(byte [] data, int offset, int length)
+        {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+
+        public int compare(byte [] left, byte [] right)
+        {
+            int n = Math.min(left.length, right.length);
+            for (int i = 0; i < n; i++)
+                if (left[i] != right[i])
+                    return (left[i] & 0xff) - (right[i] & 0xff);
+            return left.length - right.length;
+        }
+    }
+
+    public ByJsonStructureIndexer()
+    {
+    }
+
+    /**
+     * @param type Either {@link JsonTypeSchema#objectTypeHandle} or {@link JsonTypeSchema#arrayTypeHandle}.
+     */
+    public ByJsonStructureIndexer(HGHandle type)
+    {
+        setType(type);
+    }
+
+    /**
+     * <p>Return the index key of an object or array with the given components.</p>
+     */
+    public byte [] structureKey(HGHandle [] targets)
+    {
+        boolean ordered = JsonTypeSchema.arrayTypeHandle.equals(getType());
+        return Arrays.copyOf(ContentHandles.structure(getType(), targets, ordered), KEY_SIZE);
+    }
+
+    public ByteArrayConverter<?> getConverter(HyperGraph graph)
+    {
+        return StructureKeys.I;
+    }
+
+    public Comparator<?> getComparator(HyperGraph graph)
+    {
+        return StructureKeys.I;
+    }
+
+    /**
+     * Return the components of an atom, from the database if the runtime instance is not a link.
+     */
+    private HGHandle [] targets(HyperGraph graph, HGHandle atomHandle, Object atom)
+    {
+        if (atom instanceof HGLink)
+        {
+            HGLink link = (HGLink)atom;
+            HGHandle [] targets = new HGHandle[link.getArity()];
+            for (int i = 0; i < targets.length; i++)
+                targets[i] = link.getTargetAt(i);
+            return targets;
+        }
+        HGPersistentHandle [] link = graph.getStore().getLink(graph.getPersistentHandle(atomHandle));
+        return link == null ? null : Arrays.copyOfRange(link, 2, link.length, HGHandle[].class);
+    }
+
+    public Object getKey(HyperGraph graph, Object atom)
+    {
+        return atom instanceof HGLink ? structureKey(targets(graph, null, atom)) : null;
+    }
+
+    @Override
+    public void index(HyperGraph graph, HGHandle atomHandle, Object atom, HGIndex index)
+    {
+        HGHandle [] targets = targets(graph, atomHandle, atom);
+        if (targets != null)
+            index.addEntry(structureKey(targets), graph.getPersistentHandle(atomHandle));
+    }
+
+    @Override
+    public void unindex(HyperGraph graph, HGHandle atomHandle, Object atom, HGIndex index)
+    {
+        HGHandle [] targets = targets(graph, atomHandle, atom);
+        if (targets != null)
+            index.removeEntry(structureKey(targets), graph.getPersistentHandle(atomHandle));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return getType() == null ? 0 : getType().hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        HGHandle type = ((ByJsonStructureIndexer)obj).getType();
+        return getType() == null ? type == null : getType().equals(type);
+    }
+}
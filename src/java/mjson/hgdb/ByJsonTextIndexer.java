@@ -0,0 +1,287 @@
+package mjson.hgdb;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeSet;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HGValueLink;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.indexing.HGKeyIndexer;
+import org.hypergraphdb.storage.ByteArrayConverter;
+import org.hypergraphdb.type.HGPrimitiveType;
+import org.hypergraphdb.util.HGUtils;
+
+/**
+ * <p>
+ * A full-text inverted index of JSON objects by the words of one of their top-level string
+ * properties. The keys are the distinct lower case words (terms) of the text, so the postings of
+ * a term are the objects whose text contains it. Along with the postings, the indexer keeps in the
+ * store, for each object, the length of its text in words and the frequency of each of its terms and,
+ * for the whole index, the number of objects and their total length. Those are the statistics needed to
+ * rank objects by relevance to a set of keywords with BM25, see {@link HyperNodeJson#search(String, String, int)}.
+ * </p>
+ *
+ * <p>
+ * The index is maintained incrementally as objects are added, replaced and removed, and used
+ * by the <code>@=</code> keyword operator of {@link HyperNodeJson#find(Json)}. Indexes are normally
+ * managed through {@link HyperNodeJson#createTextIndex(String)}.
+ * </p>
+ *
+ * <p>
+ * The statistics of the whole index are split in {@link #STATS_STRIPES} records, an object's
+ * write updating the one selected by its handle, so that concurrent transactions writing indexed
+ * objects seldom conflict on them.
+ * </p>
+ */
+public class ByJsonTextIndexer extends HGKeyIndexer
+{
+    static final String DELIMITERS = " \t,.;?!~`@#$%^&*()-_+=\"[]{}:'<>/\\\n\r";
+    /** The number of records the statistics of the whole index are split in. */
+    public static final int STATS_STRIPES = 16;
+
+    private String propertyName;
+
+    public ByJsonTextIndexer()
+    {
+    }
+
+    public ByJsonTextIndexer(String propertyName)
+    {
+        this.propertyName = propertyName;
+    }
+
+    /**
+     * <p>Split a text into its lower case words, in order.</p>
+     */
+    public static List<String> tokens(String text)
+    {
+        List<String> L = new ArrayList<String>();
+        StringTokenizer tokenizer = new StringTokenizer(text, DELIMITERS, false);
+        while (tokenizer.hasMoreTokens())
+            L.add(tokenizer.nextToken().toLowerCase(Locale.ROOT));
+        return L;
+    }
+
+    /**
+     * Return the terms of a text with their frequency.
+     */
+    static Map<String, Integer> frequencies(List<String> tokens)
+    {
+        Map<String, Integer> tf = new LinkedHashMap<String, Integer>();
+        for (String t : tokens)
+        {
+            Integer n = tf.get(t);
+            tf.put(t, n == null ? 1 : n + 1);
+        }
+        return tf;
+    }
+
+    public ByteArrayConverter<?> getConverter(HyperGraph graph)
+    {
+        return (ByteArrayConverter<?>)graph.getTypeSystem().getAtomType(String.class);
+    }
+
+    public Comparator<?> getComparator(HyperGraph graph)
+    {
+        return ((HGPrimitiveType<?>)graph.getTypeSystem().getAtomType(String.class)).getComparator();
+    }
+
+    private String text(Object atom)
+    {
+        Json j = atom instanceof Json ? (Json)atom : (Json)((HGValueLink)atom).getValue();
+        Json value = j.isObject() ? j.at(propertyName) : null;
+        return value != null && value.isString() ? value.asString() : null;
+    }
+
+    /**
+     * Return the handle under which the statistics of a document are kept in the store.
+     */
+    private HGPersistentHandle statsHandle(HyperGraph graph, HGHandle document)
+    {
+        return ContentHandles.derived(graph, "json-text-index:" + propertyName, document);
+    }
+
+    /**
+     * Return the handle of one of the records of the statistics of the whole index.
+     */
+    private HGPersistentHandle stripeHandle(HyperGraph graph, int stripe)
+    {
+        return ContentHandles.derived(graph, "json-text-index:" + propertyName + ":" + stripe);
+    }
+
+    private static Json read(HyperGraph graph, HGPersistentHandle h)
+    {
+        byte [] data = graph.getStore().getData(h);
+        return data == null ? null : JsonCodec.decode(data, 0);
+    }
+
+    /**
+     * <p>
+     * Return the statistics of an indexed object: its <code>length</code> in words and the
+     * <code>terms</code> frequencies, or <code>null</code> if the object is not indexed.
+     * </p>
+     */
+    public Json documentStats(HyperGraph graph, HGHandle document)
+    {
+        return read(graph, statsHandle(graph, document));
+    }
+
+    /**
+     * <p>Return the statistics of the whole index: the number of <code>documents</code> and
+     * their total <code>length</code> in words.</p>
+     */
+    public Json indexStats(HyperGraph graph)
+    {
+        long documents = 0, length = 0;
+        for (int i = 0; i < STATS_STRIPES; i++)
+        {
+            Json stats = read(graph, stripeHandle(graph, i));
+            if (stats != null)
+            {
+                documents += stats.at("documents").asLong();
+                length += stats.at("length").asLong();
+            }
+        }
+        return Json.object("documents", documents, "length", length);
+    }
+
+    private void updateIndexStats(HyperGraph graph, HGPersistentHandle document, long documents, long length)
+    {
+        HGPersistentHandle h = stripeHandle(graph, (document.hashCode() & 0x7fffffff) % STATS_STRIPES);
+        Json stats = read(graph, h);
+        if (stats == null)
+            stats = Json.object("documents", 0, "length", 0);
+        stats.set("documents", stats.at("documents").asLong() + documents)
+             .set("length", stats.at("length").asLong() + length);
+        graph.getStore().store(h, JsonCodec.encode(stats, 0));
+    }
+
+    /**
+     * <p>
+     * Delete the statistics kept for the objects of the index and for the whole index, so that
+     * they don't skew the ranking of an index created again later.
+     * </p>
+     */
+    @SuppressWarnings("unchecked")
+    public void dropStats(HyperGraph graph, HGIndex<?, ?> index)
+    {
+        TreeSet<HGPersistentHandle> documents = new TreeSet<HGPersistentHandle>();
+        HGSearchResult<HGPersistentHandle> rs = ((HGIndex<String, HGPersistentHandle>)index).scanValues();
+        try
+        {
+            while (rs.hasNext())
+                documents.add(rs.next());
+        }
+        finally
+        {
+            HGUtils.closeNoException(rs);
+        }
+        for (HGPersistentHandle h : documents)
+            graph.getStore().removeData(statsHandle(graph, h));
+        for (int i = 0; i < STATS_STRIPES; i++)
+            graph.getStore().removeData(stripeHandle(graph, i));
+    }
+
+    /**
+     * <p>Return the objects containing any of the given terms, sorted by handle.</p>
+     */
+    @SuppressWarnings("unchecked")
+    public HGHandle [] postings(HGIndex<?, ?> index, Iterable<String> terms)
+    {
+        TreeSet<HGPersistentHandle> S = new TreeSet<HGPersistentHandle>();
+        for (String term : terms)
+        {
+            HGSearchResult<HGPersistentHandle> rs = ((HGIndex<String, HGPersistentHandle>)index).find(term);
+            try
+            {
+                while (rs.hasNext())
+                    S.add(rs.next());
+            }
+            finally
+            {
+                HGUtils.closeNoException(rs);
+            }
+        }
+        return S.toArray(new HGHandle[S.size()]);
+    }
+
+    public Object getKey(HyperGraph graph, Object atom)
+    {
+        String text = text(atom);
+        List<String> tokens = text == null ? null : tokens(text);
+        return tokens == null || tokens.isEmpty() ? null : tokens.get(0);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void index(HyperGraph graph, HGHandle atomHandle, Object atom, HGIndex index)
+    {
+        String text = text(atom);
+        if (text == null)
+            return;
+        unindex(graph, atomHandle, atom, index); // when indexed again
+        List<String> tokens = tokens(text);
+        Map<String, Integer> tf = frequencies(tokens);
+        HGPersistentHandle h = graph.getPersistentHandle(atomHandle);
+        for (String term : tf.keySet())
+            index.addEntry(term, h);
+        Json terms = Json.object();
+        for (Map.Entry<String, Integer> e : tf.entrySet())
+            terms.set(e.getKey(), e.getValue());
+        graph.getStore().store(statsHandle(graph, h), JsonCodec.encode(Json.object("length", tokens.size(), "terms", terms), 0));
+        updateIndexStats(graph, h, 1, tokens.size());
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void unindex(HyperGraph graph, HGHandle atomHandle, Object atom, HGIndex index)
+    {
+        HGPersistentHandle h = graph.getPersistentHandle(atomHandle);
+        HGPersistentHandle statsHandle = statsHandle(graph, h);
+        Json stats = read(graph, statsHandle);
+        if (stats == null)
+            return;
+        for (String term : stats.at("terms").asJsonMap().keySet())
+            index.removeEntry(term, h);
+        graph.getStore().removeData(statsHandle);
+        updateIndexStats(graph, h, -1, -stats.at("length").asLong());
+    }
+
+    public String getPropertyName()
+    {
+        return propertyName;
+    }
+
+    public void setPropertyName(String propertyName)
+    {
+        this.propertyName = propertyName;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return propertyName == null ? 0 : propertyName.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+            return true;
+        if (obj == null || getClass() != obj.getClass())
+            return false;
+        String other = ((ByJsonTextIndexer)obj).propertyName;
+        return propertyName == null ? other == null : propertyName.equals(other);
+    }
+}
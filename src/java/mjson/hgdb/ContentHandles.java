@@ -0,0 +1,169 @@
+package mjson.hgdb;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGException;
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HyperGraph;
+
+/**
+ * <p>
+ * Derives the persistent handle of an immutable value from its content, see
+ * {@link HyperNodeJson#setContentAddressing(boolean)}. The handle is the SHA-256 hash, truncated
+ * to the size of the graph's handles, of the type handle followed by:
+ * </p>
+ *
+ * <ul>
+ * <li>the canonical {@link JsonCodec} encoding for primitives and compact values;</li>
+ * <li>the UTF-8 bytes for property names;</li>
+ * <li>the handles of the targets for links, i.e. arrays, property links and objects, in order
+ * except for objects whose property links are sorted since property order doesn't matter.</li>
+ * </ul>
+ *
+ * <p>
+ * Since the handles of the components are themselves content hashes, the handle of a nested value
+ * is a Merkle hash of the whole value and equal values have equal handles.
+ * </p>
+ */
+final class ContentHandles
+{
+	private static final Comparator<byte[]> bytesOrder = new BlobTypeJson.BytesComparator();
+
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue()
+		{
+			try
+			{
+				return MessageDigest.getInstance("SHA-256");
+			}
+			catch (NoSuchAlgorithmException ex)
+			{
+				throw new HGException(ex);
+			}
+		}
+	};
+
+	private final HyperGraph graph;
+	private final int size;
+
+	ContentHandles(HyperGraph graph)
+	{
+		this.graph = graph;
+		this.size = graph.getHandleFactory().nullHandle().toByteArray().length;
+		if (size > 32)
+			throw new IllegalArgumentException("Handles of " + size + " bytes are longer than a SHA-256 hash.");
+	}
+
+	private static MessageDigest digest(HGHandle type)
+	{
+		MessageDigest md = digests.get();
+		md.reset();
+		md.update(type.getPersistent().toByteArray());
+		return md;
+	}
+
+	private HGPersistentHandle handle(MessageDigest md)
+	{
+		return handle(md.digest());
+	}
+
+	private HGPersistentHandle handle(byte [] hash)
+	{
+		return graph.getHandleFactory().makeHandle(Arrays.copyOf(hash, size));
+	}
+
+	/**
+	 * Return the SHA-256 hash of a link's type and targets, in the given order if <code>ordered</code>
+	 * and otherwise sorted, so that any permutation of the targets has the same hash.
+	 */
+	static byte [] structure(HGHandle type, HGHandle [] targets, boolean ordered)
+	{
+		byte [][] T = new byte[targets.length][];
+		for (int i = 0; i < targets.length; i++)
+			T[i] = targets[i].getPersistent().toByteArray();
+		if (!ordered)
+			Arrays.sort(T, bytesOrder);
+		MessageDigest md = digest(type);
+		for (byte [] t : T)
+			md.update(t);
+		return md.digest();
+	}
+
+	/**
+	 * Return a handle derived from the handle of an atom, under which to keep an auxiliary record
+	 * of the atom. The <code>label</code> tells apart the kinds of records.
+	 */
+	static HGPersistentHandle derived(HyperGraph graph, String label, HGHandle h)
+	{
+		MessageDigest md = digests.get();
+		md.reset();
+		md.update(label.getBytes(StandardCharsets.UTF_8));
+		md.update(h.getPersistent().toByteArray());
+		int size = graph.getHandleFactory().nullHandle().toByteArray().length;
+		return graph.getHandleFactory().makeHandle(Arrays.copyOf(md.digest(), size));
+	}
+
+	/**
+	 * Return a handle derived from a label only, under which to keep an auxiliary record
+	 * that belongs to no atom.
+	 */
+	static HGPersistentHandle derived(HyperGraph graph, String label)
+	{
+		MessageDigest md = digests.get();
+		md.reset();
+		md.update(label.getBytes(StandardCharsets.UTF_8));
+		int size = graph.getHandleFactory().nullHandle().toByteArray().length;
+		return graph.getHandleFactory().makeHandle(Arrays.copyOf(md.digest(), size));
+	}
+
+	/**
+	 * The handle of a primitive or compact value of the given type.
+	 */
+	HGPersistentHandle value(HGHandle type, Json j)
+	{
+		return value(type, JsonCodec.encode(j, 0));
+	}
+
+	/**
+	 * The handle of a value of the given type whose {@link JsonCodec} encoding is already known.
+	 */
+	HGPersistentHandle value(HGHandle type, byte [] encoding)
+	{
+		MessageDigest md = digest(type);
+		md.update(encoding);
+		return handle(md);
+	}
+
+	/**
+	 * The handle of a property name, of the given <code>String</code> type.
+	 */
+	HGPersistentHandle name(HGHandle type, String name)
+	{
+		MessageDigest md = digest(type);
+		md.update(name.getBytes(StandardCharsets.UTF_8));
+		return handle(md);
+	}
+
+	/**
+	 * The handle of a link whose target order matters.
+	 */
+	HGPersistentHandle link(HGHandle type, HGHandle... targets)
+	{
+		return handle(structure(type, targets, true));
+	}
+
+	/**
+	 * The handle of a link whose targets are a set, that is an object.
+	 */
+	HGPersistentHandle set(HGHandle type, HGHandle [] targets)
+	{
+		return handle(structure(type, targets, false));
+	}
+}
@@ -0,0 +1,66 @@
+package mjson.hgdb;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.IncidenceSetRef;
+import org.hypergraphdb.LazyRef;
+import org.hypergraphdb.type.javaprimitive.NumericTypeBase;
+
+/**
+ * <p>
+ * The type of JSON numbers that neither a long nor a double represents exactly, stored as
+ * a <code>BigDecimal</code>: the scale as 4 bytes followed by the unscaled value. Values are
+ * ordered numerically, see {@link JsonNumbers}.
+ * </p>
+ */
+public class DecimalTypeJson extends NumericTypeBase<BigDecimal>
+{
+	public static final String INDEX_NAME = "hg_json_decimal_value_index";
+
+	protected String getIndexName()
+	{
+		return INDEX_NAME;
+	}
+
+	protected byte [] writeBytes(BigDecimal value)
+	{
+		byte [] unscaled = value.unscaledValue().toByteArray();
+		byte [] data = new byte[dataOffset + 4 + unscaled.length];
+		int scale = value.scale();
+		data[dataOffset] = (byte)(scale >>> 24);
+		data[dataOffset + 1] = (byte)(scale >>> 16);
+		data[dataOffset + 2] = (byte)(scale >>> 8);
+		data[dataOffset + 3] = (byte)scale;
+		System.arraycopy(unscaled, 0, data, dataOffset + 4, unscaled.length);
+		return data;
+	}
+
+	protected BigDecimal readBytes(byte [] data, int offset)
+	{
+		int scale = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) |
+					((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+		return new BigDecimal(new BigInteger(Arrays.copyOfRange(data, offset + 4, data.length)), scale);
+	}
+
+	public Object make(HGPersistentHandle handle,
+					   LazyRef<HGHandle[]> targetSet,
+					   IncidenceSetRef incidenceSet)
+	{
+		return Json.make(super.make(handle, targetSet, incidenceSet));
+	}
+
+	public HGPersistentHandle store(Object instance)
+	{
+		Json j = (Json)instance;
+		BigDecimal value = j.isNumber() ? JsonNumbers.decimal(j) : null;
+		if (value == null)
+			throw new IllegalArgumentException("Not a finite number: " + j);
+		return super.store(JsonNumbers.canonical(value));
+	}
+}
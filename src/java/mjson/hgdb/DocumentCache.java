@@ -0,0 +1,389 @@
+package mjson.hgdb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.transaction.HGTransactionManager;
+
+/**
+ * <p>
+ * A cache of materialized JSON documents by handle, enabled with {@link HyperNodeJson#setDocumentCache(DocumentCache)}.
+ * Unlike the atom cache of HyperGraphDB, which only holds atoms as long as the garbage collector lets it, documents
+ * stay in this cache until they are evicted: the cache is bounded by a number of entries and by an approximate
+ * size in bytes, documents being evicted in approximately least recently used order: a document read since
+ * eviction last considered it gets a second chance, so that reading a cached document takes no lock. In addition,
+ * the number of entities of a given type (the value of their <code>entity</code> property) can be limited with
+ * {@link #quota(String, int)}, so that a few hot entity types don't push everything else out.
+ * </p>
+ *
+ * <p>
+ * The cache is only used outside of transactions, a transaction always reads from storage. Replacing or removing
+ * a document through the node drops it from the cache before and after the write commits, and a document read
+ * concurrently with the write is not cached. If the write is made inside a transaction, the document is not cached
+ * again until the writing thread is seen outside of its transaction.
+ * </p>
+ */
+public class DocumentCache
+{
+	static final int STRIPES = 1024;
+
+	static class Entry
+	{
+		Json document;
+		long bytes;
+		String type;
+		// Whether the document was read since eviction last considered it, overall and within its type.
+		volatile boolean used, typeUsed;
+
+		Entry(Json document, long bytes, String type)
+		{
+			this.document = document;
+			this.bytes = bytes;
+			this.type = type;
+		}
+	}
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private long bytes = 0;
+	// In the order documents were cached or given a second chance by eviction, see victim().
+	private final LinkedHashMap<HGPersistentHandle, Entry> entries = new LinkedHashMap<HGPersistentHandle, Entry>(1024);
+	// The same entries, read without locking.
+	private final ConcurrentHashMap<HGPersistentHandle, Entry> lookup = new ConcurrentHashMap<HGPersistentHandle, Entry>();
+	// Quota and eviction order of the entities of each type with a quota.
+	private final Map<String, Integer> quotas = new HashMap<String, Integer>();
+	private final Map<String, LinkedHashMap<HGPersistentHandle, Entry>> typed = new HashMap<String, LinkedHashMap<HGPersistentHandle, Entry>>();
+	// Write versions, by handle stripe, to detect documents read concurrently with a write.
+	private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+	// Documents written in transactions that may not be committed yet.
+	private final Map<HGPersistentHandle, Integer> unstable = new HashMap<HGPersistentHandle, Integer>();
+	private final ThreadLocal<Set<HGPersistentHandle>> pending = new ThreadLocal<Set<HGPersistentHandle>>() {
+		protected Set<HGPersistentHandle> initialValue() { return new HashSet<HGPersistentHandle>(); }
+	};
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	/**
+	 * @param maxEntries The maximum number of cached documents.
+	 * @param maxBytes The maximum approximate size of all cached documents, see {@link #estimateBytes(Json)}.
+	 */
+	public DocumentCache(int maxEntries, long maxBytes)
+	{
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * <p>Return the approximate memory footprint of a JSON value in bytes. Lazily loaded objects
+	 * and arrays are counted for what they are before being loaded.</p>
+	 */
+	public static long estimateBytes(Json j)
+	{
+		if (j instanceof LazyObjectJson || j instanceof LazyArrayJson)
+			return 256;
+		else if (j.isString())
+			return 40 + 2L * j.asString().length();
+		else if (j.isObject())
+		{
+			long n = 48;
+			for (Map.Entry<String, Json> e : j.asJsonMap().entrySet())
+				n += 72 + 2L * e.getKey().length() + estimateBytes(e.getValue());
+			return n;
+		}
+		else if (j.isArray())
+		{
+			long n = 40;
+			for (Json x : j.asJsonList())
+				n += 8 + estimateBytes(x);
+			return n;
+		}
+		else
+			return 16;
+	}
+
+	static String entityType(Json j)
+	{
+		if (!j.isObject())
+			return null;
+		Json type = j.at("entity");
+		return type != null && type.isString() ? type.asString() : null;
+	}
+
+	/**
+	 * <p>Limit the number of cached entities of the given type.</p>
+	 */
+	public DocumentCache quota(String entityType, int maxEntries)
+	{
+		synchronized (entries)
+		{
+			quotas.put(entityType, maxEntries);
+			if (!typed.containsKey(entityType))
+			{
+				LinkedHashMap<HGPersistentHandle, Entry> order = new LinkedHashMap<HGPersistentHandle, Entry>(16);
+				for (Map.Entry<HGPersistentHandle, Entry> e : entries.entrySet())
+					if (entityType.equals(e.getValue().type))
+						order.put(e.getKey(), e.getValue());
+				typed.put(entityType, order);
+			}
+			evict(null);
+		}
+		return this;
+	}
+
+	private static int stripe(HGPersistentHandle handle)
+	{
+		return (handle.hashCode() & 0x7fffffff) % STRIPES;
+	}
+
+	/**
+	 * <p>Return the cached document with the given handle or <code>null</code> if there isn't one.</p>
+	 */
+	Json get(HGPersistentHandle handle)
+	{
+		Entry entry = lookup.get(handle);
+		if (entry == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		// a hot document is only written again once eviction cleared its flags
+		if (!entry.used)
+			entry.used = true;
+		if (!entry.typeUsed)
+			entry.typeUsed = true;
+		return entry.document;
+	}
+
+	/**
+	 * Return the write version of a document, to be passed to {@link #load(HGPersistentHandle, Json, long)}
+	 * once it is read.
+	 */
+	long version(HGPersistentHandle handle)
+	{
+		return versions.get(stripe(handle));
+	}
+
+	/**
+	 * Cache a document read from storage, unless it was written since its version was taken.
+	 */
+	void load(HGPersistentHandle handle, Json document, long version)
+	{
+		long size = estimateBytes(document);
+		if (size > maxBytes)
+			return;
+		String type = entityType(document);
+		synchronized (entries)
+		{
+			if (versions.get(stripe(handle)) != version || unstable.containsKey(handle))
+				return;
+			remove(handle);
+			Entry entry = new Entry(document, size, type);
+			entries.put(handle, entry);
+			lookup.put(handle, entry);
+			bytes += size;
+			if (type != null && typed.containsKey(type))
+				typed.get(type).put(handle, entry);
+			evict(handle);
+		}
+	}
+
+	private Entry remove(HGPersistentHandle handle)
+	{
+		Entry entry = entries.remove(handle);
+		if (entry != null)
+		{
+			lookup.remove(handle);
+			bytes -= entry.bytes;
+			if (entry.type != null && typed.containsKey(entry.type))
+				typed.get(entry.type).remove(handle);
+		}
+		return entry;
+	}
+
+	/**
+	 * Return the handle to evict next from <code>order</code>, other than <code>keep</code>, or
+	 * <code>null</code> if there is none. Documents read since eviction last considered them are
+	 * moved to the end instead. This approximates least recently used order without reordering
+	 * entries on every read.
+	 */
+	private static HGPersistentHandle victim(LinkedHashMap<HGPersistentHandle, Entry> order, boolean byType, HGPersistentHandle keep)
+	{
+		for (int steps = 2 * order.size() + 1; steps > 0; steps--)
+		{
+			Map.Entry<HGPersistentHandle, Entry> eldest = order.entrySet().iterator().next();
+			Entry entry = eldest.getValue();
+			if (!eldest.getKey().equals(keep) && !(byType ? entry.typeUsed : entry.used))
+				return eldest.getKey();
+			if (byType)
+				entry.typeUsed = false;
+			else
+				entry.used = false;
+			order.remove(eldest.getKey());
+			order.put(eldest.getKey(), entry);
+		}
+		return null;
+	}
+
+	private void evict(HGPersistentHandle keep)
+	{
+		for (Map.Entry<String, LinkedHashMap<HGPersistentHandle, Entry>> e : typed.entrySet())
+		{
+			int quota = quotas.get(e.getKey());
+			while (e.getValue().size() > quota)
+			{
+				HGPersistentHandle eldest = victim(e.getValue(), true, keep);
+				remove(eldest != null ? eldest : keep);
+				evictions.incrementAndGet();
+			}
+		}
+		while (entries.size() > maxEntries || bytes > maxBytes)
+		{
+			HGPersistentHandle eldest = victim(entries, false, keep);
+			if (eldest == null)
+				break;
+			remove(eldest);
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void invalidate(HGPersistentHandle handle)
+	{
+		versions.incrementAndGet(stripe(handle));
+		synchronized (entries)
+		{
+			remove(handle);
+		}
+	}
+
+	/**
+	 * Called before a document is replaced or removed.
+	 */
+	void writing(HGTransactionManager txManager, HGPersistentHandle handle)
+	{
+		committed(txManager);
+		invalidate(handle);
+		if (txManager.getContext().getCurrent() != null && pending.get().add(handle))
+			synchronized (entries)
+			{
+				Integer count = unstable.get(handle);
+				unstable.put(handle, count == null ? 1 : count + 1);
+			}
+	}
+
+	/**
+	 * Called after a document is replaced or removed: if the write ran in its own transaction,
+	 * it has been committed by now.
+	 */
+	void written(HGTransactionManager txManager, HGPersistentHandle handle)
+	{
+		if (txManager.getContext().getCurrent() == null)
+			invalidate(handle);
+	}
+
+	/**
+	 * <p>
+	 * Complete the invalidation of the documents this thread wrote in transactions that have now ended.
+	 * This is done automatically by the node on the next operation of the thread.
+	 * </p>
+	 */
+	public void committed(HGTransactionManager txManager)
+	{
+		Set<HGPersistentHandle> handles = pending.get();
+		if (handles.isEmpty() || txManager.getContext().getCurrent() != null)
+			return;
+		for (HGPersistentHandle handle : handles)
+		{
+			invalidate(handle);
+			synchronized (entries)
+			{
+				int count = unstable.get(handle);
+				if (count == 1)
+					unstable.remove(handle);
+				else
+					unstable.put(handle, count - 1);
+			}
+		}
+		handles.clear();
+	}
+
+	/**
+	 * <p>Remove all documents.</p>
+	 */
+	public void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+			lookup.clear();
+			for (LinkedHashMap<HGPersistentHandle, Entry> order : typed.values())
+				order.clear();
+			bytes = 0;
+		}
+	}
+
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+
+	/**
+	 * <p>Return the approximate size of all cached documents in bytes.</p>
+	 */
+	public long bytes()
+	{
+		synchronized (entries)
+		{
+			return bytes;
+		}
+	}
+
+	public long hits()
+	{
+		return hits.get();
+	}
+
+	public long misses()
+	{
+		return misses.get();
+	}
+
+	public long evictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * <p>Return the cache statistics: <code>size</code>, <code>bytes</code>, <code>maxEntries</code>,
+	 * <code>maxBytes</code>, <code>hits</code>, <code>misses</code>, <code>evictions</code> and, for
+	 * each entity type with a quota, its <code>size</code> and <code>quota</code>.</p>
+	 */
+	public Json stats()
+	{
+		Json types = Json.object();
+		Json stats;
+		synchronized (entries)
+		{
+			for (Map.Entry<String, LinkedHashMap<HGPersistentHandle, Entry>> e : typed.entrySet())
+				types.set(e.getKey(), Json.object("size", e.getValue().size(), "quota", quotas.get(e.getKey())));
+			stats = Json.object("size", entries.size(), "bytes", bytes);
+		}
+		return stats.set("maxEntries", maxEntries)
+					.set("maxBytes", maxBytes)
+					.set("hits", hits())
+					.set("misses", misses())
+					.set("evictions", evictions())
+					.set("types", types);
+	}
+}
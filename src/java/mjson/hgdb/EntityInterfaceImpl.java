@@ -102,10 +102,10 @@ public class EntityInterfaceImpl implements EntityInterface
     
     public HGHandle lookupEntity(HyperNodeJson node, Json entity)
     {
-        if (primaryKey != null && entity.has("primaryKey"))
+        if (primaryKey != null && entity.has(primaryKey))
         {
-            HGSearchResult<HGHandle> rs = node.find(Json.object("entity", entity.at("entity"), 
-                                                                primaryKey, entity.at(primaryKey)));
+            HGSearchResult<HGHandle> rs = node.findUnmetered(Json.object("entity", entity.at("entity"), 
+                                                                         primaryKey, entity.at(primaryKey)), false);
             try { return (rs.hasNext()) ? rs.next() : null; } finally { rs.close(); }
         }
         else
@@ -0,0 +1,231 @@
+package mjson.hgdb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+
+/**
+ * <p>
+ * Replaces entity references in a JSON structure by the entities they refer to ("expands" them),
+ * without reading the entities one by one. The structure is resolved one level at a time: all references
+ * found at a level are collected and the distinct entities are read with a single
+ * {@link HyperNodeJson#getMany(java.util.Collection, int)}, then the references found in those entities
+ * form the next level. An entity is read at most once per call, however many times it is referred to.
+ * </p>
+ *
+ * <p>
+ * The depth of the expansion can be limited with {@link #maxDepth(int)}, references beyond that depth
+ * being left as they are. A reference to an entity from within that same entity, directly or through
+ * other entities, is also left as is. All references to an entity found at the same level share a
+ * single expansion, so the result holds at most one copy of each entity per level however densely
+ * entities refer to each other. For each entity type, the expanded entities may be reduced to
+ * a few selected paths with {@link #select(String, String...)}, for example:
+ * </p>
+ *
+ * <pre><code>
+ * Json order = new EntityResolver(node).maxDepth(2)
+ *                                      .select("customer", "name", "address.city")
+ *                                      .resolve(node.get(orderHandle));
+ * </code></pre>
+ *
+ * <p>
+ * The input is never modified, the result is a new structure that the caller owns. Modifying an
+ * expanded entity in the result modifies it wherever it is shared. A resolver is
+ * immutable once configured and can be used concurrently from several threads.
+ * </p>
+ */
+public class EntityResolver
+{
+	private static class Slot
+	{
+		Json container;
+		String name;
+		int index;
+		HGPersistentHandle handle;
+		Set<HGPersistentHandle> ancestors;
+
+		Slot(Json container, String name, int index, HGPersistentHandle handle, Set<HGPersistentHandle> ancestors)
+		{
+			this.container = container;
+			this.name = name;
+			this.index = index;
+			this.handle = handle;
+			this.ancestors = ancestors;
+		}
+	}
+
+	private static class Item
+	{
+		Json value;
+		Set<HGPersistentHandle> ancestors;
+
+		Item(Json value, Set<HGPersistentHandle> ancestors)
+		{
+			this.value = value;
+			this.ancestors = ancestors;
+		}
+	}
+
+	private final HyperNodeJson node;
+	private int maxDepth = Integer.MAX_VALUE;
+	private int parallelism = 1;
+	private final Map<String, String[]> selections = new HashMap<String, String[]>();
+
+	public EntityResolver(HyperNodeJson node)
+	{
+		this.node = node;
+	}
+
+	/**
+	 * <p>Set the number of levels of references to expand, unlimited by default. With a depth
+	 * of 1, only the references in the structure passed to {@link #resolve(Json)} are expanded.</p>
+	 */
+	public EntityResolver maxDepth(int maxDepth)
+	{
+		if (maxDepth < 0)
+			throw new IllegalArgumentException("Negative depth " + maxDepth);
+		this.maxDepth = maxDepth;
+		return this;
+	}
+
+	public int maxDepth()
+	{
+		return maxDepth;
+	}
+
+	/**
+	 * <p>Set the number of ranges in which the entities of a level are read in parallel,
+	 * see {@link HyperNodeJson#getMany(java.util.Collection, int)}. The default is 1.</p>
+	 */
+	public EntityResolver parallelism(int parallelism)
+	{
+		this.parallelism = Math.max(1, parallelism);
+		return this;
+	}
+
+	public int parallelism()
+	{
+		return parallelism;
+	}
+
+	/**
+	 * <p>Expand the entities of the given type (the value of their <code>entity</code> property) to
+	 * the selected paths only, as {@link Helpers#select(Json, String...)} does. References in the
+	 * selected paths are expanded in turn.</p>
+	 */
+	public EntityResolver select(String entityType, String...paths)
+	{
+		selections.put(entityType, paths.clone());
+		return this;
+	}
+
+	private void collect(Json j, Set<HGPersistentHandle> ancestors, List<Slot> slots)
+	{
+		EntityInterface entities = node.getEntityInterface();
+		if (j.isObject())
+		{
+			for (Map.Entry<String, Json> e : j.asJsonMap().entrySet())
+			{
+				HGHandle h = entities.entityReferenceToHandle(node, e.getValue());
+				if (h != null)
+				{
+					if (!ancestors.contains(h.getPersistent()))
+						slots.add(new Slot(j, e.getKey(), -1, h.getPersistent(), ancestors));
+				}
+				else
+					collect(e.getValue(), ancestors, slots);
+			}
+		}
+		else if (j.isArray())
+		{
+			List<Json> L = j.asJsonList();
+			for (int i = 0; i < L.size(); i++)
+			{
+				HGHandle h = entities.entityReferenceToHandle(node, L.get(i));
+				if (h != null)
+				{
+					if (!ancestors.contains(h.getPersistent()))
+						slots.add(new Slot(j, null, i, h.getPersistent(), ancestors));
+				}
+				else
+					collect(L.get(i), ancestors, slots);
+			}
+		}
+	}
+
+	private Set<HGPersistentHandle> ownHandle(Json j)
+	{
+		Set<HGPersistentHandle> S = new HashSet<HGPersistentHandle>();
+		String handleProperty = node.getEntityInterface().entityHandleProperty();
+		if (handleProperty != null && j.isObject() && j.has(handleProperty) && j.at(handleProperty).isString())
+			S.add(node.graph().getHandleFactory().makeHandle(j.at(handleProperty).asString()));
+		return S;
+	}
+
+	/**
+	 * <p>Return a copy of <code>top</code> with its entity references replaced by the entities
+	 * they refer to. References to entities that don't exist are left as they are.</p>
+	 */
+	public Json resolve(Json top)
+	{
+		HGHandle h = node.getEntityInterface().entityReferenceToHandle(node, top);
+		if (h != null) // a reference by itself is wrapped so it has a container to be replaced in
+			return resolve(Json.array(top.dup())).at(0);
+		Json result = top.dup();
+		Map<HGPersistentHandle, Json> entities = new HashMap<HGPersistentHandle, Json>();
+		List<Item> level = new ArrayList<Item>();
+		level.add(new Item(result, ownHandle(result)));
+		for (int depth = 0; depth < maxDepth && !level.isEmpty(); depth++)
+		{
+			List<Slot> slots = new ArrayList<Slot>();
+			for (Item item : level)
+				collect(item.value, item.ancestors, slots);
+			Set<HGPersistentHandle> toRead = new LinkedHashSet<HGPersistentHandle>();
+			for (Slot slot : slots)
+				if (!entities.containsKey(slot.handle))
+					toRead.add(slot.handle);
+			if (!toRead.isEmpty())
+			{
+				List<HGPersistentHandle> handles = new ArrayList<HGPersistentHandle>(toRead);
+				List<Json> L = node.getMany(handles, parallelism);
+				for (int i = 0; i < handles.size(); i++)
+					entities.put(handles.get(i), L.get(i));
+			}
+			level = new ArrayList<Item>();
+			Map<HGPersistentHandle, Item> expansions = new HashMap<HGPersistentHandle, Item>();
+			for (Slot slot : slots)
+			{
+				Json entity = entities.get(slot.handle);
+				if (entity == null)
+					continue;
+				Item item = expansions.get(slot.handle);
+				if (item == null)
+				{
+					String [] paths = selections.get(DocumentCache.entityType(entity));
+					Json expanded = paths == null ? entity.dup() : Helpers.select(entity, paths);
+					item = new Item(expanded, new HashSet<HGPersistentHandle>());
+					item.ancestors.add(slot.handle);
+					expansions.put(slot.handle, item);
+					level.add(item);
+				}
+				// the expansion is shared by all references at this level, so a reference in it is 
+				// left as is when it would close a cycle through any of them
+				item.ancestors.addAll(slot.ancestors);
+				if (slot.name != null)
+					slot.container.set(slot.name, item.value);
+				else
+					slot.container.set(slot.index, item.value);
+			}
+		}
+		return result;
+	}
+}
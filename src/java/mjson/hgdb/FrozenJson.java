@@ -0,0 +1,256 @@
+package mjson.hgdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mjson.Json;
+
+/**
+ * <p>
+ * An immutable JSON value. All mutating methods throw an <code>UnsupportedOperationException</code>;
+ * to modify a frozen value, modify its {@link #dup()} which is a regular, mutable deep copy
+ * (copy-on-write). Because it never changes, a frozen value can be cached and read from any number
+ * of threads without synchronization and its nested values can be shared between several parents.
+ * For that reason, {@link #up()} is always <code>null</code>.
+ * </p>
+ *
+ * <p>
+ * Stored documents are obtained frozen with {@link HyperNodeJson#getFrozen(org.hypergraphdb.HGHandle)},
+ * which shares the frozen form of values that are stored once and referred to from several places.
+ * Frozen values can be passed to the node for writing, they are copied first.
+ * </p>
+ *
+ * <p>
+ * As with lazy JSON objects, a regular <code>Json</code> is never <code>equal</code> to a frozen
+ * value, while a frozen value is equal to a regular one with the same structure.
+ * </p>
+ */
+public final class FrozenJson extends Json
+{
+	private final Json value; // a private copy of a primitive
+	private final Map<String, Json> object;
+	private final List<Json> array;
+	private volatile String string = null;
+	private volatile Integer hash = null;
+
+	private FrozenJson(Json value, Map<String, Json> object, List<Json> array)
+	{
+		this.value = value;
+		this.object = object;
+		this.array = array;
+	}
+
+	/**
+	 * <p>Return an immutable deep copy of the given JSON value, or the value itself if it is already frozen.</p>
+	 */
+	public static FrozenJson freeze(Json j)
+	{
+		return freeze(j, null);
+	}
+
+	/**
+	 * Freeze a value, reusing the frozen form of any nested value found, by identity, in
+	 * <code>memo</code> and recording the new ones. The memo may be <code>null</code>.
+	 */
+	static FrozenJson freeze(Json j, Map<Json, FrozenJson> memo)
+	{
+		if (j instanceof FrozenJson)
+			return (FrozenJson)j;
+		FrozenJson frozen = memo == null ? null : memo.get(j);
+		if (frozen != null)
+			return frozen;
+		if (j.isObject())
+			frozen = object(j.asJsonMap(), memo);
+		else if (j.isArray())
+		{
+			List<Json> L = new ArrayList<Json>(j.asJsonList().size());
+			for (Json x : j.asJsonList())
+				L.add(freeze(x, memo));
+			frozen = new FrozenJson(null, null, Collections.unmodifiableList(L));
+		}
+		else
+			frozen = new FrozenJson(j.dup(), null, null);
+		if (memo != null)
+			memo.put(j, frozen);
+		return frozen;
+	}
+
+	/**
+	 * Freeze an object given its properties.
+	 */
+	static FrozenJson object(Map<String, Json> properties, Map<Json, FrozenJson> memo)
+	{
+		Map<String, Json> M = new LinkedHashMap<String, Json>();
+		for (Map.Entry<String, Json> e : properties.entrySet())
+			M.put(e.getKey(), freeze(e.getValue(), memo));
+		return new FrozenJson(null, Collections.unmodifiableMap(M), null);
+	}
+
+	private Json primitive()
+	{
+		if (value == null)
+			throw new UnsupportedOperationException();
+		return value;
+	}
+
+	private Map<String, Json> properties()
+	{
+		if (object == null)
+			throw new UnsupportedOperationException();
+		return object;
+	}
+
+	private List<Json> elements()
+	{
+		if (array == null)
+			throw new UnsupportedOperationException();
+		return array;
+	}
+
+	private static UnsupportedOperationException frozen()
+	{
+		return new UnsupportedOperationException("Frozen JSON can't be modified, modify its dup() instead.");
+	}
+
+	public boolean isNull() { return value != null && value.isNull(); }
+	public boolean isBoolean() { return value != null && value.isBoolean(); }
+	public boolean isString() { return value != null && value.isString(); }
+	public boolean isNumber() { return value != null && value.isNumber(); }
+	public boolean isPrimitive() { return value != null && value.isPrimitive(); }
+	public boolean isObject() { return object != null; }
+	public boolean isArray() { return array != null; }
+
+	public boolean asBoolean() { return primitive().asBoolean(); }
+	public String asString() { return primitive().asString(); }
+	public int asInteger() { return primitive().asInteger(); }
+	public float asFloat() { return primitive().asFloat(); }
+	public double asDouble() { return primitive().asDouble(); }
+	public long asLong() { return primitive().asLong(); }
+	public short asShort() { return primitive().asShort(); }
+	public byte asByte() { return primitive().asByte(); }
+	public char asChar() { return primitive().asChar(); }
+
+	public Json up() { return null; }
+
+	public Json at(String property)
+	{
+		return properties().get(property);
+	}
+
+	public Json at(String property, Json def)
+	{
+		Json x = at(property);
+		return x == null ? def : x;
+	}
+
+	public Json at(int index)
+	{
+		return elements().get(index);
+	}
+
+	public boolean has(String property)
+	{
+		return object != null && object.containsKey(property);
+	}
+
+	public boolean is(String property, Object value)
+	{
+		Json x = object == null ? null : object.get(property);
+		return x != null && x.equals(make(value));
+	}
+
+	public boolean is(int index, Object value)
+	{
+		return array != null && index < array.size() && array.get(index).equals(make(value));
+	}
+
+	public Map<String, Json> asJsonMap() { return properties(); }
+	public List<Json> asJsonList() { return elements(); }
+
+	public Map<String, Object> asMap()
+	{
+		Map<String, Object> M = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Json> e : properties().entrySet())
+			M.put(e.getKey(), e.getValue().getValue());
+		return M;
+	}
+
+	public List<Object> asList()
+	{
+		List<Object> L = new ArrayList<Object>(elements().size());
+		for (Json x : array)
+			L.add(x.getValue());
+		return L;
+	}
+
+	public Object getValue()
+	{
+		if (object != null)
+			return asMap();
+		else if (array != null)
+			return asList();
+		else
+			return value.getValue();
+	}
+
+	/**
+	 * <p>Return a regular, mutable deep copy of this value.</p>
+	 */
+	public Json dup()
+	{
+		if (object != null)
+		{
+			Json j = Json.object();
+			for (Map.Entry<String, Json> e : object.entrySet())
+				j.set(e.getKey(), e.getValue().dup());
+			return j;
+		}
+		else if (array != null)
+		{
+			Json j = Json.array();
+			for (Json x : array)
+				j.add(x.dup());
+			return j;
+		}
+		else
+			return value.dup();
+	}
+
+	public Json set(String property, Json value) { throw frozen(); }
+	public Json set(int index, Object value) { throw frozen(); }
+	public Json add(Json el) { throw frozen(); }
+	public Json remove(Json el) { throw frozen(); }
+	public Json atDel(String property) { throw frozen(); }
+	public Json atDel(int index) { throw frozen(); }
+	public Json delAt(String property) { throw frozen(); }
+	public Json delAt(int index) { throw frozen(); }
+	public Json with(Json other, Json[] options) { throw frozen(); }
+
+	public String toString()
+	{
+		if (string == null)
+			string = dup().toString();
+		return string;
+	}
+
+	public String toString(int maxCharacters) { return dup().toString(maxCharacters); }
+
+	public int hashCode()
+	{
+		if (hash == null)
+			hash = dup().hashCode();
+		return hash;
+	}
+
+	public boolean equals(Object x)
+	{
+		if (x == this)
+			return true;
+		if (x instanceof FrozenJson)
+			return hashCode() == x.hashCode() && dup().equals(((FrozenJson)x).dup());
+		return x instanceof Json && dup().equals(x);
+	}
+}
@@ -1,22 +1,33 @@
 package mjson.hgdb;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringTokenizer;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 
 import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGPersistentHandle;
 import org.hypergraphdb.HGQuery;
 import org.hypergraphdb.HGRandomAccessResult;
 import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HGSortIndex;
+import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.query.And;
+import org.hypergraphdb.query.HGQueryCondition;
+import org.hypergraphdb.query.Or;
 import org.hypergraphdb.query.impl.FilteredResultSet;
+import org.hypergraphdb.query.impl.HandleArrayResultSet;
 import org.hypergraphdb.query.impl.KeyBasedQuery;
 import org.hypergraphdb.query.impl.PipedResult;
 import org.hypergraphdb.util.HGUtils;
@@ -24,6 +35,7 @@ import org.hypergraphdb.util.Mapping;
 
 import mjson.Json;
 import mjson.hgdb.querying.CrossProductResultSet;
+import mjson.hgdb.querying.IncidenceJoin;
 
 /**
  * <p>
@@ -48,17 +60,32 @@ class HGJsonQuery
     
     static double keywordScore(String text, String[] keywords)
     {
-        StringTokenizer tokenizer = new StringTokenizer(text, " \t,.;?!~`@#$%^&*()-_+=\"[]{}:'<>/\\\n\r", false);
+        List<String> tokens = ByJsonTextIndexer.tokens(text);
         int cnt = 0;
-        int total = 0;
-        while (tokenizer.hasMoreTokens())
-        {
+        for (String token : tokens)
             for (int i = 0; i < keywords.length; i++)
-                if (keywords[i].equalsIgnoreCase(tokenizer.nextToken()))
+                if (keywords[i].equalsIgnoreCase(token))
+                {
                     cnt++;
-            total++;
+                    break;
+                }
+        return tokens.isEmpty() ? 0 : (double)cnt/(double)tokens.size();
+    }
+    
+    /**
+     * Return the index terms a keyword match can be satisfied by: the lower case keywords that
+     * are words by themselves, since a keyword containing delimiters never equals a word of the text.
+     */
+    static List<String> keywordTerms(String [] keywords)
+    {
+        List<String> terms = new ArrayList<String>();
+        for (String keyword : keywords)
+        {
+            List<String> tokens = ByJsonTextIndexer.tokens(keyword);
+            if (tokens.size() == 1 && tokens.get(0).equals(keyword.toLowerCase(Locale.ROOT)))
+                terms.add(tokens.get(0));
         }
-        return (double)cnt/(double)total;
+        return terms;
     }
     
     /**
@@ -185,13 +212,380 @@ class HGJsonQuery
         return new PropertyOr(values);
     }
     
+    /**
+     * A comparison of a property value with constant bounds, collected from all the <code>&gt;</code>, 
+     * <code>&gt;=</code>, <code>&lt;</code>, <code>&lt;=</code> and <code>between</code> operators
+     * on the same property. Bounds are either numbers or strings, a missing bound is <code>null</code>.
+     */
+    static class RangeCondition
+    {
+        String property;
+        Json lower = null, upper = null;
+        boolean lowerInclusive = false, upperInclusive = false;
+        
+        RangeCondition(String property) { this.property = property; }
+        
+        private void check(Json bound, Json existing, Json other)
+        {
+            if (!bound.isNumber() && !bound.isString())
+                throw new IllegalArgumentException("Comparison on property " + property + 
+                                                   " with a value that is not a number or a string: " + bound);
+            if (existing != null)
+                throw new IllegalArgumentException("Duplicate bound for property " + property);
+            if (other != null && other.isNumber() != bound.isNumber())
+                throw new IllegalArgumentException("Comparing property " + property + " with both a number and a string.");
+        }
+        
+        void lower(Json bound, boolean inclusive)
+        {
+            check(bound, lower, upper);
+            lower = bound;
+            lowerInclusive = inclusive;
+        }
+        
+        void upper(Json bound, boolean inclusive)
+        {
+            check(bound, upper, lower);
+            upper = bound;
+            upperInclusive = inclusive;
+        }
+        
+        boolean isNumeric()
+        {
+            return (lower != null ? lower : upper).isNumber();
+        }
+        
+        /**
+         * Whether values of the given type, stored or indexed, can be compared with the bounds.
+         * Only double keys have infinities.
+         */
+        boolean comparable(HGHandle type)
+        {
+            if (!isNumeric())
+                return JsonTypeSchema.stringTypeHandle.equals(type);
+            else if (JsonTypeSchema.numberTypeHandle.equals(type))
+                return true;
+            return JsonNumbers.isNumberType(type) && 
+                   (lower == null || JsonNumbers.decimal(lower) != null) &&
+                   (upper == null || JsonNumbers.decimal(upper) != null);
+        }
+        
+        /**
+         * Return a bound as a key of the given type, or <code>null</code> if no value of that type
+         * is within the bound. Long bounds are rounded towards the range and become inclusive
+         * when rounded. Double bounds that are rounded become inclusive when rounded towards the range
+         * and exclusive otherwise.
+         */
+        static Bound bound(Json value, boolean inclusive, boolean lower, HGHandle type)
+        {
+            if (value.isString())
+                return new Bound(value.asString(), inclusive);
+            else if (JsonTypeSchema.numberTypeHandle.equals(type))
+            {
+                double x = value.asDouble();
+                BigDecimal d = JsonNumbers.decimal(value);
+                int c = d == null || Double.isInfinite(x) ? 0 : new BigDecimal(x).compareTo(d);
+                return new Bound(x, c == 0 ? inclusive : (c > 0) == lower);
+            }
+            BigDecimal d = JsonNumbers.decimal(value);
+            if (JsonTypeSchema.decimalTypeHandle.equals(type))
+                return new Bound(JsonNumbers.canonical(d), inclusive);
+            BigDecimal rounded = d.setScale(0, lower ? RoundingMode.CEILING : RoundingMode.FLOOR);
+            inclusive |= rounded.compareTo(d) != 0;
+            if (rounded.compareTo(LONG_MAX) > 0)
+                return lower ? null : new Bound(Long.MAX_VALUE, true);
+            else if (rounded.compareTo(LONG_MIN) < 0)
+                return lower ? new Bound(Long.MIN_VALUE, true) : null;
+            return new Bound(rounded.longValueExact(), inclusive);
+        }
+        
+        /**
+         * The condition selecting the atoms of the given primitive type within the range or
+         * <code>null</code> if there can't be any.
+         */
+        HGQueryCondition valueCondition(HGHandle type)
+        {
+            And and = hg.and(hg.type(type));
+            if (lower != null)
+            {
+                Bound b = bound(lower, lowerInclusive, true, type);
+                if (b == null)
+                    return null;
+                and.add(b.inclusive ? hg.gte(b.key) : hg.gt(b.key));
+            }
+            if (upper != null)
+            {
+                Bound b = bound(upper, upperInclusive, false, type);
+                if (b == null)
+                    return null;
+                and.add(b.inclusive ? hg.lte(b.key) : hg.lt(b.key));
+            }
+            return and;
+        }
+        
+        /**
+         * The condition selecting the numbers within the range that an index with keys of the given 
+         * type doesn't hold, or <code>null</code> if it holds them all: integers of magnitude 2^53 or 
+         * more and decimals for a double index, doubles and decimals for a long index. See
+         * {@link ByJsonPropertyIndexer#valueKey(Json)}.
+         */
+        HGQueryCondition uncoveredCondition(HGHandle indexType)
+        {
+            Or or = hg.or();
+            boolean any = false;
+            if (JsonTypeSchema.numberTypeHandle.equals(indexType))
+            {
+                HGQueryCondition longs = comparable(JsonTypeSchema.longTypeHandle) ? 
+                    valueCondition(JsonTypeSchema.longTypeHandle) : null;
+                if (longs != null)
+                {
+                    or.add(hg.and(longs, hg.gte(JsonNumbers.MAX_EXACT_DOUBLE)));
+                    or.add(hg.and(longs, hg.lte(-JsonNumbers.MAX_EXACT_DOUBLE)));
+                    any = true;
+                }
+            }
+            else if (JsonTypeSchema.longTypeHandle.equals(indexType))
+            {
+                HGQueryCondition doubles = valueCondition(JsonTypeSchema.numberTypeHandle);
+                if (doubles != null)
+                {
+                    or.add(doubles);
+                    any = true;
+                }
+            }
+            else
+                return null;
+            HGQueryCondition decimals = comparable(JsonTypeSchema.decimalTypeHandle) ? 
+                valueCondition(JsonTypeSchema.decimalTypeHandle) : null;
+            if (decimals != null)
+            {
+                or.add(decimals);
+                any = true;
+            }
+            return any ? or : null;
+        }
+        
+        /**
+         * The condition selecting all JSON primitive atoms within the range: numbers are
+         * looked up among all number types.
+         */
+        HGQueryCondition valueCondition()
+        {
+            if (!isNumeric())
+                return valueCondition(JsonTypeSchema.stringTypeHandle);
+            Or or = hg.or();
+            for (HGHandle type : new HGHandle[] { JsonTypeSchema.numberTypeHandle, 
+                                                  JsonTypeSchema.longTypeHandle, 
+                                                  JsonTypeSchema.decimalTypeHandle })
+            {
+                HGQueryCondition c = comparable(type) ? valueCondition(type) : null;
+                if (c != null)
+                    or.add(c);
+            }
+            return or;
+        }
+    }
+    
+    static final BigDecimal LONG_MAX = BigDecimal.valueOf(Long.MAX_VALUE), LONG_MIN = BigDecimal.valueOf(Long.MIN_VALUE);
+    
+    /**
+     * A range bound as an index or value key.
+     */
+    static final class Bound
+    {
+        final Object key;
+        final boolean inclusive;
+        
+        Bound(Object key, boolean inclusive)
+        {
+            this.key = key;
+            this.inclusive = inclusive;
+        }
+    }
+    
+    /**
+     * Remove all properties with a comparison operator from the pattern and return the
+     * corresponding conditions. The operators are suffixes of the property name:
+     * <code>&gt;</code>, <code>&gt;=</code>, <code>&lt;</code> and <code>&lt;=</code> with a number
+     * or a string value, and <code>between</code> (separated by a space) with a 
+     * <code>[lower, upper]</code> array value, both bounds being inclusive.
+     */
+    static Collection<RangeCondition> collectRanges(Json pattern)
+    {
+        Map<String, RangeCondition> ranges = new HashMap<String, RangeCondition>();
+        for (String name : new ArrayList<String>(pattern.asJsonMap().keySet()))
+        {
+            if (!Character.isLetter(name.charAt(0))) // a property group, see collectMaps
+                continue;
+            String op = null;
+            for (String candidate : new String[] { " between", ">=", "<=", ">", "<" })
+                if (name.endsWith(candidate))
+                {
+                    op = candidate.trim();
+                    break;
+                }
+            if (op == null)
+                continue;
+            String property = name.substring(0, name.length() - op.length()).trim();
+            RangeCondition range = ranges.get(property);
+            if (range == null)
+            {
+                range = new RangeCondition(property);
+                ranges.put(property, range);
+            }
+            Json value = pattern.atDel(name);
+            if (op.equals("between"))
+            {
+                if (!value.isArray() || value.asJsonList().size() != 2)
+                    throw new IllegalArgumentException("Expecting a [lower, upper] array for " + name + ", got " + value);
+                range.lower(value.at(0), true);
+                range.upper(value.at(1), true);
+            }
+            else if (op.startsWith(">"))
+                range.lower(value, op.endsWith("="));
+            else
+                range.upper(value, op.endsWith("="));
+        }
+        return ranges.values();
+    }
+    
+    /**
+     * Return the join operands for objects satisfying a range condition or <code>null</code> if 
+     * no object can. If the property has an ordered index of the right type, the operand is a
+     * single scan of the index keys within the bounds, see {@link #scanRange(HGIndex, Bound, Bound)},
+     * together with the objects whose numbers the index doesn't hold (see 
+     * {@link RangeCondition#uncoveredCondition(HGHandle)}), found as without an index. Otherwise the values within the range are found through the ordered value
+     * index of the JSON number or string type, and the operand consists of the objects incident
+     * to the properties with those values.
+     */
+    @SuppressWarnings("unchecked")
+    static List<IncidenceJoin.Operand> rangeOperands(HyperNodeJson node, final RangeCondition range)
+    {
+        List<IncidenceJoin.Operand> operands = new ArrayList<IncidenceJoin.Operand>();
+        ByJsonPropertyIndexer indexer = node.getIndexer(range.property);
+        HGIndex<Object, HGPersistentHandle> index = node.getIndex(range.property);
+        if (indexer != null && range.comparable(indexer.getPropertyType()) && index instanceof HGSortIndex)
+        {
+            final Bound lower = range.lower == null ? null : 
+            	RangeCondition.bound(range.lower, range.lowerInclusive, true, indexer.getPropertyType());
+            final Bound upper = range.upper == null ? null : 
+            	RangeCondition.bound(range.upper, range.upperInclusive, false, indexer.getPropertyType());
+            if ((range.lower != null && lower == null) || (range.upper != null && upper == null))
+            	return null;
+            HGQueryCondition uncovered = range.isNumeric() && !ByJsonPathIndexer.isPath(range.property) ? 
+            	range.uncoveredCondition(indexer.getPropertyType()) : null;
+            HGHandle name = uncovered == null ? null : node.lookupName(range.property);
+            final List<HGHandle> properties = name == null ? 
+            	Collections.<HGHandle>emptyList() : rangeProperties(node, name, uncovered);
+            operands.add(new IncidenceJoin.MaterializedResult(range.property) {
+                protected HGSearchResult<? extends HGHandle> execute(HyperGraph graph)
+                {
+                    HGHandle [] indexed = scanRange(index, lower, upper);
+                    if (properties.isEmpty())
+                        return new HandleArrayResultSet(indexed);
+                    TreeSet<HGPersistentHandle> atoms = new TreeSet<HGPersistentHandle>();
+                    for (HGHandle h : indexed)
+                        atoms.add(h.getPersistent());
+                    for (HGHandle property : properties)
+                        for (HGHandle h : collect(graph.getIncidenceSet(property).getSearchResult()))
+                            atoms.add(h.getPersistent());
+                    return new HandleArrayResultSet(atoms.toArray(new HGHandle[atoms.size()]));
+                }
+            });
+            return operands;
+        }
+        HGHandle name = node.lookupName(range.property);
+        if (name == null)
+            return null;
+        List<HGHandle> properties = rangeProperties(node, name, range.valueCondition());
+        if (properties.isEmpty())
+            return null;
+        operands.add(new IncidenceJoin.IncidentToAny(range.property, properties));
+        return operands;
+    }
+    
+    /**
+     * Return the property links from the property name <code>name</code> to the values satisfying
+     * a condition.
+     */
+    static List<HGHandle> rangeProperties(HyperNodeJson node, HGHandle name, HGQueryCondition valueCondition)
+    {
+        List<HGHandle> properties = new ArrayList<HGHandle>();
+        for (HGHandle value : collect(node.graph().<HGHandle>find(valueCondition)))
+        {
+            HGHandle property = node.findProperty(name, value);
+            if (property != null)
+                properties.add(property);
+        }
+        return properties;
+    }
+    
+    /**
+     * Return the atoms indexed under a key within the bounds, either of which may be <code>null</code>,
+     * each atom once. The keys are scanned once, in order, from the lower bound on and stopping past 
+     * the upper bound. An object indexed under several keys, e.g. by all the elements of an array, 
+     * is found when at least one of them is within the bounds.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    static HGHandle [] scanRange(HGIndex<Object, HGPersistentHandle> index, Bound lower, Bound upper)
+    {
+        TreeSet<HGPersistentHandle> atoms = new TreeSet<HGPersistentHandle>();
+        HGRandomAccessResult<Object> keys = index.scanKeys();
+        try
+        {
+            boolean positioned;
+            if (lower == null)
+            {
+                positioned = keys.hasNext();
+                if (positioned)
+                    keys.next();
+            }
+            else
+                positioned = keys.goTo(lower.key, false) != HGRandomAccessResult.GotoResult.nothing;
+            while (positioned)
+            {
+                Comparable key = (Comparable)keys.current();
+                if (upper != null)
+                {
+                    int c = key.compareTo(upper.key);
+                    if (c > 0 || (c == 0 && !upper.inclusive))
+                        break;
+                }
+                if (lower == null || lower.inclusive || key.compareTo(lower.key) != 0)
+                {
+                    HGSearchResult<HGPersistentHandle> rs = index.find(key);
+                    try
+                    {
+                        while (rs.hasNext())
+                            atoms.add(rs.next());
+                    }
+                    finally
+                    {
+                        HGUtils.closeNoException(rs);
+                    }
+                }
+                positioned = keys.hasNext();
+                if (positioned)
+                    keys.next();
+            }
+        }
+        finally
+        {
+            HGUtils.closeNoException(keys);
+        }
+        return atoms.toArray(new HGHandle[atoms.size()]);
+    }
+    
     @SuppressWarnings("unchecked")
     static Collection<ItemMap> collectMaps(Json pattern)
     {
         Set<ItemMap> S = new HashSet<ItemMap>();
-        for (Map.Entry<String, Json> e : pattern.asJsonMap().entrySet())
+        // Iterate over a copy since operator properties are removed from the pattern as we go.
+        for (String name : new ArrayList<String>(pattern.asJsonMap().keySet()))
         {
-            String name = e.getKey();
+            if (!pattern.has(name)) // removed as part of a property group
+                continue;
+            Json value = pattern.at(name);
             // If name starts with an operator, it spans multiple properties
             if (!Character.isLetter(name.charAt(0)))
             {
@@ -206,15 +600,15 @@ class HGJsonQuery
             String op = name.substring(at + 1);
             if (op.equals("~="))
             {
-                S.add(new RegExFilter(name.substring(0, at + 1), e.getValue().asString()));
+                S.add(new RegExFilter(name.substring(0, at + 1), value.asString()));
             }
             else if (op.equals("@="))
             {
                 String [] keywords = null;
-                if (e.getValue().isString())
-                    keywords = e.getValue().asString().split("[ \t,]+");
-                else if (e.getValue().isArray())
-                    keywords = (String[])((List<String>)e.getValue().getValue()).toArray(new String[0]);
+                if (value.isString())
+                    keywords = value.asString().split("[ \t,]+");
+                else if (value.isArray())
+                    keywords = (String[])((List<String>)value.getValue()).toArray(new String[0]);
                 if (keywords.length > 0)
                     S.add(new KeywordMatch(name.substring(0, at + 1), keywords, false));
             }
@@ -227,92 +621,306 @@ class HGJsonQuery
         return S;
     }
     
-    @SuppressWarnings("unchecked")
 	static HGSearchResult<HGHandle> findExactObject(final HyperNodeJson node, Json j)
+	{
+		return findExactObject(node, j, null);
+	}
+	
+    @SuppressWarnings("unchecked")
+	static HGSearchResult<HGHandle> findExactObject(final HyperNodeJson node, Json j, QueryTrace trace)
     {
     	if (!j.isObject())
     		return (HGSearchResult<HGHandle>) HGSearchResult.EMPTY; 
-    	
+    	if (trace != null)
+    		trace.strategy("exact-link");
         HGHandle [] A = new HGHandle[j.asJsonMap().size()];
         int i = 0;
         for (Map.Entry<String, Json> e : j.asJsonMap().entrySet())
         {
         	HGHandle propHandle = node.findProperty(e.getKey(), e.getValue());
+        	if (trace != null)
+        	{
+        		trace.linkQueries.incrementAndGet();
+        		Json stage = trace.stage("exact-property", e.getKey());
+        		if (propHandle == null)
+        			trace.empty(stage);
+        	}
         	if (propHandle == null)
         		return (HGSearchResult<HGHandle>) HGSearchResult.EMPTY;
             A[i++] = propHandle;
         }
+        List<HGHandle> matches = node.findStructure(JsonTypeSchema.objectTypeHandle, A);
+        if (matches != null)
+        {
+        	if (trace != null)
+        		trace.stage("structure-index", "object").set("candidates", matches.size());
+        	return new HandleArrayResultSet(matches.toArray(new HGHandle[matches.size()]));
+        }
+        if (trace != null)
+        	trace.linkQueries.incrementAndGet();
         return node.graph().find(hg.and(hg.type(JsonTypeSchema.objectTypeHandle), 
 		                                hg.link(A), 
 		                                 hg.arity(i)));
     }
     
-    @SuppressWarnings("unchecked")
     static HGSearchResult<HGHandle> findObjectPattern(final HyperNodeJson node, Json pattern, final boolean exact)
+    {
+    	return findObjectPattern(node, pattern, exact, null);
+    }
+    
+    /**
+     * A non-exact object pattern broken down into the plain properties to look up, the
+     * filters and the range conditions of its operator properties. Once constructed, it
+     * is not modified and can be executed any number of times, concurrently.
+     */
+    static class ObjectPattern
+    {
+        final Map<String, Json> properties;
+        final Collection<ItemMap> maps;
+        final Collection<RangeCondition> ranges;
+        
+        ObjectPattern(Map<String, Json> properties, Collection<ItemMap> maps, Collection<RangeCondition> ranges)
+        {
+            this.properties = properties;
+            this.maps = maps;
+            this.ranges = ranges;
+        }
+        
+        /**
+         * Parse a pattern, which is modified in the process: only its plain properties remain.
+         */
+        static ObjectPattern parse(Json pattern)
+        {
+            Collection<RangeCondition> ranges = collectRanges(pattern);
+            Collection<ItemMap> maps = collectMaps(pattern);
+            return new ObjectPattern(pattern.asJsonMap(), maps, ranges);
+        }
+    }
+    
+    /**
+     * Find objects matching a pattern. If <code>trace</code> is not <code>null</code>,
+     * the plan of the query is recorded in it.
+     */
+    static HGSearchResult<HGHandle> findObjectPattern(final HyperNodeJson node, Json pattern, final boolean exact, final QueryTrace trace)
     {
     	if (exact)
-    		return findExactObject(node, pattern);
-        pattern = pattern.dup();        
+    		return findExactObject(node, pattern, trace);
+    	return findObjectPattern(node, ObjectPattern.parse(pattern.dup()), trace);
+    }
+    
+    /**
+     * Find objects matching a parsed, non-exact pattern.
+     */
+    @SuppressWarnings("unchecked")
+    static HGSearchResult<HGHandle> findObjectPattern(final HyperNodeJson node, ObjectPattern pattern, final QueryTrace trace)
+    {
+        Collection<RangeCondition> ranges = pattern.ranges;
         Mapping<HGHandle, Boolean> themap = null;
-        if (!exact)
-        {
-	        final Collection<ItemMap> maps = collectMaps(pattern);
-	        if (!maps.isEmpty())
-	        {
-	            themap = new Mapping<HGHandle, Boolean>()
-	            {
-	                public Boolean eval(HGHandle h)
-	                {
-	                    Json j = node.get(h);
-	                    for (ItemMap m : maps)
-	                    {
-	                        j = m.eval(j);
-	                        if (j.isNull())
-	                            return false;
-	                    }
-	                    return true;
-	                }
-	            };
-	        }
-        }
-        HGSearchResult<HGHandle> [] propertyCandidates = new HGSearchResult[pattern.asJsonMap().size()];
-        int i = 0;
-        for (Map.Entry<String, Json> e : pattern.asJsonMap().entrySet())
+        // Keyword matches on a property with a full-text index are answered by its postings
+        // instead of a filter, which is kept only to assign scores.
+        final Collection<ItemMap> maps = new ArrayList<ItemMap>();
+        List<IncidenceJoin.Operand> keywordOperands = new ArrayList<IncidenceJoin.Operand>();
+        for (ItemMap m : pattern.maps)
         {
-        	for (JsonProperty prop : findAllProperties(node, e.getKey(), e.getValue()))
-        		System.out.println(node.get(prop.getName()) + " = " + node.get(prop.getValue()));
-        	propertyCandidates[i] = node.findPropertyPattern(e.getKey(), e.getValue());
-        	if (!propertyCandidates[i].hasNext())
+        	final ByJsonTextIndexer textIndexer = m instanceof KeywordMatch ? node.getTextIndexer(((KeywordMatch)m).property) : null;
+        	final HGIndex<String, HGPersistentHandle> textIndex = textIndexer == null ? null : node.getTextIndex(textIndexer.getPropertyName());
+        	if (textIndex == null)
         	{
-        		for (int j = i; j >= 0; j--)
-        			HGUtils.closeNoException(propertyCandidates[j]);
-        		propertyCandidates = null;
-        		break;
+        		maps.add(m);
+        		continue;
         	}
-        	i++;
-        }
-        if (propertyCandidates != null)        	
-        {
-            HGSearchResult<HGHandle> rs = new PipedResult<List<HGHandle>, HGHandle>(
-            	new CrossProductResultSet<HGHandle>(propertyCandidates),
-            	new AbstractKeyBasedQuery<List<HGHandle>, HGHandle>()
-            	{
-        			public HGSearchResult<HGHandle> execute()
-        			{
-        				And and = hg.and(hg.type(JsonTypeSchema.objectTypeHandle), hg.link(getKey()));
-        				return node.find(and); 
-        			} 
-            	},
-            	true
-            ); 
-            if (themap == null)
-                return rs;
-            else
-                return new FilteredResultSet<HGHandle>(rs, themap, 0);
+        	else if (((KeywordMatch)m).assignScore)
+        		maps.add(m);
+        	final List<String> terms = keywordTerms(((KeywordMatch)m).keywords);
+        	if (terms.isEmpty())
+        		return (HGSearchResult<HGHandle>) HGSearchResult.EMPTY;
+        	keywordOperands.add(new IncidenceJoin.MaterializedResult(textIndexer.getPropertyName()) {
+        		protected HGSearchResult<? extends HGHandle> execute(HyperGraph graph)
+        		{
+        			return new HandleArrayResultSet(textIndexer.postings(textIndex, terms));
+        		}
+        	});
+        	if (trace != null)
+        		trace.stage("text-index", textIndexer.getPropertyName()).set("terms", Json.make(terms));
+        }
+        if (!maps.isEmpty())
+        {
+            themap = new Mapping<HGHandle, Boolean>()
+            {
+                public Boolean eval(HGHandle h)
+                {
+                    Json j = node.getImpl(h);
+                    for (ItemMap m : maps)
+                    {
+                        j = m.eval(j);
+                        if (j.isNull())
+                            return false;
+                    }
+                    return true;
+                }
+            };
+            if (trace != null)
+            {
+            	for (ItemMap m : maps)
+            		trace.stage("filter", m.getClass().getSimpleName());
+            	final Mapping<HGHandle, Boolean> filter = themap;
+            	themap = new Mapping<HGHandle, Boolean>() {
+            		public Boolean eval(HGHandle h)
+            		{
+            			trace.filterChecks.incrementAndGet();
+            			Boolean accepted = filter.eval(h);
+            			if (!accepted)
+            				trace.filterRejections.incrementAndGet();
+            			return accepted;
+            		}
+            	};
+            }
+        }
+        if (trace != null)
+        	trace.strategy("incidence-join");
+        JsonMetrics tupleCounter = trace == null ? node.getMetrics() : trace.tupleCounter;
+        IncidenceJoin join = new IncidenceJoin(node.graph(), JsonTypeSchema.objectTypeHandle);
+        for (Map.Entry<String, Json> e : pattern.properties.entrySet())
+        {
+        	long start = System.nanoTime();
+        	IncidenceJoin.Operand indexed = indexLookup(node, e.getKey(), e.getValue());
+        	if (indexed != null)
+        	{
+        		join.add(indexed);
+        		if (trace != null)
+        			trace.stage("index", e.getKey()).set("key", Json.make(((IncidenceJoin.IndexLookup)indexed).getKey()));
+        		continue;
+        	}
+        	if (e.getValue().isObject() && nestedIndexLookups(node, e.getKey(), e.getValue(), join))
+        	{
+        		if (trace != null)
+        			trace.stage("nested-index", e.getKey());
+        		continue;
+        	}
+        	long tuples = trace == null ? 0 : trace.tuples.get();
+        	List<HGHandle> properties = collect(node.findPropertyPattern(e.getKey(), e.getValue(), tupleCounter));
+        	if (trace != null)
+        	{
+        		Json stage = trace.stage("property-pattern", e.getKey())
+        						  .set("tuples", trace.tuples.get() - tuples)
+        						  .set("candidates", properties.size())
+        						  .set("millis", QueryTrace.millis(start));
+        		if (properties.isEmpty())
+        			trace.empty(stage);
+        	}
+        	if (properties.isEmpty())
+        		return (HGSearchResult<HGHandle>) HGSearchResult.EMPTY;
+        	join.add(e.getKey(), properties);
+        }
+        for (RangeCondition range : ranges)
+        {
+        	long start = System.nanoTime();
+        	List<IncidenceJoin.Operand> operands = rangeOperands(node, range);
+        	if (trace != null)
+        	{
+        		Json stage = trace.stage("range", range.property).set("millis", QueryTrace.millis(start));
+        		if (operands == null)
+        			trace.empty(stage);
+        		else if (operands.get(0) instanceof IncidenceJoin.IncidentToAny)
+        			stage.set("candidates", ((IncidenceJoin.IncidentToAny)operands.get(0)).getTargets().size());
+        		else 
+        			stage.set("kind", "range-index");
+        	}
+        	if (operands == null)
+        		return (HGSearchResult<HGHandle>) HGSearchResult.EMPTY;
+        	for (IncidenceJoin.Operand operand : operands)
+        		join.add(operand);
+        }
+        for (IncidenceJoin.Operand operand : keywordOperands)
+        	join.add(operand);
+        HGSearchResult<HGHandle> rs;
+        if (pattern.properties.isEmpty() && ranges.isEmpty() && keywordOperands.isEmpty())
+        {
+        	if (trace != null)
+        		trace.strategy("all-objects");
+        	rs = join.all();
         }
         else
-            return (HGSearchResult<HGHandle>) HGSearchResult.EMPTY;
-        
+        {
+        	if (trace != null)
+        	{
+        		Json order = Json.array();
+        		for (IncidenceJoin.Operand operand : join.plan())
+        			order.add(Json.object("label", operand.getLabel(), "estimate", operand.getEstimate(node.graph())));
+        		trace.plan.set("joinOrder", order);
+        	}
+        	rs = join.execute();
+        }
+        if (themap == null)
+            return rs;
+        else
+            return new FilteredResultSet<HGHandle>(rs, themap, 0);
+    }
+    
+    /**
+     * Return an index lookup for objects whose property <code>name</code> has the given value or
+     * <code>null</code> if there's no index on that property applicable to the value.
+     */
+    static IncidenceJoin.Operand indexLookup(HyperNodeJson node, String name, Json value)
+    {
+    	ByJsonPropertyIndexer indexer = node.getIndexer(name);
+    	if (indexer == null || !value.isPrimitive() || 
+    		node.getEntityInterface().entityReferenceToHandle(node, value) != null)
+    		return null;
+    	// numbers a double index can't hold exactly have no key, they're looked up without the index
+    	Object key = indexer.valueKey(value);
+    	HGIndex<Object, HGPersistentHandle> index = node.getIndex(name);
+    	return key == null || index == null ? null : new IncidenceJoin.IndexLookup(name, index, key);
+    }
+    
+    /**
+     * Add index lookups to the join for the primitive values in a nested object pattern 
+     * when their paths (e.g. <code>address.city</code>) are indexed. Return <code>true</code>
+     * if every value was covered by an index so the nested pattern doesn't need to be matched
+     * otherwise and <code>false</code> if the nested pattern must still be matched as a whole.
+     */
+    static boolean nestedIndexLookups(HyperNodeJson node, String path, Json value, IncidenceJoin join)
+    {
+    	List<IncidenceJoin.Operand> lookups = new ArrayList<IncidenceJoin.Operand>();
+    	boolean covered = nestedIndexLookups(node, path, value, lookups) && !lookups.isEmpty();
+    	for (IncidenceJoin.Operand lookup : lookups)
+    		join.add(lookup);
+    	return covered;
+    }
+    
+    private static boolean nestedIndexLookups(HyperNodeJson node, String path, Json value, List<IncidenceJoin.Operand> lookups)
+    {
+    	boolean covered = true;
+    	for (Map.Entry<String, Json> e : value.asJsonMap().entrySet())
+    	{
+    		String subpath = path + "." + e.getKey();
+    		IncidenceJoin.Operand lookup = indexLookup(node, subpath, e.getValue());
+    		if (lookup != null)
+    			lookups.add(lookup);
+    		else if (e.getValue().isObject() && !e.getValue().asJsonMap().isEmpty())
+    			covered &= nestedIndexLookups(node, subpath, e.getValue(), lookups);
+    		else 
+    			covered = false;
+    	}
+    	return covered;
+    }
+    
+    /**
+     * Drain a result set into a list and close it. 
+     */
+    static List<HGHandle> collect(HGSearchResult<HGHandle> rs)
+    {
+    	List<HGHandle> L = new ArrayList<HGHandle>();
+    	try
+    	{
+    		while (rs.hasNext())
+    			L.add(rs.next());
+    	}
+    	finally
+    	{
+    		HGUtils.closeNoException(rs);
+    	}
+    	return L;
     }
     
 	@SuppressWarnings("unchecked")
@@ -324,6 +932,19 @@ class HGJsonQuery
 	public static <T> HGSearchResult<T> pipeCrossProductToCompiledQuery(
 			final CrossProductResultSet<T> crossProduct,
 			final HGQuery<T> compiledQuery, final String... varnames)
+	{
+		return pipeCrossProductToCompiledQuery(crossProduct, compiledQuery, JsonMetrics.NOOP, varnames);
+	}
+	
+	/**
+	 * Same as {@link #pipeCrossProductToCompiledQuery(CrossProductResultSet, HGQuery, String...)}, 
+	 * counting the enumerated tuples in the passed in <code>metrics</code>.
+	 */
+	public static <T> HGSearchResult<T> pipeCrossProductToCompiledQuery(
+			final CrossProductResultSet<T> crossProduct,
+			final HGQuery<T> compiledQuery, 
+			final JsonMetrics metrics,
+			final String... varnames)
 	{
 		KeyBasedQuery<List<T>, T> propQuery = new KeyBasedQuery<List<T>, T>()
 		{
@@ -343,6 +964,7 @@ class HGJsonQuery
 			@Override
 			public HGSearchResult<T> execute()
 			{
+				metrics.count(JsonMetrics.Counter.CROSS_PRODUCT_TUPLES, 1);
 				for (int i = 0; i < varnames.length; i++)
 					compiledQuery.var(varnames[i], key.get(i));
 				return compiledQuery.execute();
@@ -404,7 +1026,7 @@ class HGJsonQuery
 		{
 			while (rs.hasNext())
 			{
-				JsonProperty prop = node.get(rs.next());
+				JsonProperty prop = node.getImpl(rs.next());
 				L.add(prop);
 			}
 		}
@@ -0,0 +1,200 @@
+package mjson.hgdb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.transaction.TxCacheMap;
+
+/**
+ * <p>
+ * A bounded cache of atom handles by some key, used by {@link HyperNodeJson} to intern
+ * property names and <code>JsonProperty</code> links. Entries live in a {@link TxCacheMap}:
+ * a handle found in the database is simply loaded in the cache while a handle of an atom
+ * created by the current transaction is put transactionally, it is seen by other transactions
+ * only after a commit and it is dropped if the transaction aborts.
+ * </p>
+ *
+ * <p>
+ * The number of entries is bounded by {@link #capacity()}. Entries are evicted in approximately
+ * least recently used order: a clock hand goes over them, dropping those not used since it last
+ * passed. Cache hits thus take no lock and only write when a key is first used after the hand
+ * passed. Hit and miss counters are maintained for monitoring.
+ * </p>
+ *
+ * @param <K> The type of the cache keys.
+ */
+public class HandleCache<K>
+{
+	private HGTransactionManager txManager;
+	private TxCacheMap<K, HGHandle> map;
+	// Whether each key was used since the eviction clock hand last went over it.
+	private final ConcurrentHashMap<K, Boolean> recency = new ConcurrentHashMap<K, Boolean>();
+	private final ReentrantLock evicting = new ReentrantLock();
+	private Iterator<Map.Entry<K, Boolean>> hand; // guarded by evicting
+	private volatile int capacity;
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+
+	private void touch(K key)
+	{
+		// a hot key is only written again after the clock hand cleared it, hits otherwise just read
+		if (recency.get(key) != Boolean.TRUE)
+			recency.put(key, Boolean.TRUE);
+		if (recency.size() > capacity)
+			evict();
+	}
+
+	/**
+	 * Drop entries until the cache is within capacity, giving a second chance to those used since
+	 * the clock hand last went over them. Only one thread evicts at a time, the others go on.
+	 */
+	private void evict()
+	{
+		if (!evicting.tryLock())
+			return;
+		try
+		{
+			for (int steps = 2 * recency.size(); steps > 0 && recency.size() > capacity; steps--)
+			{
+				if (hand == null || !hand.hasNext())
+					hand = recency.entrySet().iterator();
+				if (!hand.hasNext())
+					break;
+				Map.Entry<K, Boolean> e = hand.next();
+				if (e.getValue())
+					recency.replace(e.getKey(), Boolean.TRUE, Boolean.FALSE);
+				else if (recency.remove(e.getKey(), Boolean.FALSE))
+				{
+					map.drop(e.getKey());
+					evictions.incrementAndGet();
+				}
+			}
+		}
+		finally
+		{
+			evicting.unlock();
+		}
+	}
+
+	public HandleCache(HGTransactionManager txManager, int capacity)
+	{
+		this.txManager = txManager;
+		this.capacity = capacity;
+		this.map = new TxCacheMap<K, HGHandle>(txManager, HashMap.class, null);
+	}
+
+	/**
+	 * <p>Return the cached handle for <code>key</code> or <code>null</code> if there isn't one.</p>
+	 */
+	public HGHandle get(K key)
+	{
+		HGHandle h = map.get(key);
+		if (h == null)
+			misses.incrementAndGet();
+		else
+		{
+			hits.incrementAndGet();
+			touch(key);
+		}
+		return h;
+	}
+
+	/**
+	 * <p>Cache the handle of an atom that was found in the database.</p>
+	 */
+	public void load(K key, HGHandle handle)
+	{
+		map.load(key, handle);
+		touch(key);
+	}
+
+	/**
+	 * <p>
+	 * Cache the handle of an atom that was just created. If there is a current transaction,
+	 * the entry becomes globally visible only when it commits.
+	 * </p>
+	 */
+	public void put(K key, HGHandle handle)
+	{
+		if (txManager.getContext().getCurrent() == null)
+			map.load(key, handle);
+		else
+			map.put(key, handle);
+		touch(key);
+	}
+
+	/**
+	 * <p>Remove the entry for <code>key</code>, if any.</p>
+	 */
+	public void drop(K key)
+	{
+		map.drop(key);
+		recency.remove(key);
+	}
+
+	/**
+	 * <p>Remove all entries.</p>
+	 */
+	public void clear()
+	{
+		for (K key : recency.keySet())
+		{
+			recency.remove(key);
+			map.drop(key);
+		}
+	}
+
+	public int capacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * <p>Set the maximum number of entries. Excess entries are evicted as new ones come in.</p>
+	 */
+	public HandleCache<K> capacity(int capacity)
+	{
+		this.capacity = capacity;
+		return this;
+	}
+
+	public int size()
+	{
+		return recency.size();
+	}
+
+	public long hits()
+	{
+		return hits.get();
+	}
+
+	public long misses()
+	{
+		return misses.get();
+	}
+
+	public long evictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * <p>Return the cache statistics: <code>size</code>, <code>capacity</code>, <code>hits</code>,
+	 * <code>misses</code> and <code>evictions</code>.</p>
+	 */
+	public Json stats()
+	{
+		return Json.object("size", size(),
+						   "capacity", capacity,
+						   "hits", hits(),
+						   "misses", misses(),
+						   "evictions", evictions());
+	}
+}
@@ -1,10 +1,9 @@
 package mjson.hgdb;
 
-import java.util.IdentityHashMap;
+import java.util.Map;
 
 import mjson.Json;
 
-import org.hypergraphdb.HGHandle;
 import org.hypergraphdb.util.Mapping;
 
 /**
@@ -33,34 +32,71 @@ public class Helpers
         return j;
     }
 
-    public static Json resolveEntities(final HyperNodeJson node, final Json top)
+    /**
+     * <p>
+     * Return a new object with only the selected <code>paths</code> of <code>j</code>. A path
+     * is a dot separated list of property names, where a numeric component may also select
+     * an array element, e.g. <code>address.city</code> or <code>phones.0.number</code>. The
+     * selected values are placed at the same paths in the result, intermediate objects being
+     * created as needed. Paths that are not present in <code>j</code> are ignored. Selected
+     * values are copied so the result can be modified freely.
+     * </p>
+     */
+    public static Json select(Json j, String...paths)
     {
-    	final IdentityHashMap<HGHandle, Json> done = new IdentityHashMap<HGHandle, Json>(); 
-    	return traverse(top, new Mapping<Json, Boolean>() {
-    		public Boolean eval(Json j)
-    		{    		
-    			if (j.isObject()) 
-    			{
-    				Json resolved = Json.object();    				
-    				for (String name : j.asJsonMap().keySet())
-	    			{
-	    				Json value = j.at(name);
-	    				HGHandle entityHandle = node.getEntityInterface().entityReferenceToHandle(node, value);
-	    				if (entityHandle != null)
-	    				{
-	    					value = done.get(entityHandle);
-	    					if (value == null)
-	    					{
-	    						value = node.get(entityHandle);
-	    						done.put(entityHandle, value);
-	    						resolved.set(name, value);
-	    					}
-	    				}
-	    			}
-    				j.with(resolved);
-    			}
-    			return true;
+    	Json result = Json.object();
+    	for (String path : paths)
+    	{
+    		String [] parts = path.split("\\.");
+    		Json value = j;
+    		for (int i = 0; i < parts.length && value != null; i++)
+    			value = child(value, parts[i]);
+    		if (value == null)
+    			continue;
+    		Json target = result;
+    		for (int i = 0; i < parts.length - 1; i++)
+    		{
+    			if (!target.has(parts[i]))
+    				target.set(parts[i], Json.object());
+    			target = target.at(parts[i]);
     		}
-    	});
+    		target.set(parts[parts.length - 1], value.dup());
+    	}
+    	return result;
+    }
+    
+    static Json child(Json j, String name)
+    {
+    	if (j.isObject())
+    		return j.at(name);
+    	else if (j.isArray() && name.matches("\\d+"))
+    	{
+    		try { return j.at(Integer.parseInt(name)); }
+    		catch (IndexOutOfBoundsException ex) { return null; }
+    	}
+    	else
+    		return null;
+    }
+    
+    /**
+     * <p>
+     * Replace, in place, all entity references in <code>top</code> by the entities they refer to, at
+     * any depth, and return <code>top</code>. A reference to an entity from within itself is left as is.
+     * See {@link EntityResolver} for a resolver that leaves its input unchanged and supports limiting
+     * the depth and the fields of the expanded entities.
+     * </p>
+     */
+    public static Json resolveEntities(final HyperNodeJson node, final Json top)
+    {
+    	Json resolved = new EntityResolver(node).resolve(top);
+    	if (top.isObject())
+    		for (Map.Entry<String, Json> e : resolved.asJsonMap().entrySet())
+    			top.set(e.getKey(), e.getValue());
+    	else if (top.isArray())
+    		for (int i = 0; i < resolved.asJsonList().size(); i++)
+    			top.set(i, resolved.at(i));
+    	else
+    		return resolved;
+    	return top;
     }
 }
\ No newline at end of file
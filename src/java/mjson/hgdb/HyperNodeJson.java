@@ -1,16 +1,36 @@
 package mjson.hgdb;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import mjson.Json;
 import mjson.hgdb.querying.CrossProductResultSet;
+import mjson.hgdb.querying.SearchResultPublisher;
 import org.hypergraphdb.HGException;
 import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGPersistentHandle;
 import org.hypergraphdb.HGQuery;
 import org.hypergraphdb.HGQuery.hg;
 import org.hypergraphdb.HGSearchResult;
@@ -20,11 +40,16 @@ import org.hypergraphdb.HyperGraph;
 import org.hypergraphdb.HyperNode;
 import org.hypergraphdb.IncidenceSet;
 import org.hypergraphdb.handle.HGLiveHandle;
+import org.hypergraphdb.handle.UUIDHandleFactory;
 import org.hypergraphdb.query.HGQueryCondition;
 import org.hypergraphdb.query.impl.HandleArrayResultSet;
+import org.hypergraphdb.query.impl.PipedResult;
+import org.hypergraphdb.transaction.HGTransactionConfig;
 import org.hypergraphdb.transaction.TxCacheMap;
 import org.hypergraphdb.util.ArrayBasedSet;
 import org.hypergraphdb.util.HGUtils;
+import org.hypergraphdb.util.Mapping;
+import org.hypergraphdb.util.Ref;
 import org.hypergraphdb.util.WeakIdentityHashMap;
 
 /**
@@ -37,20 +62,46 @@ import org.hypergraphdb.util.WeakIdentityHashMap;
  */
 public class HyperNodeJson implements HyperNode
 {
+    // The store record whose presence enables root marking for a database, see setValueCollector.
+    private static final HGPersistentHandle rootMarkingHandle = 
+    	UUIDHandleFactory.I.makeHandle("ca88e1eb-9009-4daf-8df9-4999f46a0c68");
+    
     HyperGraph graph;
     
     // A separate atom cache is needed here because of the "auto-boxing" of
     // Json instances into HGValueLinks. The HGDB cache itself only keeps the
     // HGValueLink instances.
     private TxCacheMap<Object, HGLiveHandle> atomsTx = null;
+    // The frozen form of materialized JSON values, by identity, shared between frozen documents.
+    private final Map<Json, FrozenJson> frozenValues = Collections.synchronizedMap(new WeakIdentityHashMap<Json, FrozenJson>());
+    
+    // Interning of property names and of JsonProperty links by (name, value) handles.
+    // Both are a small and very frequently used vocabulary.
+    private HandleCache<String> nameCache;
+    private HandleCache<List<HGHandle>> propertyCache;
+    // Property indexes on JSON objects, by property name.
+    private final Map<String, ByJsonPropertyIndexer> propertyIndexers = new ConcurrentHashMap<String, ByJsonPropertyIndexer>();
+    private volatile ByJsonStructureIndexer objectStructures = null, arrayStructures = null;
+    private final Map<String, ByJsonTextIndexer> textIndexers = new ConcurrentHashMap<String, ByJsonTextIndexer>();
 
-    private HGHandle nullHandle = null;
-    private HGQuery<HGHandle> findName;
-    private HGQuery<HGHandle> findProperty;
-    private HGQuery<HGHandle> findBoolean;
-    private HGQuery<HGHandle> findNumber;
-    private HGQuery<HGHandle> findString;
+    private volatile HGHandle nullHandle = null;
+    // Compiled queries hold their variable bindings, so each thread gets its own instances.
+    private final ThreadLocal<Queries> queries = new ThreadLocal<Queries>() {
+    	protected Queries initialValue() { return new Queries(graph); }
+    };
     private EntityInterface entityInterface = new EntityInterfaceImpl();
+    // The bulk loader, if any, currently adding documents on this thread.
+    private final ThreadLocal<JsonBulkLoader> bulkLoader = new ThreadLocal<JsonBulkLoader>();
+    private volatile boolean lazyMaterialization = false;
+    private volatile JsonMetrics metrics = JsonMetrics.NOOP;
+    private volatile QueryResultCache resultCache = null;
+    private volatile DocumentCache documentCache = null;
+    private volatile ValueCollector valueCollector = null;
+    private volatile boolean rootMarking = false;
+    private volatile int compactBytes = 0, compactDepth = 0;
+    private volatile Set<String> indexPathNames = Collections.emptySet();
+    private volatile ContentHandles contentHandles = null;
+    private final Set<String> atomizedProperties = ConcurrentHashMap.newKeySet();
 
     private HGHandle getNullHandle()
     {
@@ -59,19 +110,44 @@ public class HyperNodeJson implements HyperNode
     	return nullHandle;
     }
     
-    private void makeQueries()
+    /**
+     * The compiled lookup queries of a single thread.
+     */
+    private static final class Queries
+    {
+    	final HGQuery<HGHandle> findName;
+    	final HGQuery<HGHandle> findProperty;
+    	final HGQuery<HGHandle> findBoolean;
+    	final HGQuery<HGHandle> findNumber;
+    	final HGQuery<HGHandle> findLong;
+    	final HGQuery<HGHandle> findDecimal;
+    	final HGQuery<HGHandle> findString;
+    	final HGQuery<HGHandle> findBlob;
+    	
+    	Queries(HyperGraph graph)
+    	{
+	        findName = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(String.class), hg.eq(hg.var("name"))));
+	        findProperty = HGQuery.make(HGHandle.class, graph).compile(
+	           hg.and(hg.type(graph.getTypeSystem().getTypeHandle(JsonProperty.class)), 
+	                  hg.incident(hg.var("name")), 
+	                  hg.incident(hg.var("value"))));
+	        findBoolean = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.booleanTypeHandle), 
+	        					hg.eq(hg.var("value"))));
+	        findString = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.stringTypeHandle), 
+	        					hg.eq(hg.var("value"))));
+	        findNumber = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.numberTypeHandle), 
+	        					hg.eq(hg.var("value"))));
+	        findLong = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.longTypeHandle), 
+	        					hg.eq(hg.var("value"))));
+	        findDecimal = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.decimalTypeHandle), 
+	        					hg.eq(hg.var("value"))));
+	        findBlob = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.blobTypeHandle), 
+	        					hg.eq(hg.var("value"))));
+    	}
+    }
+    
+    private void bindTypes()
     {
-        findName = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(String.class), hg.eq(hg.var("name"))));
-        findProperty = HGQuery.make(HGHandle.class, graph).compile(
-           hg.and(hg.type(graph.getTypeSystem().getTypeHandle(JsonProperty.class)), 
-                  hg.incident(hg.var("name")), 
-                  hg.incident(hg.var("value"))));
-        findBoolean = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.booleanTypeHandle), 
-        					hg.eq(hg.var("value"))));
-        findString = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.stringTypeHandle), 
-        					hg.eq(hg.var("value"))));
-        findNumber = HGQuery.make(HGHandle.class, graph).compile(hg.and(hg.type(JsonTypeSchema.numberTypeHandle), 
-        					hg.eq(hg.var("value"))));
         ObjectTypeJson objectType = graph.get(JsonTypeSchema.objectTypeHandle);
         objectType.setHyperNodeJson(this);
         ArrayTypeJson arrayType = graph.get(JsonTypeSchema.arrayTypeHandle);
@@ -90,7 +166,21 @@ public class HyperNodeJson implements HyperNode
     {
         this.graph = graph;
         atomsTx = new TxCacheMap<Object, HGLiveHandle>(graph.getTransactionManager(), WeakIdentityHashMap.class, null);
-        makeQueries();
+        nameCache = new HandleCache<String>(graph.getTransactionManager(), 10000);
+        propertyCache = new HandleCache<List<HGHandle>>(graph.getTransactionManager(), 100000);
+        bindTypes();
+        for (Object indexer : graph.getIndexManager().getIndexersForType(JsonTypeSchema.objectTypeHandle))
+        	if (indexer instanceof ByJsonPropertyIndexer)
+        		propertyIndexers.put(((ByJsonPropertyIndexer)indexer).getPropertyName(), (ByJsonPropertyIndexer)indexer);
+        	else if (indexer instanceof ByJsonStructureIndexer)
+        		objectStructures = (ByJsonStructureIndexer)indexer;
+        	else if (indexer instanceof ByJsonTextIndexer)
+        		textIndexers.put(((ByJsonTextIndexer)indexer).getPropertyName(), (ByJsonTextIndexer)indexer);
+        for (Object indexer : graph.getIndexManager().getIndexersForType(JsonTypeSchema.arrayTypeHandle))
+        	if (indexer instanceof ByJsonStructureIndexer)
+        		arrayStructures = (ByJsonStructureIndexer)indexer;
+        updateIndexPathNames();
+        rootMarking = graph.getStore().getData(rootMarkingHandle) != null;
     }
 
     /**
@@ -120,6 +210,834 @@ public class HyperNodeJson implements HyperNode
         return this;
     }
 
+    /**
+     * <p>Return <code>true</code> if stored objects and arrays are materialized lazily and 
+     * <code>false</code> (the default) if they are fully loaded when read.</p>
+     */
+    public boolean isLazyMaterialization()
+    {
+    	return lazyMaterialization;
+    }
+
+    /**
+     * <p>
+     * Configure whether stored JSON objects and arrays are loaded lazily. When lazy, reading
+     * an object only reads its properties' names and a property value is read from the database
+     * the first time it is accessed. Similarly for array elements. This is worth it for large 
+     * documents of which only a few fields are used. See also {@link #getLazy(HGHandle)}.
+     * </p>
+     * <p>
+     * Note that values already in the cache keep the form in which they were loaded.
+     * </p>
+     */
+    public HyperNodeJson setLazyMaterialization(boolean lazyMaterialization)
+    {
+    	this.lazyMaterialization = lazyMaterialization;
+    	return this;
+    }
+    
+    /**
+     * <p>Return the metrics this node reports to, {@link JsonMetrics#NOOP} by default.</p>
+     */
+    public JsonMetrics getMetrics()
+    {
+    	return metrics;
+    }
+
+    /**
+     * <p>Set the metrics this node reports to, e.g. a {@link JsonMetricsRegistry}. Pass <code>null</code>
+     * or {@link JsonMetrics#NOOP} to turn instrumentation off.</p>
+     */
+    public HyperNodeJson setMetrics(JsonMetrics metrics)
+    {
+    	this.metrics = metrics == null ? JsonMetrics.NOOP : metrics;
+    	return this;
+    }
+    
+    /**
+     * <p>Return the cache of object pattern query results, <code>null</code> (the default) if there is none.</p>
+     */
+    public QueryResultCache getResultCache()
+    {
+    	return resultCache;
+    }
+
+    /**
+     * <p>Set the cache of object pattern query results used by {@link #find(Json, boolean)}. Pass <code>null</code>
+     * to turn result caching off.</p>
+     */
+    public HyperNodeJson setResultCache(QueryResultCache resultCache)
+    {
+    	this.resultCache = resultCache;
+    	return this;
+    }
+
+    /**
+     * <p>Return the cache of materialized documents, <code>null</code> (the default) if there is none.</p>
+     */
+    public DocumentCache getDocumentCache()
+    {
+    	return documentCache;
+    }
+
+    /**
+     * <p>Set the cache of materialized documents used by {@link #get(HGHandle)}. Pass <code>null</code>
+     * to rely only on the atom cache of the graph.</p>
+     */
+    public HyperNodeJson setDocumentCache(DocumentCache documentCache)
+    {
+    	this.documentCache = documentCache;
+    	return this;
+    }
+
+    /**
+     * <p>Return the collector of unreferenced values, <code>null</code> (the default) if there is none.</p>
+     */
+    public ValueCollector getValueCollector()
+    {
+    	return valueCollector;
+    }
+
+    /**
+     * <p>
+     * Set the collector of the values left unreferenced by replaced and removed documents, see
+     * {@link ValueCollector}. Pass <code>null</code> to keep all values forever.
+     * </p>
+     * <p>
+     * Setting a collector also enables root marking for the database, persistently: from then on,
+     * every value added by itself with {@link #add(Object)} is marked by a {@link JsonRoot} link so
+     * that it's never collected, at the cost of a lookup and possibly a link per added value. 
+     * Root marking stays enabled when the collector is removed, so that one set again later can 
+     * trust the marks. Values added by themselves before root marking was enabled are not marked 
+     * and get collected once no document refers to them anymore.
+     * </p>
+     */
+    public HyperNodeJson setValueCollector(ValueCollector valueCollector)
+    {
+    	if (valueCollector != null && valueCollector.node() != this)
+    		throw new IllegalArgumentException("The value collector belongs to another node.");
+    	if (valueCollector != null && !rootMarking)
+    	{
+    		graph.getTransactionManager().ensureTransaction(new Callable<Object>() { public Object call() {
+    			graph.getStore().store(rootMarkingHandle, new byte[] { 1 });
+    			return null;
+    		}});
+    		rootMarking = true;
+    	}
+    	this.valueCollector = valueCollector;
+    	return this;
+    }
+
+    /**
+     * <p>Return whether values added by themselves are marked as roots that a {@link ValueCollector}
+     * never deletes, see {@link #setValueCollector(ValueCollector)}.</p>
+     */
+    public boolean isRootMarking()
+    {
+    	return rootMarking;
+    }
+
+    /**
+     * <p>Return the maximum encoded size in bytes of compactly stored values, 0 (the default) 
+     * when values are always stored as atoms.</p>
+     */
+    public int getCompactValueBytes()
+    {
+    	return compactBytes;
+    }
+
+    /**
+     * <p>Return the maximum nesting depth of compactly stored values.</p>
+     */
+    public int getCompactValueDepth()
+    {
+    	return compactDepth;
+    }
+
+    /**
+     * <p>
+     * Configure the storage of nested objects and arrays as a single binary atom, see {@link BlobTypeJson}. 
+     * By default every value is atomized: each property becomes a {@link JsonProperty} link between a
+     * name atom and a value atom, so a document with a few dozen fields costs several dozen atoms and
+     * as many index entries. With compact storage, a non-entity object or array nested in a document
+     * is stored as one atom when it is at most <code>maxDepth</code> levels deep (1 for an object or 
+     * array of primitives), its encoding takes at most <code>maxBytes</code> bytes and it refers to no
+     * entity. Top-level documents are always atomized.
+     * </p>
+     * <p>
+     * The trade-off is that a compact value can only be found as a whole: {@link #find(Json)} matches
+     * it against a nested pattern only when the pattern is the exact same value. The values of properties 
+     * that appear in an index path (e.g. <code>address</code> for an <code>address.city</code> index) and 
+     * of those declared with {@link #atomizeProperty(String)} are therefore still atomized. Reading, 
+     * indexing and lazily materializing documents work the same with either storage. Values stored
+     * compactly remain readable when compact storage is disabled, pass 0 to disable it.
+     * </p>
+     */
+    public HyperNodeJson setCompactValues(int maxBytes, int maxDepth)
+    {
+    	if (maxBytes < 0 || maxDepth < 0)
+    		throw new IllegalArgumentException("Negative compact value limits " + maxBytes + ", " + maxDepth);
+    	this.compactDepth = maxDepth;
+    	this.compactBytes = maxDepth == 0 ? 0 : maxBytes;
+    	return this;
+    }
+
+    /**
+     * <p>Keep the values of properties named <code>name</code> atomized, at any nesting level, when
+     * compact storage is enabled because nested patterns are matched against them.</p>
+     */
+    public HyperNodeJson atomizeProperty(String name)
+    {
+    	atomizedProperties.add(name);
+    	return this;
+    }
+
+    /**
+     * Return whether the value of a property may be stored compactly: neither declared as atomized
+     * nor on the path of an index.
+     */
+    private boolean compactProperty(String name)
+    {
+    	return !atomizedProperties.contains(name) && !indexPathNames.contains(name);
+    }
+
+    /**
+     * Recompute the names of properties whose values an index path navigates into, so they are 
+     * never stored compactly. Called whenever property indexers change.
+     */
+    private void updateIndexPathNames()
+    {
+    	Set<String> names = new HashSet<String>();
+    	for (String path : propertyIndexers.keySet())
+    	{
+    		if (!ByJsonPathIndexer.isPath(path))
+    			continue;
+    		String [] segments = path.split("\\.");
+    		for (int i = 0; i < segments.length; i++)
+    		{
+    			String segment = segments[i];
+    			int bracket = segment.indexOf('[');
+    			// the last segment holds the indexed primitive unless it selects array elements
+    			if (i < segments.length - 1 || bracket > -1)
+    				names.add(bracket < 0 ? segment : segment.substring(0, bracket));
+    		}
+    	}
+    	indexPathNames = names;
+    }
+
+    /**
+     * Return whether a value may be stored compactly, so it refers to no entity and it's not nested 
+     * deeper than <code>depth</code>.
+     */
+    private boolean compactable(Json j, int depth)
+    {
+    	if (j.isArray())
+    	{
+    		if (depth == 0)
+    			return false;
+    		for (Json x : j.asJsonList())
+    			if (!compactable(x, depth - 1))
+    				return false;
+    	}
+    	else if (j.isObject())
+    	{
+    		if (depth == 0 || entityInterface.isEntity(j))
+    			return false;
+    		for (Json x : j.asJsonMap().values())
+    			if (!compactable(x, depth - 1))
+    				return false;
+    	}
+    	else if (entityInterface.entityReferenceToHandle(this, j) != null)
+    		return false;
+    	return true;
+    }
+
+    /**
+     * Return the handle of a nested value stored compactly, adding it if necessary, or <code>null</code>
+     * if the value of property <code>name</code> (<code>null</code> for an array element) is not to be
+     * stored compactly.
+     */
+    private HGHandle assertCompact(String name, Json value)
+    {
+    	if (compactBytes == 0 || name != null && !compactProperty(name))
+    		return null;
+    	byte [] encoding = compactEncoding(value);
+    	if (encoding == null)
+    		return null;
+    	BlobTypeJson.prepare(value, encoding);
+    	try
+    	{
+	    	ContentHandles content = contentHandles;
+	    	if (content != null)
+	    		return assertContent(content.value(JsonTypeSchema.blobTypeHandle, encoding), JsonTypeSchema.blobTypeHandle, value);
+	    	HGHandle h = queries.get().findBlob.var("value", value).findOne();
+	    	if (h == null)
+	    		h = created(graph.add(value, JsonTypeSchema.blobTypeHandle));
+	    	return h;
+    	}
+    	finally
+    	{
+    		BlobTypeJson.release();
+    	}
+    }
+
+    /**
+     * Return the handle of the compactly stored value equal to a pattern or <code>null</code>.
+     */
+    private HGHandle lookupCompact(Json pattern)
+    {
+    	byte [] encoding = compactEncoding(pattern);
+    	if (encoding == null)
+    		return null;
+    	ContentHandles content = contentHandles;
+    	if (content != null)
+    	{
+    		HGPersistentHandle h = content.value(JsonTypeSchema.blobTypeHandle, encoding);
+    		if (graph.getStore().containsLink(h))
+    			return h;
+    	}
+    	BlobTypeJson.prepare(pattern, encoding);
+    	try
+    	{
+    		return queries.get().findBlob.var("value", pattern).findOne();
+    	}
+    	finally
+    	{
+    		BlobTypeJson.release();
+    	}
+    }
+
+    /**
+     * Return the encoding of a value to be stored compactly, which is then reused to store or find 
+     * it, or <code>null</code> if it is not an object or array, nests too deep, refers to an entity 
+     * or its encoding is too large.
+     */
+    private byte [] compactEncoding(Json value)
+    {
+    	int maxBytes = compactBytes;
+    	if (maxBytes == 0 || !(value.isObject() || value.isArray()) || !compactable(value, compactDepth))
+    		return null;
+    	byte [] encoding = JsonCodec.encode(value, 0);
+    	return encoding.length > maxBytes ? null : encoding;
+    }
+
+    /**
+     * Assert a value nested in a document, the value of property <code>name</code> or an array 
+     * element when <code>name</code> is <code>null</code>, compactly if so configured.
+     */
+    private HGHandle assertNested(String name, Json value)
+    {
+    	HGHandle h = assertCompact(name, value);
+    	return h != null ? h : assertTxn(value);
+    }
+
+    /**
+     * <p>Return whether immutable values are stored under content derived handles.</p>
+     */
+    public boolean isContentAddressing()
+    {
+    	return contentHandles != null;
+    }
+
+    /**
+     * <p>
+     * Configure whether immutable values get persistent handles derived from their content, see
+     * {@link ContentHandles}: a hash of the value for strings, numbers, property names and compact
+     * values, a hash of the handles of their components for arrays, property links and objects. 
+     * Finding whether a value is already stored, when adding a document, is then a single key lookup
+     * instead of a query per value joining the incidence sets of its components, and equal values
+     * loaded in bulk are recognized by their hash. Entities, <code>null</code> and booleans keep
+     * their handles.
+     * </p>
+     * <p>
+     * The setting is not persistent and it should be enabled for a database from its creation on, 
+     * every time it's opened. Values stored before, or while disabled, are not recognized when 
+     * asserting values with it enabled and may be stored a second time. Also, nested objects and 
+     * arrays are not updated in place when their document is replaced, since their handle is bound
+     * to their content, and while enabled, {@link #replace(HGHandle, Object, HGHandle)} refuses to
+     * replace an object or array stored under its content handle: add the new value instead.
+     * </p>
+     */
+    public HyperNodeJson setContentAddressing(boolean contentAddressing)
+    {
+    	this.contentHandles = contentAddressing ? new ContentHandles(graph) : null;
+    	return this;
+    }
+
+    /**
+     * Return the handle of a value stored under its content handle, adding it if necessary.
+     */
+    private HGHandle assertContent(HGPersistentHandle h, HGHandle type, Object value)
+    {
+    	if (!graph.getStore().containsLink(h))
+    	{
+    		graph.define(h, type, value, 0);
+    		created(h);
+    	}
+    	return h;
+    }
+
+    /**
+     * Return whether an object or array is stored under the handle derived from its content.
+     */
+    private boolean isContentAddressed(HGHandle handle)
+    {
+    	ContentHandles content = contentHandles;
+    	HGPersistentHandle [] link = content == null ? null : storedLink(handle);
+    	if (link == null)
+    		return false;
+    	HGHandle [] targets = Arrays.copyOfRange(link, 2, link.length, HGHandle[].class);
+    	HGPersistentHandle h = handle.getPersistent();
+    	if (JsonTypeSchema.arrayTypeHandle.equals(link[0]))
+    		return h.equals(content.link(JsonTypeSchema.arrayTypeHandle, targets));
+    	else if (JsonTypeSchema.objectTypeHandle.equals(link[0]))
+    		return h.equals(content.set(JsonTypeSchema.objectTypeHandle, targets));
+    	else
+    		return false;
+    }
+
+    /**
+     * Return the handle of a value stored under its content handle or <code>null</code> if
+     * content addressing is disabled or the value is not stored.
+     */
+    private HGHandle contentLookup(HGHandle type, Json j)
+    {
+    	ContentHandles content = contentHandles;
+    	if (content == null)
+    		return null;
+    	HGPersistentHandle h = content.value(type, j);
+    	return graph.getStore().containsLink(h) ? h : null;
+    }
+
+    /**
+     * Return whether a value added by itself is to be marked as a root, see {@link #markRoot(Json, HGHandle)}.
+     */
+    private boolean markable(Json j)
+    {
+    	return rootMarking && !j.isNull() && !j.isBoolean() && !(j.isObject() && entityInterface.isEntity(j));
+    }
+
+    /**
+     * Record, in the current transaction, that a value was added by itself, not only as part of 
+     * documents, so that a {@link ValueCollector} never deletes it. The {@link JsonRoot} link marking 
+     * it has a handle derived from the value's, so marking a value again costs a single lookup.
+     */
+    private HGHandle markRoot(Json j, HGHandle h)
+    {
+    	if (!markable(j))
+    		return h;
+    	HGPersistentHandle root = ContentHandles.derived(graph, "json-root", h);
+    	if (!graph.getStore().containsLink(root))
+    		graph.define(root, graph.getTypeSystem().getTypeHandle(JsonRoot.class), new JsonRoot(h), 0);
+    	return h;
+    }
+
+    /**
+     * Let the result cache, if any, know that a JSON value is about to be written.
+     */
+    private void writing(QueryResultCache cache, Object value)
+    {
+    	if (cache != null && value instanceof Json)
+    		cache.writing(graph.getTransactionManager(), (Json)value);
+    }
+
+    /**
+     * Let the result cache, if any, know that a JSON value was written.
+     */
+    private void written(QueryResultCache cache, Object value)
+    {
+    	if (cache != null && value instanceof Json)
+    		cache.written(graph.getTransactionManager(), (Json)value);
+    }
+    
+    /**
+     * Wrap a transaction body so that every execution after the first one is counted as a retry.
+     */
+    private <T> Callable<T> retryCounted(final Callable<T> body)
+    {
+    	if (metrics == JsonMetrics.NOOP)
+    		return body;
+    	return new Callable<T>() {
+    		boolean first = true;
+    		public T call() throws Exception
+    		{
+    			if (first)
+    				first = false;
+    			else
+    				metrics.count(JsonMetrics.Counter.TRANSACTION_RETRIES, 1);
+    			return body.call();
+    		}
+    	};
+    }
+    
+    /**
+     * <p>Return the cache of property name atom handles.</p>
+     */
+    public HandleCache<String> getNameCache()
+    {
+    	return nameCache;
+    }
+
+    /**
+     * <p>Return the cache of <code>JsonProperty</code> handles keyed by their 
+     * <code>[name handle, value handle]</code> target list.</p>
+     */
+    public HandleCache<List<HGHandle>> getPropertyCache()
+    {
+    	return propertyCache;
+    }
+    
+    /**
+     * <p>
+     * Create an index of JSON objects by the value of their <code>propertyName</code> property
+     * and populate it with the existing objects. Only values of type <code>propertyType</code>, 
+     * one of {@link JsonTypeSchema#stringTypeHandle}, {@link JsonTypeSchema#numberTypeHandle},
+     * {@link JsonTypeSchema#longTypeHandle}, {@link JsonTypeSchema#decimalTypeHandle} or
+     * {@link JsonTypeSchema#booleanTypeHandle}, are indexed. A <code>numberTypeHandle</code> index
+     * has double keys and holds the numbers a double represents exactly, a <code>longTypeHandle</code> 
+     * index has exact 8 byte keys and holds integers, a <code>decimalTypeHandle</code> index holds all
+     * numbers exactly. Numbers an index doesn't hold are looked up as without the index, so an index
+     * doesn't change query results, except for paths that can only be queried through an index.
+     * Once created, the index is used
+     * by {@link #find(Json)} whenever a pattern constrains the property to a value of that type.
+     * The property name may also be a path such as <code>address.city</code> or <code>tags[*]</code>,
+     * see {@link ByJsonPathIndexer}. Nested patterns like <code>{"address":{"city":"Sofia"}}</code>
+     * are then answered from the index and the path itself can be used as a pattern property, e.g.
+     * <code>{"tags[*]":"java"}</code> for objects having "java" among their tags.
+     * Indexes are persistent, this needs to be done only once for a given database. Indexing
+     * the property used as the {@link EntityInterfaceImpl#primaryKey()} makes entity lookups
+     * by primary key a single index probe.
+     * </p>
+     * <p>
+     * This method must be called outside of a transaction.
+     * </p>
+     * 
+     * @return The index.
+     */
+    public HGIndex<Object, HGPersistentHandle> createIndex(String propertyName, HGHandle propertyType)
+    {
+    	if (!JsonTypeSchema.stringTypeHandle.equals(propertyType) &&
+    		!JsonNumbers.isNumberType(propertyType) &&
+    		!JsonTypeSchema.booleanTypeHandle.equals(propertyType))
+    		throw new IllegalArgumentException("Only properties of a primitive JSON type can be indexed, not " + propertyType);
+    	ByJsonPropertyIndexer existing = propertyIndexers.get(propertyName);
+    	if (existing != null)
+    	{
+    		if (existing.getPropertyType().equals(propertyType))
+    			return getIndex(propertyName);
+    		throw new IllegalStateException("Property " + propertyName + " is already indexed with type " + existing.getPropertyType());
+    	}
+    	ByJsonPropertyIndexer indexer = ByJsonPathIndexer.isPath(propertyName) ? 
+    			new ByJsonPathIndexer(propertyName, propertyType) : new ByJsonPropertyIndexer(propertyName, propertyType);
+    	indexer.setType(JsonTypeSchema.objectTypeHandle);
+    	graph.getIndexManager().register(indexer);
+    	graph.runMaintenance(); // populates the new index
+    	propertyIndexers.put(propertyName, indexer);
+    	updateIndexPathNames();
+    	return getIndex(propertyName);
+    }
+    
+    /**
+     * <p>Delete the index on <code>propertyName</code>, if any. Return <code>true</code> if there was
+     * such an index and <code>false</code> otherwise.</p>
+     */
+    public boolean dropIndex(String propertyName)
+    {
+    	ByJsonPropertyIndexer indexer = propertyIndexers.remove(propertyName);
+    	if (indexer == null)
+    		return false;
+    	updateIndexPathNames();
+    	graph.getIndexManager().unregister(indexer);
+    	return true;
+    }
+    
+    /**
+     * <p>Recreate the index on <code>propertyName</code> from scratch, e.g. after a failure left it
+     * inconsistent with the data.</p>
+     */
+    public HGIndex<Object, HGPersistentHandle> rebuildIndex(String propertyName)
+    {
+    	ByJsonPropertyIndexer indexer = propertyIndexers.get(propertyName);
+    	if (indexer == null)
+    		throw new IllegalArgumentException("No index on property " + propertyName);
+    	dropIndex(propertyName);
+    	return createIndex(propertyName, indexer.getPropertyType());
+    }
+    
+    /**
+     * <p>Return the index on <code>propertyName</code> or <code>null</code> if the property is not indexed.</p>
+     */
+    public HGIndex<Object, HGPersistentHandle> getIndex(String propertyName)
+    {
+    	ByJsonPropertyIndexer indexer = propertyIndexers.get(propertyName);
+    	if (indexer == null)
+    		return null;
+    	HGIndex<Object, HGPersistentHandle> index = graph.getIndexManager().getIndex(indexer);
+    	return index;
+    }
+    
+    /**
+     * <p>Return the indexer of <code>propertyName</code> or <code>null</code> if the property is not indexed.</p>
+     */
+    public ByJsonPropertyIndexer getIndexer(String propertyName)
+    {
+    	return propertyIndexers.get(propertyName);
+    }
+    
+    /**
+     * <p>
+     * Create the indexes of objects and arrays by their structure, see {@link ByJsonStructureIndexer}, 
+     * and populate them with the existing objects and arrays. The indexes are then used to find 
+     * objects and arrays by their exact content: by {@link #exactly(Json)}, exact patterns and
+     * when adding values, to find whether an equal value is already stored. Otherwise, this is
+     * done by joining the incidence sets of all property links of an object, or of all elements of
+     * an array, which is slow when some of them are part of very many values. Like other indexes
+     * they are persistent and this must be called outside of a transaction.
+     * </p>
+     */
+    public HyperNodeJson createStructureIndex()
+    {
+    	if (objectStructures == null)
+    	{
+    		ByJsonStructureIndexer indexer = new ByJsonStructureIndexer(JsonTypeSchema.objectTypeHandle);
+    		graph.getIndexManager().register(indexer);
+    		objectStructures = indexer;
+    	}
+    	if (arrayStructures == null)
+    	{
+    		ByJsonStructureIndexer indexer = new ByJsonStructureIndexer(JsonTypeSchema.arrayTypeHandle);
+    		graph.getIndexManager().register(indexer);
+    		arrayStructures = indexer;
+    	}
+    	graph.runMaintenance(); // populates new indexes
+    	return this;
+    }
+    
+    /**
+     * <p>Delete the structure indexes, if any. Return <code>true</code> if there were any
+     * and <code>false</code> otherwise.</p>
+     */
+    public boolean dropStructureIndex()
+    {
+    	ByJsonStructureIndexer objects = objectStructures, arrays = arrayStructures;
+    	objectStructures = arrayStructures = null;
+    	if (objects != null)
+    		graph.getIndexManager().unregister(objects);
+    	if (arrays != null)
+    		graph.getIndexManager().unregister(arrays);
+    	return objects != null || arrays != null;
+    }
+    
+    /**
+     * <p>
+     * Create a full-text index of JSON objects by the words of their <code>propertyName</code> string
+     * property and populate it with the existing objects, see {@link ByJsonTextIndexer}. Once created, 
+     * <code>@=</code> keyword patterns on that property, e.g. <code>{"description@=":"fast json"}</code>,
+     * are answered from the index instead of scanning the text of every candidate object, and objects 
+     * can be ranked by relevance with {@link #search(String, String, int)}. The index is persistent 
+     * and this must be called outside of a transaction.
+     * </p>
+     */
+    public HGIndex<String, HGPersistentHandle> createTextIndex(String propertyName)
+    {
+    	ByJsonTextIndexer indexer = textIndexers.get(propertyName);
+    	if (indexer == null)
+    	{
+	    	indexer = new ByJsonTextIndexer(propertyName);
+	    	indexer.setType(JsonTypeSchema.objectTypeHandle);
+	    	graph.getIndexManager().register(indexer);
+	    	graph.runMaintenance(); // populates the new index
+	    	textIndexers.put(propertyName, indexer);
+    	}
+    	return getTextIndex(propertyName);
+    }
+    
+    /**
+     * <p>Delete the full-text index on <code>propertyName</code>, if any, along with the statistics 
+     * kept for ranking. Return <code>true</code> if there was such an index and <code>false</code> 
+     * otherwise. This must be called outside of a transaction.</p>
+     */
+    public boolean dropTextIndex(String propertyName)
+    {
+    	final ByJsonTextIndexer indexer = textIndexers.remove(propertyName);
+    	if (indexer == null)
+    		return false;
+    	final HGIndex<String, HGPersistentHandle> index = graph.getIndexManager().getIndex(indexer);
+    	if (index != null)
+    		graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+    			public Object call()
+    			{
+    				indexer.dropStats(graph, index);
+    				return null;
+    			}
+    		});
+    	graph.getIndexManager().unregister(indexer);
+    	return true;
+    }
+    
+    /**
+     * <p>Return the full-text index on <code>propertyName</code> or <code>null</code> if there is none.</p>
+     */
+    public HGIndex<String, HGPersistentHandle> getTextIndex(String propertyName)
+    {
+    	ByJsonTextIndexer indexer = textIndexers.get(propertyName);
+    	return indexer == null ? null : graph.getIndexManager().getIndex(indexer);
+    }
+    
+    /**
+     * <p>Return the full-text indexer of <code>propertyName</code> or <code>null</code> if there is none.</p>
+     */
+    public ByJsonTextIndexer getTextIndexer(String propertyName)
+    {
+    	return textIndexers.get(propertyName);
+    }
+    
+    /**
+     * <p>
+     * Return the <code>k</code> objects most relevant to the keywords in <code>query</code> according to
+     * the words of their <code>propertyName</code> property, with their scores, from the most relevant.
+     * Relevance is measured with BM25 (k1 = 1.2, b = 0.75): objects score higher when they contain more
+     * of the keywords, more often, the less common those keywords are and the shorter their text is. 
+     * The property must have a full-text index, see {@link #createTextIndex(String)}. Only the 
+     * objects containing a keyword are examined, from the index, and at most <code>k</code> are 
+     * kept in memory while ranking.
+     * </p>
+     */
+    public LinkedHashMap<HGHandle, Double> search(final String propertyName, final String query, final int k)
+    {
+    	final ByJsonTextIndexer indexer = textIndexers.get(propertyName);
+    	if (indexer == null)
+    		throw new IllegalArgumentException("No full-text index on property " + propertyName);
+    	if (k <= 0)
+    		throw new IllegalArgumentException("The number of results must be positive, not " + k);
+    	return graph.getTransactionManager().ensureTransaction(new Callable<LinkedHashMap<HGHandle, Double>>() {
+    		public LinkedHashMap<HGHandle, Double> call()
+    		{
+    			return rank(indexer, query, k);
+    		}
+    	}, HGTransactionConfig.READONLY);
+    }
+    
+    private LinkedHashMap<HGHandle, Double> rank(ByJsonTextIndexer indexer, String query, int k)
+    {
+    	final double k1 = 1.2, b = 0.75;
+    	HGIndex<String, HGPersistentHandle> index = graph.getIndexManager().getIndex(indexer);
+    	Json stats = indexer.indexStats(graph);
+    	long documents = stats.at("documents").asLong();
+    	double averageLength = documents == 0 ? 1 : Math.max(1.0, stats.at("length").asDouble() / documents);
+    	Map<HGPersistentHandle, Double> scores = new HashMap<HGPersistentHandle, Double>();
+    	Map<HGPersistentHandle, Json> documentStats = new HashMap<HGPersistentHandle, Json>();
+    	// term at a time: accumulate the contribution of each keyword from its postings
+    	for (String term : new LinkedHashSet<String>(ByJsonTextIndexer.tokens(query)))
+    	{
+    		long df = index.count(term);
+    		if (df == 0)
+    			continue;
+    		double idf = Math.log(1 + (documents - df + 0.5) / (df + 0.5));
+    		HGSearchResult<HGPersistentHandle> rs = index.find(term);
+    		try
+    		{
+    			while (rs.hasNext())
+    			{
+    				HGPersistentHandle h = rs.next();
+    				Json ds = documentStats.get(h);
+    				if (ds == null)
+    				{
+    					ds = indexer.documentStats(graph, h);
+    					if (ds == null)
+    						continue;
+    					documentStats.put(h, ds);
+    				}
+    				Json tfJson = ds.at("terms").at(term);
+    				double tf = tfJson == null ? 0 : tfJson.asDouble();
+    				double norm = k1 * (1 - b + b * ds.at("length").asDouble() / averageLength);
+    				Double score = scores.get(h);
+    				scores.put(h, (score == null ? 0 : score) + idf * tf * (k1 + 1) / (tf + norm));
+    			}
+    		}
+    		finally
+    		{
+    			HGUtils.closeNoException(rs);
+    		}
+    	}
+    	// keep the k best in a min-heap
+    	PriorityQueue<Map.Entry<HGPersistentHandle, Double>> best = new PriorityQueue<Map.Entry<HGPersistentHandle, Double>>(
+    		k + 1, new Comparator<Map.Entry<HGPersistentHandle, Double>>() {
+	    		public int compare(Map.Entry<HGPersistentHandle, Double> left, Map.Entry<HGPersistentHandle, Double> right)
+	    		{
+	    			return Double.compare(left.getValue(), right.getValue());
+	    		}
+    		});
+    	for (Map.Entry<HGPersistentHandle, Double> e : scores.entrySet())
+    	{
+    		if (best.size() < k)
+    			best.add(e);
+    		else if (e.getValue() > best.peek().getValue())
+    		{
+    			best.poll();
+    			best.add(e);
+    		}
+    	}
+    	List<Map.Entry<HGPersistentHandle, Double>> ranked = new ArrayList<Map.Entry<HGPersistentHandle, Double>>(best);
+    	Collections.sort(ranked, Collections.reverseOrder(best.comparator()));
+    	LinkedHashMap<HGHandle, Double> result = new LinkedHashMap<HGHandle, Double>();
+    	for (Map.Entry<HGPersistentHandle, Double> e : ranked)
+    		result.put(e.getKey(), e.getValue());
+    	return result;
+    }
+    
+    /**
+     * Return the objects (or arrays, according to <code>type</code>) whose components are exactly
+     * <code>targets</code>, or <code>null</code> if there's no structure index to find them.
+     */
+    List<HGHandle> findStructure(HGHandle type, HGHandle [] targets)
+    {
+    	boolean ordered = JsonTypeSchema.arrayTypeHandle.equals(type);
+    	ByJsonStructureIndexer indexer = ordered ? arrayStructures : objectStructures;
+    	HGIndex<byte[], HGPersistentHandle> index = indexer == null ? null : graph.getIndexManager().getIndex(indexer);
+    	if (index == null)
+    		return null;
+    	List<HGHandle> L = new ArrayList<HGHandle>(1);
+    	HGSearchResult<HGPersistentHandle> rs = index.find(indexer.structureKey(targets));
+    	try
+    	{
+    		while (rs.hasNext())
+    		{
+    			// keys are hashes, the actual structure is verified
+    			HGPersistentHandle h = rs.next();
+    			HGPersistentHandle [] link = storedLink(h);
+    			if (link == null || link.length - 2 != targets.length)
+    				continue;
+    			List<HGHandle> stored = new ArrayList<HGHandle>(link.length - 2);
+    			List<HGHandle> wanted = new ArrayList<HGHandle>(targets.length);
+    			for (int i = 0; i < targets.length; i++)
+    			{
+    				stored.add(link[i + 2]);
+    				wanted.add(targets[i].getPersistent());
+    			}
+    			if (ordered ? stored.equals(wanted) : new HashSet<HGHandle>(stored).equals(new HashSet<HGHandle>(wanted)))
+    				L.add(h);
+    		}
+    	}
+    	finally
+    	{
+    		HGUtils.closeNoException(rs);
+    	}
+    	return L;
+    }
+    
+    /**
+     * Return the first object or array with the given components: from the structure index if
+     * there's one and otherwise with the <code>fallback</code> query.
+     */
+    private HGHandle lookupStructure(HGHandle type, HGHandle [] targets, HGQueryCondition fallback)
+    {
+    	List<HGHandle> L = findStructure(type, targets);
+    	if (L == null)
+    		return hg.findOne(graph, fallback);
+    	return L.isEmpty() ? null : L.get(0);
+    }
+    
     /**
      * <p>
      * Find the handle of a Json value stored in the database, that exactly matches
@@ -161,14 +1079,27 @@ public class HyperNodeJson implements HyperNode
     
     public HGSearchResult<HGHandle> findPropertyPattern(String namePattern, Object valuePattern)
     {
-    	HGHandle h = findName.var("name", namePattern).findOne();	
+    	return findPropertyPattern(namePattern, valuePattern, metrics);
+    }
+    
+    HGSearchResult<HGHandle> findPropertyPattern(String namePattern, Object valuePattern, final JsonMetrics metrics)
+    {
+    	HGHandle h = lookupName(namePattern);
     	if (h == null)
     		return HGJsonQuery.empty();
     	HGSearchResult<HGHandle> names = new HandleArrayResultSet(new HGHandle[] { h } );
-    	HGSearchResult<HGHandle> values = this.find(Json.make(valuePattern));
+    	HGSearchResult<HGHandle> values = findUnmetered(Json.make(valuePattern), false);
     	CrossProductResultSet<HGHandle> namesCrossValues = new CrossProductResultSet<HGHandle>(names, values);    	
-    	// Query a JSON property based on a cross-product result of name, value pair.    	
-    	return HGJsonQuery.pipeCrossProductToCompiledQuery(namesCrossValues, findProperty, "name", "value");
+    	// Query a JSON property based on a cross-product result of name, value pair. The compiled query
+    	// is obtained at each execution since the result may be consumed by another thread.
+    	return new PipedResult<List<HGHandle>, HGHandle>(namesCrossValues, 
+    			new HGJsonQuery.AbstractKeyBasedQuery<List<HGHandle>, HGHandle>() {
+    		public HGSearchResult<HGHandle> execute()
+    		{
+    			metrics.count(JsonMetrics.Counter.CROSS_PRODUCT_TUPLES, 1);
+    			return queries.get().findProperty.var("name", getKey().get(0)).var("value", getKey().get(1)).execute();
+    		}
+    	}, true);
     }
     
     public HGHandle findProperty(String name, Object value)
@@ -189,7 +1120,7 @@ public class HyperNodeJson implements HyperNode
     
     public HGHandle findProperty(String name, HGHandle value)
     {
-        HGHandle h = findName.var("name", name).findOne();
+        HGHandle h = lookupName(name);
         return h == null ? null : findProperty(h, value); 
     }
     
@@ -201,13 +1132,28 @@ public class HyperNodeJson implements HyperNode
     
     public HGHandle findProperty(HGHandle name, HGHandle value)
     {
-        return findProperty.var("name", name).var("value", value).findOne();        
+    	List<HGHandle> key = JsonBulkLoader.key(name, value);
+    	HGHandle h = propertyCache.get(key);
+    	if (h != null)
+    		return h;
+    	ContentHandles content = contentHandles;
+    	if (content != null)
+    	{
+    		h = content.link(graph.getTypeSystem().getTypeHandle(JsonProperty.class), name, value);
+    		if (!graph.getStore().containsLink(h.getPersistent()))
+    			h = null;
+    	}
+    	if (h == null)
+    		h = queries.get().findProperty.var("name", name).var("value", value).findOne();
+        if (h != null)
+        	propertyCache.load(key, h);
+        return h;
     }
     
     @SuppressWarnings("unchecked")
     public List<HGHandle> findPropertyValues(String name)
     {
-        HGHandle h = findName.var("name", name).findOne();
+        HGHandle h = lookupName(name);
         return h == null ? Collections.EMPTY_LIST : findPropertyValues(h);         
     }
     
@@ -237,46 +1183,171 @@ public class HyperNodeJson implements HyperNode
      * @return The <code>HGHandle</code> of the first matched element or <code>null</code>
      * if none was found.
      */
-    public HGHandle match(Json j, boolean exact)
+    public HGHandle match(Json j, boolean exact)
+    {
+        HGHandle h = getHandle(j);
+        if (h != null)
+            return h;
+        try (HGSearchResult<HGHandle> rs = findUnmetered(j, exact)) 
+        {
+        	return rs.hasNext() ? rs.next() : null;
+        }
+    }
+
+    /**
+     * <p>Return {@link #find(Json, boolean)} with <code>false</code> exact argument.</p>
+     */
+    public HGSearchResult<HGHandle> find(Json pattern)
+    {
+        return find(pattern, false);
+    }
+    
+    /**
+     * <p>
+     * Find all atoms that match the specified JSON pattern. A pattern is any JSON
+     * structure, from a primitive type to a deeply nested object. This method will
+     * attempt to find all atoms that have the same form. Here is what having the same
+     * form means:
+     * </p>
+     * <ul>
+     * <li>A JSON primitive (boolean, number, string or null) must be the same type and have the same value.</li>
+     * <li>A JSON array must be of the same length as <code>pattern</code> and each of its
+     * elements must match at the corresponding positions. So arrays are always strictly matched</li>
+     * <li>A JSON object must have all that properties that <code>pattern</code> and each of their
+     * values must match. If the <code>exact</code> parameter is <code>true</code>, then the 
+     * matching atom may not have any extra properties, but it must match <code>pattern</code> exactly.</li>
+     * </ul>
+     * <p>
+     * The {@link JsonMetrics.Operation#FIND} latency recorded for a call covers planning the query 
+     * and opening the result set. Results are found lazily, so the time spent iterating over them 
+     * is not included.
+     * </p>
+     * @param pattern
+     * @param exact
+     * @return
+     */
+    public HGSearchResult<HGHandle> find(Json pattern, boolean exact)
+    {
+    	JsonMetrics metrics = this.metrics;
+    	long start = metrics.start();
+    	try
+    	{
+    		return findUnmetered(pattern, exact);
+    	}
+    	finally
+    	{
+    		metrics.stop(JsonMetrics.Operation.FIND, start);
+    	}
+    }
+
+    /**
+     * Execute a query as {@link #find(Json, boolean)} does, without recording it in the metrics. This
+     * is for the queries issued while performing another operation, so that only the operation 
+     * called by the user is counted.
+     */
+    HGSearchResult<HGHandle> findUnmetered(Json pattern, boolean exact)
+    {
+		QueryResultCache cache = resultCache;
+		if (cache != null && pattern.isObject() && graph.getTransactionManager().getContext().getCurrent() == null)
+			return cache.find(this, pattern, exact);
+		return findImpl(pattern, exact);
+    }
+
+    /**
+     * Execute a query bypassing the result cache.
+     */
+    HGSearchResult<HGHandle> findUncached(Json pattern, boolean exact)
+    {
+    	return findImpl(pattern, exact);
+    }
+    
+    /**
+     * <p>Return {@link #prepare(Json, boolean)} with <code>false</code> exact argument.</p>
+     */
+    public PreparedJsonQuery prepare(Json template)
     {
-        HGHandle h = getHandle(j);
-        if (h != null)
-            return h;
-        try (HGSearchResult<HGHandle> rs = this.find(j, exact)) 
-        {
-        	return rs.hasNext() ? rs.next() : null;
-        }
+    	return prepare(template, false);
     }
 
     /**
-     * <p>Return {@link #find(Json, boolean)} with <code>false</code> exact argument.</p>
+     * <p>
+     * Prepare an object pattern for repeated execution. The pattern is parsed once and its
+     * values may be bind variables such as <code>"$email"</code>, see {@link PreparedJsonQuery}.
+     * </p>
      */
-    public HGSearchResult<HGHandle> find(Json pattern)
+    public PreparedJsonQuery prepare(Json template, boolean exact)
     {
-        return find(pattern, false);
+    	return new PreparedJsonQuery(this, template, exact);
     }
     
     /**
      * <p>
-     * Find all atoms that match the specified JSON pattern. A pattern is any JSON
-     * structure, from a primitive type to a deeply nested object. This method will
-     * attempt to find all atoms that have the same form. Here is what having the same
-     * form means:
+     * Return the plan of {@link #find(Json, boolean)} for the given pattern, without executing
+     * the query. The plan is a JSON object with the overall <code>strategy</code>, the <code>stages</code>
+     * of the query and, for object patterns, the <code>joinOrder</code> with the estimated number of
+     * candidates of each join operand. Each stage has a <code>kind</code> and a <code>label</code> 
+     * (the property name) and may include:
      * </p>
      * <ul>
-     * <li>A JSON primitive (boolean, number, string or null) must be the same type and have the same value.</li>
-     * <li>A JSON array must be of the same length as <code>pattern</code> and each of its
-     * elements must match at the corresponding positions. So arrays are always strictly matched</li>
-     * <li>A JSON object must have all that properties that <code>pattern</code> and each of their
-     * values must match. If the <code>exact</code> parameter is <code>true</code>, then the 
-     * matching atom may not have any extra properties, but it must match <code>pattern</code> exactly.</li>
+     * <li><code>candidates</code> - the number of property links matching the property pattern, the join 
+     * then looks for objects pointing to one of them;</li>
+     * <li><code>tuples</code> - the (property name, value) pairs tried to find those candidates, each 
+     * one costing a link query;</li>
+     * <li><code>millis</code> - the time spent in the stage;</li>
+     * <li><code>empty</code> - present when the stage showed there can't be any result, later stages 
+     * are then skipped.</li>
      * </ul>
-     * @param pattern
-     * @param exact
-     * @return
+     * <p>
+     * Note that finding the candidates of each property is part of planning, so this is not free.
+     * </p>
+     */
+    public Json explain(Json pattern, boolean exact)
+    {
+    	return trace(pattern, exact, false);
+    }
+    
+    /**
+     * <p>
+     * Execute a query as with {@link #find(Json, boolean)} and return its plan (see {@link #explain(Json, boolean)})
+     * with execution statistics: the number of <code>results</code>, the number of results checked by
+     * post-filters (e.g. regular expressions) and rejected by them (<code>filterChecks</code> and 
+     * <code>filterRejections</code>), the total number of <code>linkQueries</code> issued and the 
+     * time spent planning, executing and overall (<code>planMillis</code>, <code>executeMillis</code>,
+     * <code>totalMillis</code>).
+     * </p>
      */
+    public Json profile(Json pattern, boolean exact)
+    {
+    	return trace(pattern, exact, true);
+    }
+    
+    private Json trace(Json pattern, boolean exact, boolean run)
+    {
+    	QueryTrace trace = new QueryTrace(pattern, exact);
+    	HGSearchResult<HGHandle> rs;
+    	if (pattern.isObject())
+    		rs = HGJsonQuery.findObjectPattern(this, pattern, exact, trace);
+    	else
+    	{
+    		trace.strategy(pattern.isArray() ? "array" : "value");
+    		rs = findImpl(pattern, exact);
+    	}
+    	return trace.finish(rs, run);
+    }
+    
     @SuppressWarnings("unchecked")
-    public HGSearchResult<HGHandle> find(Json pattern, boolean exact)
+    private HGSearchResult<HGHandle> findImpl(Json pattern, boolean exact)
+    {
+    	HGHandle compact = lookupCompact(pattern);
+    	if (compact == null)
+    		return findAtoms(pattern, exact);
+    	// An equal value may also have been stored as atoms before compact storage was enabled.
+    	List<HGHandle> L = HGJsonQuery.collect(findAtoms(pattern, exact));
+    	L.add(0, compact);
+    	return new HandleArrayResultSet(L.toArray(new HGHandle[L.size()]));
+    }
+    
+    private HGSearchResult<HGHandle> findAtoms(Json pattern, boolean exact)
     {
         if (pattern.isNull())
         {
@@ -284,15 +1355,19 @@ public class HyperNodeJson implements HyperNode
         }
         else if (pattern.isBoolean())
         {
-            return findBoolean.var("value", pattern).execute();
+            return queries.get().findBoolean.var("value", pattern).execute();
         }
         else if (pattern.isString())
         {
-            return findString.var("value", pattern.asString()).execute();
+        	HGHandle h = contentLookup(JsonTypeSchema.stringTypeHandle, pattern);
+        	if (h != null)
+        		return new ArrayBasedSet<HGHandle>(new HGHandle[] { h }).getSearchResult();
+            return queries.get().findString.var("value", pattern.asString()).execute();
         }
         else if (pattern.isNumber())
         {
-            return findNumber.var("value", pattern.asDouble()).execute();
+        	HGHandle h = lookupNumber(pattern);
+            return new ArrayBasedSet<HGHandle>(h == null ? new HGHandle[0] : new HGHandle[] { h }).getSearchResult();
         }
         else if (pattern.isArray())
         {
@@ -308,6 +1383,13 @@ public class HyperNodeJson implements HyperNode
                 }
                 A[i] = x;
             }
+            HGHandle h = A == null || !exact || contentHandles == null ? null : 
+            	contentHandles.link(JsonTypeSchema.arrayTypeHandle, A);
+            if (h != null && graph.getStore().containsLink(h.getPersistent()))
+            	return new ArrayBasedSet<HGHandle>(new HGHandle[] { h }).getSearchResult();
+            List<HGHandle> L = A == null || !exact ? null : findStructure(JsonTypeSchema.arrayTypeHandle, A);
+            if (L != null)
+            	return new HandleArrayResultSet(L.toArray(new HGHandle[L.size()]));
             if (A != null)
             	if (exact)
             		return graph.find(hg.and(hg.type(JsonTypeSchema.arrayTypeHandle), hg.orderedLink(A), hg.arity(A.length)));
@@ -364,14 +1446,178 @@ public class HyperNodeJson implements HyperNode
         return L;        
     }
     
+    /**
+     * <p>
+     * Return the selected <code>paths</code> of all objects matching <code>pattern</code>. 
+     * Each element of the returned array is built with {@link Helpers#select(Json, String...)}
+     * from a lazy view of the matched object (see {@link #getLazy(HGHandle)}), so only the
+     * properties on the selected paths are read and the full objects are never constructed.
+     * The handle property of entities is always included.
+     * </p>
+     * 
+     * @param pattern The pattern to match, as in {@link #find(Json)}.
+     * @param paths Dot separated property paths, e.g. <code>address.city</code>.
+     */
+    public Json getAll(Json pattern, String...paths)
+    {
+    	String handleProperty = entityInterface.entityHandleProperty();
+    	if (handleProperty != null)
+    	{
+    		paths = Arrays.copyOf(paths, paths.length + 1);
+    		paths[paths.length - 1] = handleProperty;
+    	}
+        Json L = Json.array();
+        HGSearchResult<HGHandle> rs = find(pattern);
+        try
+        {
+            while (rs.hasNext())
+                L.add(Helpers.select(getLazy(rs.next()), paths));
+        }
+        finally
+        {
+        	rs.close();
+        }
+        return L;
+    }
+
+    private static <T> Stream<T> stream(final HGSearchResult<HGHandle> rs, final Mapping<HGHandle, T> transform)
+    {
+    	Iterator<T> I = new Iterator<T>() {
+    		public boolean hasNext()
+    		{
+    			if (rs.hasNext())
+    				return true;
+    			HGUtils.closeNoException(rs);
+    			return false;
+    		}
+    		public T next() { return transform.eval(rs.next()); }
+    	};
+    	return StreamSupport.stream(Spliterators.spliteratorUnknownSize(I, Spliterator.ORDERED | Spliterator.NONNULL), false)
+    						.onClose(new Runnable() { public void run() { HGUtils.closeNoException(rs); } });
+    }
+
+    /**
+     * <p>
+     * Return the handles of all atoms matching <code>pattern</code> as a lazy stream: handles are
+     * read from the underlying result set as the stream is consumed and nothing is buffered. The
+     * result set is closed when it is exhausted or when the stream is closed, so the stream should
+     * be used in a try-with-resources block whenever it might not be consumed entirely.
+     * </p>
+     *
+     * @param pattern The pattern to match, as in {@link #find(Json)}.
+     */
+    public Stream<HGHandle> findStream(Json pattern)
+    {
+    	return stream(find(pattern), new Mapping<HGHandle, HGHandle>() {
+    		public HGHandle eval(HGHandle h) { return h; }
+    	});
+    }
+
+    /**
+     * <p>
+     * Return all atoms matching <code>pattern</code> as a lazy stream. This is the streaming
+     * version of {@link #getAll(Json)} - see {@link #findStream(Json)} for how the underlying
+     * result set is managed.
+     * </p>
+     *
+     * @param pattern The pattern to match, as in {@link #find(Json)}.
+     */
+    public Stream<Json> getStream(Json pattern)
+    {
+    	return stream(find(pattern), new Mapping<HGHandle, Json>() {
+    		public Json eval(HGHandle h) { return get(h); }
+    	});
+    }
+
+    /**
+     * <p>
+     * Return a publisher of all atoms matching <code>pattern</code>. The query runs on the subscriber's
+     * first request and atoms are read from the database only as the subscriber requests them, so 
+     * a slow consumer (e.g. a network connection) keeps the memory usage constant. See {@link SearchResultPublisher}.
+     * </p>
+     *
+     * @param pattern The pattern to match, as in {@link #find(Json)}.
+     */
+    public SearchResultPublisher<HGHandle, Json> publish(final Json pattern)
+    {
+    	return new SearchResultPublisher<HGHandle, Json>(new Ref<HGSearchResult<HGHandle>>() {
+    		public HGSearchResult<HGHandle> get() { return find(pattern); }
+    	}, new Mapping<HGHandle, Json>() {
+    		public Json eval(HGHandle h) { return get(h); }
+    	});
+    }
+
+    /**
+     * <p>
+     * Add a large number of documents in chunked transactions, interning names and
+     * values across the whole batch. See {@link JsonBulkLoader} for details, use it
+     * directly to configure the chunk size or monitor progress.
+     * </p>
+     * 
+     * @param documents The documents to add.
+     * @return The load statistics as returned by {@link JsonBulkLoader#stats()}.
+     */
+    public Json addAll(Iterable<Json> documents)
+    {
+    	return new JsonBulkLoader(this).load(documents);
+    }
+    
+    void setBulkLoader(JsonBulkLoader loader)
+    {
+    	if (loader == null)
+    		bulkLoader.remove();
+    	else
+    		bulkLoader.set(loader);
+    }
+    
     public HGHandle getHandle(Object atom)
     {
         HGHandle h = atomsTx.get(atom);
+        metrics.count(h == null ? JsonMetrics.Counter.ATOM_CACHE_MISSES : JsonMetrics.Counter.ATOM_CACHE_HITS, 1);
         return h == null ? graph.getHandle(atom) : h;
     }
     
-    @SuppressWarnings("unchecked")
     public <T> T get(final HGHandle handle)
+    {
+    	JsonMetrics metrics = this.metrics;
+    	long start = metrics.start();
+    	try
+    	{
+    		return getImpl(handle);
+    	}
+    	finally
+    	{
+    		metrics.stop(JsonMetrics.Operation.GET, start);
+    	}
+    }
+    
+    /**
+     * Read a value for the node's own use, through the document cache but without counting a
+     * {@link JsonMetrics.Operation#GET}: only the operation called by the user is counted.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T getImpl(final HGHandle handle)
+    {
+    	DocumentCache docs = documentCache;
+    	HGPersistentHandle persistent = null;
+    	long version = 0;
+    	if (docs != null && graph.getTransactionManager().getContext().getCurrent() == null)
+    	{
+    		docs.committed(graph.getTransactionManager());
+    		persistent = handle.getPersistent();
+    		Json j = docs.get(persistent);
+    		if (j != null)
+    			return (T)j;
+    		version = docs.version(persistent);
+    	}
+    	T x = readAtom(handle);
+    	if (persistent != null && x instanceof Json)
+    		docs.load(persistent, (Json)x, version);
+    	return x;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private <T> T readAtom(final HGHandle handle)
     {
         return graph.getTransactionManager().ensureTransaction(new Callable<T>() {
             public T call()
@@ -385,7 +1631,12 @@ public class HyperNodeJson implements HyperNode
                         Json j = (Json)y;
                         atomsTx.load(j, graph.getCache().get(handle.getPersistent()));
                         if (j.isObject() && entityInterface.isEntity(j) && entityInterface.entityHandleProperty() != null)
-                            j.set(entityInterface.entityHandleProperty(), handle.getPersistent().toString());
+                        	synchronized (j)
+                        	{
+                        		String handleProperty = entityInterface.entityHandleProperty();
+                        		if (!j.is(handleProperty, handle.getPersistent().toString()))
+                        			j.set(handleProperty, handle.getPersistent().toString());
+                        	}
                         return (T)j;
                     }
                 }
@@ -394,6 +1645,235 @@ public class HyperNodeJson implements HyperNode
         });
     }
 
+    /**
+     * <p>Return {@link #getMany(Collection, int)} without parallelism.</p>
+     */
+    public List<Json> getMany(Collection<? extends HGHandle> handles)
+    {
+    	return getMany(handles, 1);
+    }
+    
+    /**
+     * <p>
+     * Return the JSON values with the given handles, in the same order, with a <code>null</code>
+     * for atoms that don't exist or are not JSON. This is much faster than calling {@link #get(HGHandle)}
+     * in a loop: duplicate handles are read once, documents in the document cache are taken from there
+     * and the rest are read in a single read-only transaction in storage order. Values shared between 
+     * documents are materialized once for the whole batch.
+     * </p>
+     * 
+     * <p>
+     * With a <code>parallelism</code> greater than 1, the documents to read are split in as many ranges
+     * of consecutive handles, each read in its own read-only transaction on the common fork-join pool.
+     * Inside a transaction, documents are always read sequentially, in that transaction.
+     * </p>
+     */
+    public List<Json> getMany(Collection<? extends HGHandle> handles, int parallelism)
+    {
+    	JsonMetrics metrics = this.metrics;
+    	long start = metrics.start();
+    	try
+    	{
+    		final Map<HGPersistentHandle, Json> found = new ConcurrentHashMap<HGPersistentHandle, Json>();
+    		DocumentCache docs = documentCache;
+    		boolean inTransaction = graph.getTransactionManager().getContext().getCurrent() != null;
+    		Map<HGPersistentHandle, Long> versions = new HashMap<HGPersistentHandle, Long>();
+    		List<HGPersistentHandle> toRead = new ArrayList<HGPersistentHandle>();
+    		for (HGHandle h : handles)
+    		{
+    			HGPersistentHandle persistent = h.getPersistent();
+    			if (found.containsKey(persistent) || versions.containsKey(persistent))
+    				continue;
+    			Json j = docs == null || inTransaction ? null : docs.get(persistent);
+    			if (j != null)
+    				found.put(persistent, j);
+    			else
+    			{
+    				versions.put(persistent, docs == null || inTransaction ? 0 : docs.version(persistent));
+    				toRead.add(persistent);
+    			}
+    		}
+    		Collections.sort(toRead, new Comparator<HGPersistentHandle>() {
+    			public int compare(HGPersistentHandle left, HGPersistentHandle right)
+    			{
+    				byte [] a = left.toByteArray(), b = right.toByteArray();
+    				for (int i = 0; i < Math.min(a.length, b.length); i++)
+    					if (a[i] != b[i])
+    						return (a[i] & 0xff) - (b[i] & 0xff);
+    				return a.length - b.length;
+    			}
+    		});
+    		int chunks = inTransaction ? 1 : Math.max(1, Math.min(parallelism, toRead.size()));
+    		if (chunks == 1)
+    			readBatch(toRead, found);
+    		else
+    		{
+    			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    			for (int i = 0; i < chunks; i++)
+    			{
+    				final List<HGPersistentHandle> chunk = toRead.subList(i * toRead.size() / chunks, (i + 1) * toRead.size() / chunks);
+    				tasks.add(new Callable<Object>() {
+    					public Object call() { readBatch(chunk, found); return null; }
+    				});
+    			}
+    			try
+    			{
+    				for (Future<Object> f : ForkJoinPool.commonPool().invokeAll(tasks))
+    					f.get();
+    			}
+    			catch (InterruptedException ex)
+    			{
+    				Thread.currentThread().interrupt();
+    				throw new HGException("Interrupted while reading documents.", ex);
+    			}
+    			catch (ExecutionException ex)
+    			{
+    				if (ex.getCause() instanceof RuntimeException)
+    					throw (RuntimeException)ex.getCause();
+    				throw new HGException("Failed to read documents.", ex.getCause());
+    			}
+    		}
+    		if (docs != null && !inTransaction)
+    			for (HGPersistentHandle persistent : toRead)
+    				if (found.containsKey(persistent))
+    					docs.load(persistent, found.get(persistent), versions.get(persistent));
+    		List<Json> result = new ArrayList<Json>(handles.size());
+    		for (HGHandle h : handles)
+    			result.add(found.get(h.getPersistent()));
+    		return result;
+    	}
+    	finally
+    	{
+    		metrics.stop(JsonMetrics.Operation.GET, start);
+    	}
+    }
+    
+    private void readBatch(final List<HGPersistentHandle> handles, final Map<HGPersistentHandle, Json> found)
+    {
+    	graph.getTransactionManager().ensureTransaction(new Callable<Object>() {
+    		public Object call()
+    		{
+    			for (HGPersistentHandle h : handles)
+    			{
+    				Object x = readAtom(h);
+    				if (x instanceof Json)
+    					found.put(h, (Json)x);
+    			}
+    			return null;
+    		}
+    	}, HGTransactionConfig.READONLY);
+    }
+    
+    /**
+     * <p>
+     * Return an immutable view of the stored JSON value with the given handle or <code>null</code>
+     * if the atom is not a JSON value. Unlike {@link #get(HGHandle)}, the returned value may be
+     * cached and shared between threads without a defensive copy. Nested values stored once
+     * and referred to from several documents are frozen once and shared. The <code>hghandle</code>
+     * property of entities is set on the frozen document only, the cached atom is left untouched.
+     * </p>
+     */
+    public FrozenJson getFrozen(final HGHandle handle)
+    {
+    	JsonMetrics metrics = this.metrics;
+    	long start = metrics.start();
+    	try
+    	{
+	        return graph.getTransactionManager().ensureTransaction(new Callable<FrozenJson>() {
+	            public FrozenJson call()
+	            {
+	                Object x = graph.get(handle);
+	                if (x instanceof HGValueLink)
+	                	x = ((HGValueLink)x).getValue();
+	                if (! (x instanceof Json))
+	                	return null;
+	                Json j = (Json)x;
+	                String handleProperty = entityInterface.entityHandleProperty();
+	                if (!j.isObject() || handleProperty == null || !entityInterface.isEntity(j))
+	                	return FrozenJson.freeze(j, frozenValues);
+	                Map<String, Json> properties;
+	                synchronized (j)
+	                {
+	                	properties = new LinkedHashMap<String, Json>(j.asJsonMap());
+	                }
+	                properties.put(handleProperty, Json.make(handle.getPersistent().toString()));
+	                return FrozenJson.object(properties, frozenValues);
+	            }
+	        });
+    	}
+    	finally
+    	{
+    		metrics.stop(JsonMetrics.Operation.GET, start);
+    	}
+    }
+
+    /**
+     * <p>
+     * Return a lazily loaded view of the JSON object or array with the given handle,
+     * regardless of the {@link #isLazyMaterialization()} setting. If the atom is already
+     * in the cache or if it is not a JSON object or array, this is the same as {@link #get(HGHandle)}.
+     * To write back a modified entity obtained this way, use <code>add</code>, it will be
+     * identified by its handle property.
+     * </p>
+     */
+    public Json getLazy(HGHandle handle)
+    {
+    	Json j = lazyValue(handle);
+    	if (j == null)
+    		return get(handle);
+        if (j.isObject() && entityInterface.entityHandleProperty() != null && entityInterface.isEntity(j))
+            j.set(entityInterface.entityHandleProperty(), handle.getPersistent().toString());
+    	return j;
+    }
+    
+    /**
+     * Return the handles stored for an atom: the type, value and then target handles. 
+     */
+    HGPersistentHandle [] storedLink(HGHandle handle)
+    {
+    	return graph.getStore().getLink(handle.getPersistent());
+    }
+    
+    /**
+     * Return a lazy view of an object or array atom that's not loaded yet or 
+     * <code>null</code> if the atom is loaded or it is something else. 
+     */
+    Json lazyValue(HGHandle handle)
+    {
+    	if (graph.getCache().get(handle.getPersistent()) != null)
+    		return null;
+    	HGPersistentHandle [] link = storedLink(handle);
+    	if (link == null || link.length < 2)
+    		return null;
+    	HGHandle [] targets = new HGHandle[link.length - 2];
+    	System.arraycopy(link, 2, targets, 0, targets.length);
+    	if (JsonTypeSchema.objectTypeHandle.equals(link[0]))
+    		return new LazyObjectJson(this, targets);
+    	else if (JsonTypeSchema.arrayTypeHandle.equals(link[0]))
+    		return new LazyArrayJson(this, targets);
+    	else
+    		return null;
+    }
+
+    /**
+     * Return the value of an atom as it appears nested in an object or an array: 
+     * entities are replaced by entity references. If <code>lazy</code> is true
+     * and the value is an object or array that is not loaded, a lazy view of it 
+     * is returned.
+     */
+    Json nestedValue(HGHandle valueHandle, boolean lazy)
+    {
+    	Json value = lazy ? lazyValue(valueHandle) : null;
+    	if (value == null)
+    	{
+    		Object x = graph.get(valueHandle);
+    		value = x instanceof HGValueLink ? (Json)((HGValueLink)x).getValue() : (Json)x;
+    	}
+        if (value.isObject() && entityInterface.isEntity(value))
+        	value = entityInterface.createEntityReference(this, valueHandle);
+        return value;
+    }
+    
     /**
      * <p>Adding an atom to the JSON node, or the underlying graph. If the atom is not
      * an instance of <code>JSON</code>, the operation is delegated to the {@link HyperGraph}
@@ -440,15 +1920,44 @@ public class HyperNodeJson implements HyperNode
      */
     public HGHandle add(Object atom)
     {
+    	JsonMetrics metrics = this.metrics;
+    	long start = metrics.start();
+    	QueryResultCache cache = resultCache;
+    	writing(cache, atom);
+    	try
+    	{
+    		return addJson(atom);
+    	}
+    	finally
+    	{
+    		written(cache, atom);
+    		DocumentCache docs = documentCache;
+    		if (docs != null)
+    			docs.committed(graph.getTransactionManager());
+    		ValueCollector collector = valueCollector;
+    		if (collector != null)
+    			collector.committed(graph.getTransactionManager());
+    		metrics.stop(JsonMetrics.Operation.ADD, start);
+    	}
+    }
+    
+    private HGHandle addJson(Object atom)
+    {
+    	if (atom instanceof FrozenJson)
+    		atom = ((FrozenJson)atom).dup();
         if (! (atom instanceof Json))
             return graph.add(atom);
         final Json j = (Json)atom;
-        HGHandle incache = getHandle(j);
-        if (incache != null)
+        final HGHandle incache = getHandle(j);
+        if (incache != null && !markable(j))
             return incache;
-    	return graph.getTransactionManager().ensureTransaction(new Callable<HGHandle>() { public HGHandle call() {
+        else if (incache != null)
+        	return graph.getTransactionManager().ensureTransaction(retryCounted(new Callable<HGHandle>() { public HGHandle call() {
+        		return markRoot(j, incache);
+        	}}));
+    	return graph.getTransactionManager().ensureTransaction(retryCounted(new Callable<HGHandle>() { public HGHandle call() {
     		if (!j.isObject() || !entityInterface.isEntity(j))
-    			return addImpl(j, null);    		
+    			return markRoot(j, addImpl(j, null));
     		// We have to store an entity and we have several possible situations: 
             // 1. the atom is not stored in the db at all => we have to add it
             // 2. the atom is stored already and it's different => we have to replace
@@ -460,7 +1969,7 @@ public class HyperNodeJson implements HyperNode
     			h = entityInterface.lookupEntity(HyperNodeJson.this, j);
     		if (h == null)
     			return addImpl(j, null);
-    		Json existing = get(h);
+    		Json existing = readAtom(h);
     		if (existing == null)
     			return addImpl(j, h);
     		else if (j == existing)
@@ -469,7 +1978,7 @@ public class HyperNodeJson implements HyperNode
     			 //differ superficially due to 'handle property' present or absent
     			replace(h, j, JsonTypeSchema.objectTypeHandle);
     		return h;	
-    	}});
+    	}}));
     }
 
     /**
@@ -482,7 +1991,8 @@ public class HyperNodeJson implements HyperNode
     private HGHandle addImpl(Json j, HGHandle handle)
     {
     	HGHandle h = j.isObject() && entityInterface.isEntity(j) ? addTxn(j, handle) : assertTxn(j);
-        get(h); // ensure presence in local atomTx
+    	if (bulkLoader.get() == null) // bulk loaded documents are not read back
+    		readAtom(h); // ensure presence in local atomTx
         return h;
     }
 
@@ -495,7 +2005,7 @@ public class HyperNodeJson implements HyperNode
     private HGHandle maybeEntityRef(Json value)
     {
         HGHandle h = entityInterface.entityReferenceToHandle(this, value);
-        if (h != null && get(h) == null)
+        if (h != null && readAtom(h) == null)
         	graph.define(h, JsonTypeSchema.objectTypeHandle, new HGValueLink(Json.object(), new HGHandle[0]), 0);
     	return h;
     }
@@ -509,11 +2019,13 @@ public class HyperNodeJson implements HyperNode
     		return elementHandle;
     }
     
-    private HGHandle addValue(Json value)
+    private HGHandle addValue(String name, Json value)
     {
         HGHandle valueHandle = getHandle(value);
         if (valueHandle == null)
         		valueHandle = maybeEntityRef(value);
+        if (valueHandle == null)
+        		valueHandle = assertCompact(name, value);
         if (valueHandle == null)
             valueHandle = addImpl(value, null);
         return valueHandle;
@@ -521,17 +2033,94 @@ public class HyperNodeJson implements HyperNode
     
     private HGHandle addProperty(String name, Json value)
     {
-    		HGHandle valueHandle = addValue(value);
-        HGHandle propHandle = null;
-        HGHandle nameHandle = hg.findOne(graph, hg.eq(name));
-        if (nameHandle == null)
+    	HGHandle valueHandle = addValue(name, value);
+        return assertProperty(assertName(name), valueHandle);
+    }
+    
+    /**
+     * Return the handle of the atom holding a property name or <code>null</code> if
+     * no such atom exists.
+     */
+    HGHandle lookupName(String name)
+    {
+    	HGHandle nameHandle = nameCache.get(name);
+    	ContentHandles content = contentHandles;
+    	if (nameHandle == null && content != null)
+    	{
+    		HGPersistentHandle h = content.name(graph.getTypeSystem().getTypeHandle(String.class), name);
+    		if (graph.getStore().containsLink(h))
+    			nameCache.load(name, nameHandle = h);
+    	}
+    	if (nameHandle == null)
+    	{
+    		nameHandle = queries.get().findName.var("name", name).findOne();
+    		if (nameHandle != null)
+    			nameCache.load(name, nameHandle);
+    	}
+    	return nameHandle;
+    }
+    
+    /**
+     * Return the handle of the atom holding a property name, adding it if it's not
+     * already in the database.
+     */
+    HGHandle assertName(String name)
+    {
+    	JsonBulkLoader bulk = bulkLoader.get();
+    	HGHandle nameHandle = bulk == null ? null : bulk.names.get(name);
+    	if (nameHandle != null)
+    		return nameHandle;
+        ContentHandles content = contentHandles;
+        nameHandle = content == null ? lookupName(name) : nameCache.get(name);
+        if (nameHandle == null && content != null)
+        {
+        	HGHandle type = graph.getTypeSystem().getTypeHandle(String.class);
+        	nameHandle = assertContent(content.name(type, name), type, name);
+        	nameCache.put(name, nameHandle);
+        }
+        else if (nameHandle == null)
+        {
             nameHandle = graph.add(name);
-        else // if the name doesn't exist, the property is definitely not there, otherwise it might
-            propHandle = hg.findOne(graph, hg.and(hg.type(JsonProperty.class), 
-                                                       hg.link(nameHandle,
-                                                               valueHandle)));
-        if (propHandle == null)
-            propHandle = graph.add(new JsonProperty(nameHandle, valueHandle));
+            nameCache.put(name, nameHandle);
+        }
+        if (bulk != null)
+        	bulk.names.put(name, nameHandle);
+        return nameHandle;
+    }
+
+    /**
+     * Return the handle of the <code>JsonProperty</code> link between the given name 
+     * and value atoms, adding it if it's not already in the database.
+     */
+    HGHandle assertProperty(HGHandle nameHandle, HGHandle valueHandle)
+    {
+    	JsonBulkLoader bulk = bulkLoader.get();
+    	List<HGHandle> key = JsonBulkLoader.key(nameHandle, valueHandle);
+    	HGHandle propHandle = bulk == null ? null : bulk.properties.get(key);
+    	if (propHandle != null)
+    		return propHandle;
+    	propHandle = propertyCache.get(key);
+    	ContentHandles content = contentHandles;
+    	if (propHandle == null && content != null)
+    	{
+    		HGHandle type = graph.getTypeSystem().getTypeHandle(JsonProperty.class);
+    		propHandle = assertContent(content.link(type, nameHandle, valueHandle), type, new JsonProperty(nameHandle, valueHandle));
+    		propertyCache.put(key, propHandle);
+    	}
+    	else if (propHandle == null)
+    	{
+    		propHandle = hg.findOne(graph, hg.and(hg.type(JsonProperty.class), 
+                                                  hg.link(nameHandle, valueHandle)));
+    		if (propHandle != null)
+    			propertyCache.load(key, propHandle);
+    		else
+    		{
+    			propHandle = graph.add(new JsonProperty(nameHandle, valueHandle));
+    			propertyCache.put(key, propHandle);
+    		}
+    	}
+        if (bulk != null)
+        	bulk.properties.put(key, propHandle);
         return propHandle;
     }
     
@@ -544,13 +2133,13 @@ public class HyperNodeJson implements HyperNode
         else if (j.isString())
             addElement(j, JsonTypeSchema.stringTypeHandle, handle);
         else if (j.isNumber())
-            addElement(j, JsonTypeSchema.numberTypeHandle, handle);        	
+            addElement(j, JsonNumbers.type(j), handle);        	
         else if (j.isArray())
         {
             int length = j.asJsonList().size();
             HGHandle [] A = new HGHandle[length];
             for (int i = 0; i < length; i++)
-                A[i] = addValue(j.at(i));
+                A[i] = addValue(null, j.at(i));
             if (handle == null)
             		return graph.add(new HGValueLink(j, A), JsonTypeSchema.arrayTypeHandle);
             else
@@ -587,35 +2176,84 @@ public class HyperNodeJson implements HyperNode
         throw new IllegalArgumentException();
     }
 
+    /**
+     * Return the handle of the atom holding a number, with the type given by {@link JsonNumbers},
+     * or <code>null</code> if the number is not stored.
+     */
+    HGHandle lookupNumber(Json j)
+    {
+    	HGHandle type = JsonNumbers.type(j);
+    	HGHandle h = contentLookup(type, j);
+    	if (h != null)
+    		return h;
+    	Object value = JsonNumbers.value(j);
+    	Queries q = queries.get();
+    	if (JsonTypeSchema.longTypeHandle.equals(type))
+    	{
+    		h = q.findLong.var("value", value).findOne();
+    		// Databases created before longs were introduced hold integers as doubles.
+    		long x = (Long)value;
+    		if (h == null && x <= JsonNumbers.MAX_EXACT_DOUBLE && x >= -JsonNumbers.MAX_EXACT_DOUBLE)
+    			h = q.findNumber.var("value", (double)x).findOne();
+    		return h;
+    	}
+    	else if (JsonTypeSchema.decimalTypeHandle.equals(type))
+    		return q.findDecimal.var("value", value).findOne();
+    	else
+    		return q.findNumber.var("value", value).findOne();
+    }
+
+    private HGHandle created(HGHandle h)
+    {
+    	metrics.count(JsonMetrics.Counter.ATOMS_CREATED, 1);
+    	return h;
+    }
+    
     private HGHandle assertTxn(Json j)
     {
         HGHandle h = this.maybeEntityRef(j);
         if (h != null)
         	return h;
+        metrics.count(JsonMetrics.Counter.ATOMS_ASSERTED, 1);
+        ContentHandles content = contentHandles;
+        JsonBulkLoader bulk = bulkLoader.get();
+        if (bulk != null && j.isPrimitive())
+        {
+        	h = bulk.primitives.get(JsonBulkLoader.key(j));
+        	if (h != null)
+        		return h;
+        }
         
         if (j.isNull())
         {
             h = getNullHandle();
             if (h == null)
-                h = graph.add(j, JsonTypeSchema.nullTypeHandle);            
+                h = created(graph.add(j, JsonTypeSchema.nullTypeHandle));            
         }
         else if (j.isBoolean())
         {
-            h = findBoolean.var("value", j).findOne();
+            h = queries.get().findBoolean.var("value", j).findOne();
             if (h == null)
-                h = graph.add(j, JsonTypeSchema.booleanTypeHandle);            
+                h = created(graph.add(j, JsonTypeSchema.booleanTypeHandle));            
+        }
+        else if (j.isString() && content != null)
+            h = assertContent(content.value(JsonTypeSchema.stringTypeHandle, j), JsonTypeSchema.stringTypeHandle, j);
+        else if (j.isNumber() && content != null)
+        {
+        	HGHandle type = JsonNumbers.type(j);
+            h = assertContent(content.value(type, j), type, j);
         }
         else if (j.isString())
         {
-            h = findString.var("value", j.asString()).findOne();
+            h = queries.get().findString.var("value", j.asString()).findOne();
             if (h == null)
-                h = graph.add(j, JsonTypeSchema.stringTypeHandle);            
+                h = created(graph.add(j, JsonTypeSchema.stringTypeHandle));            
         }
         else if (j.isNumber())
         {
-            h = findNumber.var("value", j.asDouble()).findOne();
+            h = lookupNumber(j);
             if (h == null)
-                h = graph.add(j, JsonTypeSchema.numberTypeHandle);            
+                h = created(graph.add(j, JsonNumbers.type(j)));            
         }
         else if (j.isArray())
         {
@@ -632,11 +2270,21 @@ public class HyperNodeJson implements HyperNode
                 	A[i] = entityInterface.entityReferenceToHandle(this, ref);
                 }
                 else
-                	A[i] = assertTxn(ati);
+                	A[i] = assertNested(null, ati);
             }
-            h = hg.findOne(graph, hg.and(hg.type(JsonTypeSchema.arrayTypeHandle),hg.orderedLink(A)));
+            if (content != null)
+            	return assertContent(content.link(JsonTypeSchema.arrayTypeHandle, A), 
+            						 JsonTypeSchema.arrayTypeHandle, new HGValueLink(j, A));
+            List<HGHandle> key = bulk == null ? null : JsonBulkLoader.key(A);
+            if (key != null)
+            	h = bulk.arrays.get(key);
+            if (h == null)
+            	h = lookupStructure(JsonTypeSchema.arrayTypeHandle, A, 
+            						hg.and(hg.type(JsonTypeSchema.arrayTypeHandle),hg.orderedLink(A)));
             if (h == null)
-                h = graph.add(new HGValueLink(j, A), JsonTypeSchema.arrayTypeHandle);            
+                h = created(graph.add(new HGValueLink(j, A), JsonTypeSchema.arrayTypeHandle));
+            if (key != null)
+            	bulk.arrays.put(key, h);
         }
         else if (j.isObject())
         {
@@ -655,25 +2303,27 @@ public class HyperNodeJson implements HyperNode
                 	valueHandle = entityInterface.entityReferenceToHandle(this, ref);                	
                 }
                 else
-                	valueHandle = assertTxn(value);
-                HGHandle propHandle = null;
-                HGHandle nameHandle = hg.findOne(graph, hg.eq(e.getKey()));
-                if (nameHandle == null)
-                    nameHandle = graph.add(e.getKey());
-                else
-                    propHandle = hg.findOne(graph, hg.and(hg.type(JsonProperty.class), 
-                                                               hg.link(nameHandle, 
-                                                                       valueHandle)));
-                if (propHandle == null)
-                    propHandle = graph.add(new JsonProperty(nameHandle, valueHandle));
-                A[i++] = propHandle;
+                	valueHandle = assertNested(e.getKey(), value);
+                A[i++] = assertProperty(assertName(e.getKey()), valueHandle);
             }
-            h = hg.findOne(graph, hg.and(hg.type(JsonTypeSchema.objectTypeHandle), 
-                                         hg.link(A), 
-                                         hg.arity(i)));
+            if (content != null)
+            	return assertContent(content.set(JsonTypeSchema.objectTypeHandle, A), 
+            						 JsonTypeSchema.objectTypeHandle, new HGValueLink(j, A));
+            Set<HGHandle> key = bulk == null ? null : JsonBulkLoader.unorderedKey(A);
+            if (key != null)
+            	h = bulk.objects.get(key);
+            if (h == null)
+            	h = lookupStructure(JsonTypeSchema.objectTypeHandle, A, 
+            						hg.and(hg.type(JsonTypeSchema.objectTypeHandle), 
+                                           hg.link(A), 
+                                           hg.arity(i)));
             if (h == null)
-                h = graph.add(new HGValueLink(j, A), JsonTypeSchema.objectTypeHandle);
+                h = created(graph.add(new HGValueLink(j, A), JsonTypeSchema.objectTypeHandle));
+            if (key != null)
+            	bulk.objects.put(key, h);
         }
+        if (bulk != null && j.isPrimitive())
+        	bulk.primitives.put(JsonBulkLoader.key(j), h);
         return h;
     }
 
@@ -696,18 +2346,49 @@ public class HyperNodeJson implements HyperNode
     {
     		if (! (instance instanceof Json))
     			graph.define(handle, type, instance, flags);
-    		graph.getTransactionManager().ensureTransaction(new Callable<HGHandle>() { public HGHandle call() {
-    			if (get(handle) != null)
-    				throw new IllegalArgumentException("Cannot define a new atom since handle " + handle +  "is already used.");
-    			addImpl((Json)instance, handle);    			
-    			//graph.define(handle, type, instance, flags);
-    			return handle;
-    		} });
+    		QueryResultCache cache = resultCache;
+    		writing(cache, instance);
+    		try
+    		{
+    			graph.getTransactionManager().ensureTransaction(new Callable<HGHandle>() { public HGHandle call() {
+    				if (readAtom(handle) != null)
+    					throw new IllegalArgumentException("Cannot define a new atom since handle " + handle +  "is already used.");
+    				addImpl((Json)instance, handle);    			
+    				//graph.define(handle, type, instance, flags);
+    				return handle;
+    			} });
+    		}
+    		finally
+    		{
+    			written(cache, instance);
+    		}
     }
 
     public boolean remove(HGHandle handle)
     {
-        return graph.remove(handle);
+    	JsonMetrics metrics = this.metrics;
+    	long start = metrics.start();
+    	QueryResultCache cache = resultCache;
+    	Object value = cache == null ? null : readAtom(handle);
+    	writing(cache, value);
+    	DocumentCache docs = documentCache;
+    	if (docs != null)
+    		docs.writing(graph.getTransactionManager(), handle.getPersistent());
+    	ValueCollector collector = valueCollector;
+    	HGPersistentHandle [] released = collector == null ? null : storedLink(handle);
+    	try
+    	{
+    		return graph.remove(handle);
+    	}
+    	finally
+    	{
+    		written(cache, value);
+    		if (docs != null)
+    			docs.written(graph.getTransactionManager(), handle.getPersistent());
+    		if (collector != null)
+    			collector.released(graph.getTransactionManager(), released);
+    		metrics.stop(JsonMetrics.Operation.REMOVE, start);
+    	}
     }
 
     public boolean update(Object atom)
@@ -719,18 +2400,63 @@ public class HyperNodeJson implements HyperNode
             return replace(h, atom, getType(h));
     }
     
-    public boolean replace(final HGHandle handle, final Object newValue, final HGHandle newType)
+    public boolean replace(final HGHandle handle, Object value, final HGHandle newType)
     {
-        return graph.getTransactionManager().ensureTransaction(new Callable<Boolean>() {
-           public Boolean call() { return replaceTransaction(handle, newValue, newType); }
-        });
+    	final Object newValue = value instanceof FrozenJson ? ((FrozenJson)value).dup() : value;
+    	JsonMetrics metrics = this.metrics;
+    	long start = metrics.start();
+    	QueryResultCache cache = resultCache;
+    	Object oldValue = cache == null ? null : readAtom(handle);
+    	writing(cache, oldValue);
+    	writing(cache, newValue);
+    	DocumentCache docs = documentCache;
+    	if (docs != null)
+    		docs.writing(graph.getTransactionManager(), handle.getPersistent());
+    	ValueCollector collector = valueCollector;
+    	HGPersistentHandle [] released = collector == null ? null : storedLink(handle);
+    	try
+    	{
+	        return graph.getTransactionManager().ensureTransaction(retryCounted(new Callable<Boolean>() {
+	           public Boolean call() { return replaceTransaction(handle, newValue, newType); }
+	        }));
+    	}
+    	finally
+    	{
+    		written(cache, oldValue);
+    		written(cache, newValue);
+    		// The new value may be the previous, modified, instance
+    		if (newValue instanceof Json && !frozenValues.isEmpty())
+    			unfreeze((Json)newValue);
+    		if (docs != null)
+    			docs.written(graph.getTransactionManager(), handle.getPersistent());
+    		if (collector != null)
+    			collector.released(graph.getTransactionManager(), released);
+    		metrics.stop(JsonMetrics.Operation.REPLACE, start);
+    	}
     }
     
+    /**
+     * Forget the frozen form of a value and of all values nested in it, since any of them may be a
+     * materialized instance modified in place before being written back.
+     */
+    private void unfreeze(Json j)
+    {
+    	if (j instanceof FrozenJson)
+    		return;
+    	frozenValues.remove(j);
+    	if (j.isObject())
+    		for (Json x : j.asJsonMap().values())
+    			unfreeze(x);
+    	else if (j.isArray())
+    		for (Json x : j.asJsonList())
+    			unfreeze(x);
+    }
+
     private boolean replaceTransaction(HGHandle handle, Object newValue, HGHandle newType)
     {
         if (! (newValue instanceof Json))
             return graph.replace(handle, newValue, newType);
-        Object currentValue = get(handle);
+        Object currentValue = readAtom(handle);
         if (! (currentValue instanceof Json))
             return graph.replace(handle, newValue, newType);
         Json j = (Json)currentValue;
@@ -740,6 +2466,9 @@ public class HyperNodeJson implements HyperNode
         HGHandle currentType = getType(handle);
         if (!currentType.equals(newType) ) // this is outside of the scope of what we're doing with JSON
             return graph.replace(handle, newValue, newType);
+        if (isContentAddressed(handle))
+        	throw new IllegalArgumentException("Refusing to replace a JSON value stored under its content handle, " + 
+        									   "the handle would no longer match the content. Add the new value instead.");
 
         Json h = (Json)newValue;        
         // Ok, here we are replacing a JSON object with a JSON object or a JSON array with a JSON array.
@@ -760,7 +2489,7 @@ public class HyperNodeJson implements HyperNode
                     // is arbitrary and we don't know how to update nested arrays because
                     // we don't have their handles. So for now we don't and we assume
                     // that nesting arrays within arrays is not used in this context.
-                    targets[i] = this.assertTxn(el);
+                    targets[i] = assertNested(null, el);
                 }
                 else
                 {
@@ -772,7 +2501,7 @@ public class HyperNodeJson implements HyperNode
                         targets[i] = entityInterface.entityReferenceToHandle(this, ref);
                     }
                     else
-                        targets[i] = this.assertTxn(el);
+                        targets[i] = assertNested(null, el);
                 }
             }
             // Here we may need to loop through the old target set and maybe do some cleanup...
@@ -782,12 +2511,6 @@ public class HyperNodeJson implements HyperNode
         // For objects, we sync up old with new, deleting missing properties and setting new ones.
         
         // First put all properties of the old object in a map so we know their value handles:
-        Object xx = graph.get(handle);
-        if (! (xx instanceof HGValueLink) ) 
-        {
-        	System.out.println("Atom expected value link : " + xx);
-        	xx = graph.get(handle);
-        }
         HGValueLink currentAsLink = graph.get(handle);
         Map<String, HGHandle> valueMap = new HashMap<String, HGHandle>();
         for (HGHandle propHandle : currentAsLink)
@@ -800,18 +2523,21 @@ public class HyperNodeJson implements HyperNode
         int i = 0;
         for (Map.Entry<String, Json> e : h.asJsonMap().entrySet())
         {
-            HGHandle nameHandle = hg.findOne(graph, hg.eq(e.getKey()));
-            if (nameHandle == null)
-                nameHandle = graph.add(e.getKey());
+            HGHandle nameHandle = assertName(e.getKey());
             HGHandle valueHandle = null;
             Json el = e.getValue();
             if (el.isPrimitive() || el.isNull())
                 valueHandle = this.assertTxn(el);            
             else if (el.isArray())
             {
-                // here we replace the old array if there's one
+                // here we replace the old array if there's one, unless either is compact
+                // or the handle is bound to the content
                 valueHandle = valueMap.get(e.getKey());
-                if (valueHandle != null)
+                HGHandle compact = assertCompact(e.getKey(), el);
+                if (compact != null)
+                	valueHandle = compact;
+                else if (valueHandle != null && contentHandles == null && 
+                		 JsonTypeSchema.arrayTypeHandle.equals(getType(valueHandle)))
                     replace(valueHandle, el, JsonTypeSchema.arrayTypeHandle);
                 else
                     valueHandle = this.assertTxn(el);
@@ -823,20 +2549,23 @@ public class HyperNodeJson implements HyperNode
                 	Json ref = entityInterface.createEntityReference(this, add(el));
                     valueHandle = entityInterface.entityReferenceToHandle(this, ref);
                 }
-                else if (valueMap.containsKey(e.getKey()))
+                else
                 {
-                    valueHandle = valueMap.get(e.getKey());
-                    replace(valueHandle, el, JsonTypeSchema.objectTypeHandle);
+                	// the old object is replaced in place unless either is compact or
+                	// the handle is bound to the content
+                    valueHandle = assertCompact(e.getKey(), el);
+                    HGHandle current = valueMap.get(e.getKey());
+                    if (valueHandle == null && current != null && contentHandles == null &&
+                    	JsonTypeSchema.objectTypeHandle.equals(getType(current)))
+                    {
+                        valueHandle = current;
+                        replace(valueHandle, el, JsonTypeSchema.objectTypeHandle);
+                    }
+                    else if (valueHandle == null)
+                        valueHandle = this.assertTxn(el);
                 }
-                else
-                    valueHandle = this.assertTxn(el);
             }
-            HGHandle propHandle = hg.findOne(graph, hg.and(hg.type(JsonProperty.class), 
-                                                           hg.link(nameHandle,
-                                                                   valueHandle)));
-            if (propHandle == null)
-                propHandle = graph.add(new JsonProperty(nameHandle, valueHandle));
-            A[i++] = propHandle;            
+            A[i++] = assertProperty(nameHandle, valueHandle);
         }
         return graph.replace(handle, new HGValueLink(h, A), JsonTypeSchema.objectTypeHandle);
     }
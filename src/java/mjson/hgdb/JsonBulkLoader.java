@@ -0,0 +1,273 @@
+package mjson.hgdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.util.Mapping;
+
+/**
+ * <p>
+ * Adds large numbers of documents to a {@link HyperNodeJson}. Every document is added
+ * exactly as with {@link HyperNodeJson#add(Object)}, but property names, primitive values,
+ * property links and nested immutable values are interned in memory for the whole load.
+ * A value that has already been seen costs a hash lookup instead of a database query.
+ * Documents are committed in chunks of {@link #chunkSize()} documents, one transaction per chunk.
+ * </p>
+ *
+ * <p>
+ * Handles interned while adding a chunk become visible to later chunks only after the
+ * chunk's transaction commits, so a transaction that is retried or aborted never leaves
+ * handles to non-existing atoms behind. The interning tables are bounded by
+ * {@link #internCapacity()} entries each, the least recently used entries being dropped
+ * first.
+ * </p>
+ *
+ * <p>
+ * A loader is meant to be used by a single thread and outside of any transaction. Added
+ * documents are not read back from the database so, unlike with <code>add</code>, they
+ * won't be in the node's cache afterwards.
+ * </p>
+ */
+public class JsonBulkLoader
+{
+	/**
+	 * A map of committed entries plus the entries added by the chunk currently
+	 * being loaded.
+	 */
+	class InternTable<K>
+	{
+		private Map<K, HGHandle> pending = new HashMap<K, HGHandle>();
+		@SuppressWarnings("serial")
+		private Map<K, HGHandle> committed = new LinkedHashMap<K, HGHandle>(1024, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<K, HGHandle> eldest)
+			{
+				return size() > internCapacity;
+			}
+		};
+
+		HGHandle get(K key)
+		{
+			HGHandle h = pending.get(key);
+			return h != null ? h : committed.get(key);
+		}
+
+		void put(K key, HGHandle h)
+		{
+			pending.put(key, h);
+		}
+
+		void commit()
+		{
+			committed.putAll(pending);
+			pending.clear();
+		}
+
+		void rollback()
+		{
+			pending.clear();
+		}
+
+		void clear()
+		{
+			pending.clear();
+			committed.clear();
+		}
+
+		int size()
+		{
+			return committed.size();
+		}
+	}
+
+	static List<HGHandle> key(HGHandle...handles)
+	{
+		HGHandle [] A = new HGHandle[handles.length];
+		for (int i = 0; i < A.length; i++)
+			A[i] = handles[i].getPersistent();
+		return Arrays.asList(A);
+	}
+
+	static Set<HGHandle> unorderedKey(HGHandle [] handles)
+	{
+		Set<HGHandle> S = new HashSet<HGHandle>();
+		for (HGHandle h : handles)
+			S.add(h.getPersistent());
+		return S;
+	}
+
+	/**
+	 * The key of a primitive: numbers are keyed by their stored value so 1 and 1.0 are the same value.
+	 */
+	static Object key(Json primitive)
+	{
+		if (primitive.isNumber())
+			return JsonNumbers.value(primitive);
+		else
+			return primitive.getValue();
+	}
+
+	final InternTable<String> names = new InternTable<String>();
+	final InternTable<Object> primitives = new InternTable<Object>();
+	final InternTable<List<HGHandle>> properties = new InternTable<List<HGHandle>>();
+	final InternTable<List<HGHandle>> arrays = new InternTable<List<HGHandle>>();
+	final InternTable<Set<HGHandle>> objects = new InternTable<Set<HGHandle>>();
+
+	private HyperNodeJson node;
+	private int chunkSize = 1000;
+	private int internCapacity = 1000000;
+	private Mapping<Json, Boolean> progress = null;
+	private long documentCount = 0, chunkCount = 0, startTime = 0, elapsed = 0;
+
+	private List<InternTable<?>> tables()
+	{
+		return Arrays.<InternTable<?>>asList(names, primitives, properties, arrays, objects);
+	}
+
+	public JsonBulkLoader(HyperNodeJson node)
+	{
+		this.node = node;
+	}
+
+	public int chunkSize()
+	{
+		return chunkSize;
+	}
+
+	/**
+	 * <p>Set the number of documents committed in a single transaction.</p>
+	 */
+	public JsonBulkLoader chunkSize(int chunkSize)
+	{
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	public int internCapacity()
+	{
+		return internCapacity;
+	}
+
+	/**
+	 * <p>Set the maximum number of entries kept in each interning table.</p>
+	 */
+	public JsonBulkLoader internCapacity(int internCapacity)
+	{
+		this.internCapacity = internCapacity;
+		return this;
+	}
+
+	/**
+	 * <p>
+	 * Set a function invoked with the current {@link #stats()} after every committed
+	 * chunk. Returning <code>false</code> from it stops the load.
+	 * </p>
+	 */
+	public JsonBulkLoader progress(Mapping<Json, Boolean> progress)
+	{
+		this.progress = progress;
+		return this;
+	}
+
+	/**
+	 * <p>
+	 * Return the statistics of this loader so far: number of <code>documents</code> and
+	 * <code>chunks</code> committed, <code>elapsedMillis</code>, <code>docsPerSecond</code>
+	 * and the number of <code>interned</code> entries.
+	 * </p>
+	 */
+	public Json stats()
+	{
+		long nanos = elapsed + (startTime > 0 ? System.nanoTime() - startTime : 0);
+		int interned = 0;
+		for (InternTable<?> table : tables())
+			interned += table.size();
+		return Json.object("documents", documentCount,
+						   "chunks", chunkCount,
+						   "elapsedMillis", nanos / 1000000,
+						   "docsPerSecond", nanos == 0 ? 0.0 : documentCount * 1e9 / nanos,
+						   "interned", interned);
+	}
+
+	/**
+	 * <p>
+	 * Add all <code>documents</code> to the node and return the load {@link #stats()}.
+	 * This method must be called outside of a transaction.
+	 * </p>
+	 */
+	public Json load(Iterable<Json> documents)
+	{
+		if (node.graph().getTransactionManager().getContext().getCurrent() != null)
+			throw new IllegalStateException("A bulk load must not be nested inside another transaction.");
+		final List<Json> chunk = new ArrayList<Json>(chunkSize);
+		Iterator<Json> I = documents.iterator();
+		startTime = System.nanoTime();
+		node.setBulkLoader(this);
+		ValueCollector collector = node.getValueCollector();
+		if (collector != null)
+		{
+			// Values interned by a previous load may have been collected since.
+			collector.bulkLoadStarted();
+			for (InternTable<?> table : tables())
+				table.clear();
+		}
+		try
+		{
+			while (I.hasNext())
+			{
+				chunk.clear();
+				while (I.hasNext() && chunk.size() < chunkSize)
+					chunk.add(I.next());
+				node.graph().getTransactionManager().transact(new Callable<Object>() {
+					public Object call()
+					{
+						rollback(); // a previous attempt may have failed half way
+						for (Json j : chunk)
+							node.add(j);
+						return null;
+					}
+				});
+				for (InternTable<?> table : tables())
+					table.commit();
+				if (node.getResultCache() != null)
+					node.getResultCache().committed(node.graph().getTransactionManager());
+				if (node.getDocumentCache() != null)
+					node.getDocumentCache().committed(node.graph().getTransactionManager());
+				if (collector != null)
+					collector.committed(node.graph().getTransactionManager());
+				documentCount += chunk.size();
+				chunkCount++;
+				if (progress != null && !progress.eval(stats()))
+					break;
+			}
+		}
+		finally
+		{
+			rollback();
+			node.setBulkLoader(null);
+			if (collector != null)
+				collector.bulkLoadEnded();
+			elapsed += System.nanoTime() - startTime;
+			startTime = 0;
+		}
+		return stats();
+	}
+
+	private void rollback()
+	{
+		for (InternTable<?> table : tables())
+			table.rollback();
+	}
+}
@@ -0,0 +1,315 @@
+package mjson.hgdb;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import mjson.Json;
+
+/**
+ * <p>
+ * Compact binary encoding of JSON values, a subset of CBOR (RFC 8949): integers, doubles,
+ * decimal fractions (tag 4, with a bignum mantissa when it doesn't fit in a long), text strings,
+ * arrays, maps with text keys and the <code>null</code>, <code>true</code> and <code>false</code>
+ * simple values.
+ * </p>
+ *
+ * <p>
+ * The encoding is canonical: object properties are written sorted by name and numbers in the
+ * form {@link JsonNumbers} stores them, so that equal values have equal encodings.
+ * </p>
+ */
+final class JsonCodec
+{
+	private static final int UNSIGNED = 0, NEGATIVE = 1, BYTES = 2, TEXT = 3, ARRAY = 4, MAP = 5, TAG = 6, SIMPLE = 7;
+	private static final int TAG_BIGNUM = 2, TAG_NEGATIVE_BIGNUM = 3, TAG_DECIMAL = 4;
+	private static final int FALSE = 0xf4, TRUE = 0xf5, NULL = 0xf6, DOUBLE = 0xfb;
+
+	private byte [] buffer;
+	private int size;
+
+	private JsonCodec(int offset)
+	{
+		buffer = new byte[Math.max(64, offset * 2)];
+		size = offset;
+	}
+
+	/**
+	 * Encode a JSON value, leaving <code>offset</code> zero bytes at the beginning of the result.
+	 */
+	static byte [] encode(Json j, int offset)
+	{
+		JsonCodec codec = new JsonCodec(offset);
+		codec.write(j);
+		return Arrays.copyOf(codec.buffer, codec.size);
+	}
+
+	/**
+	 * Decode the JSON value encoded from <code>offset</code> to the end of <code>data</code>.
+	 */
+	static Json decode(byte [] data, int offset)
+	{
+		int [] pos = new int[] { offset };
+		Json j = read(data, pos);
+		if (pos[0] != data.length)
+			throw new IllegalArgumentException("Trailing bytes after encoded JSON value at " + pos[0]);
+		return j;
+	}
+
+	private void ensure(int n)
+	{
+		if (size + n > buffer.length)
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + n));
+	}
+
+	private void put(int b)
+	{
+		ensure(1);
+		buffer[size++] = (byte)b;
+	}
+
+	private void put(long x, int bytes)
+	{
+		ensure(bytes);
+		for (int i = bytes - 1; i >= 0; i--)
+			buffer[size++] = (byte)(x >>> (8 * i));
+	}
+
+	private void put(byte [] data)
+	{
+		ensure(data.length);
+		System.arraycopy(data, 0, buffer, size, data.length);
+		size += data.length;
+	}
+
+	// The argument is unsigned, a negative long stands for a value above Long.MAX_VALUE.
+	private void head(int major, long argument)
+	{
+		int type = major << 5;
+		if (argument >= 0 && argument < 24)
+			put(type | (int)argument);
+		else if (argument >= 0 && argument <= 0xffL)
+		{
+			put(type | 24);
+			put(argument, 1);
+		}
+		else if (argument >= 0 && argument <= 0xffffL)
+		{
+			put(type | 25);
+			put(argument, 2);
+		}
+		else if (argument >= 0 && argument <= 0xffffffffL)
+		{
+			put(type | 26);
+			put(argument, 4);
+		}
+		else
+		{
+			put(type | 27);
+			put(argument, 8);
+		}
+	}
+
+	private void integer(long x)
+	{
+		if (x >= 0)
+			head(UNSIGNED, x);
+		else
+			head(NEGATIVE, ~x); // -1 - x
+	}
+
+	private void integer(BigInteger x)
+	{
+		if (x.bitLength() < 64)
+		{
+			integer(x.longValue());
+			return;
+		}
+		boolean negative = x.signum() < 0;
+		byte [] magnitude = (negative ? x.not() : x).toByteArray();
+		int start = magnitude[0] == 0 ? 1 : 0; // drop the sign byte
+		head(TAG, negative ? TAG_NEGATIVE_BIGNUM : TAG_BIGNUM);
+		head(BYTES, magnitude.length - start);
+		put(Arrays.copyOfRange(magnitude, start, magnitude.length));
+	}
+
+	private void text(String s)
+	{
+		byte [] utf8 = s.getBytes(StandardCharsets.UTF_8);
+		head(TEXT, utf8.length);
+		put(utf8);
+	}
+
+	private void write(Json j)
+	{
+		if (j.isNull())
+			put(NULL);
+		else if (j.isBoolean())
+			put(j.asBoolean() ? TRUE : FALSE);
+		else if (j.isString())
+			text(j.asString());
+		else if (j.isNumber())
+		{
+			Object value = JsonNumbers.value(j);
+			if (value instanceof Long)
+				integer((Long)value);
+			else if (value instanceof Double)
+			{
+				put(DOUBLE);
+				put(Double.doubleToLongBits((Double)value), 8);
+			}
+			else
+			{
+				BigDecimal d = (BigDecimal)value;
+				head(TAG, TAG_DECIMAL);
+				head(ARRAY, 2);
+				integer(-(long)d.scale());
+				integer(d.unscaledValue());
+			}
+		}
+		else if (j.isArray())
+		{
+			head(ARRAY, j.asJsonList().size());
+			for (Json x : j.asJsonList())
+				write(x);
+		}
+		else if (j.isObject())
+		{
+			Map<String, Json> sorted = new TreeMap<String, Json>(j.asJsonMap());
+			head(MAP, sorted.size());
+			for (Map.Entry<String, Json> e : sorted.entrySet())
+			{
+				text(e.getKey());
+				write(e.getValue());
+			}
+		}
+		else
+			throw new IllegalArgumentException("Unknown JSON type: " + j);
+	}
+
+	private static long argument(byte [] data, int [] pos, int info)
+	{
+		int bytes;
+		if (info < 24)
+			return info;
+		else if (info == 24)
+			bytes = 1;
+		else if (info == 25)
+			bytes = 2;
+		else if (info == 26)
+			bytes = 4;
+		else if (info == 27)
+			bytes = 8;
+		else
+			throw new IllegalArgumentException("Unsupported CBOR argument " + info + " at " + (pos[0] - 1));
+		long x = 0;
+		for (int i = 0; i < bytes; i++)
+			x = (x << 8) | (data[pos[0]++] & 0xff);
+		return x;
+	}
+
+	private static int length(byte [] data, int [] pos, int info)
+	{
+		long n = argument(data, pos, info);
+		if (n < 0 || n > data.length - pos[0]) // items take a byte at least
+			throw new IllegalArgumentException("Invalid CBOR length " + n);
+		return (int)n;
+	}
+
+	private static BigInteger readInteger(byte [] data, int [] pos)
+	{
+		int initial = data[pos[0]++] & 0xff;
+		int major = initial >>> 5, info = initial & 0x1f;
+		long x = argument(data, pos, info);
+		if (major == UNSIGNED || major == NEGATIVE)
+		{
+			BigInteger n = x >= 0 ? BigInteger.valueOf(x) : BigInteger.valueOf(x).add(BigInteger.ONE.shiftLeft(64));
+			return major == UNSIGNED ? n : n.not();
+		}
+		else if (major == TAG && (x == TAG_BIGNUM || x == TAG_NEGATIVE_BIGNUM))
+		{
+			int bytesHead = data[pos[0]++] & 0xff;
+			if (bytesHead >>> 5 != BYTES)
+				throw new IllegalArgumentException("Expected a CBOR byte string at " + (pos[0] - 1));
+			int n = length(data, pos, bytesHead & 0x1f);
+			BigInteger magnitude = new BigInteger(1, Arrays.copyOfRange(data, pos[0], pos[0] + n));
+			pos[0] += n;
+			return x == TAG_BIGNUM ? magnitude : magnitude.not();
+		}
+		throw new IllegalArgumentException("Expected a CBOR integer at " + (pos[0] - 1));
+	}
+
+	private static Json read(byte [] data, int [] pos)
+	{
+		int start = pos[0];
+		int initial = data[pos[0]++] & 0xff;
+		int major = initial >>> 5, info = initial & 0x1f;
+		switch (major)
+		{
+			case UNSIGNED:
+			case NEGATIVE:
+			{
+				pos[0] = start;
+				BigInteger n = readInteger(data, pos);
+				return n.bitLength() < 64 ? Json.make(n.longValue()) : Json.make(new BigDecimal(n));
+			}
+			case TEXT:
+			{
+				int n = length(data, pos, info);
+				String s = new String(data, pos[0], n, StandardCharsets.UTF_8);
+				pos[0] += n;
+				return Json.make(s);
+			}
+			case ARRAY:
+			{
+				int n = length(data, pos, info);
+				Json A = Json.array();
+				for (int i = 0; i < n; i++)
+					A.add(read(data, pos));
+				return A;
+			}
+			case MAP:
+			{
+				int n = length(data, pos, info);
+				Json O = Json.object();
+				for (int i = 0; i < n; i++)
+				{
+					Json name = read(data, pos);
+					if (!name.isString())
+						throw new IllegalArgumentException("Expected a property name at " + start);
+					O.set(name.asString(), read(data, pos));
+				}
+				return O;
+			}
+			case TAG:
+			{
+				long tag = argument(data, pos, info);
+				if (tag == TAG_BIGNUM || tag == TAG_NEGATIVE_BIGNUM)
+				{
+					pos[0] = start;
+					return Json.make(new BigDecimal(readInteger(data, pos)));
+				}
+				if (tag != TAG_DECIMAL || (data[pos[0]++] & 0xff) != ((ARRAY << 5) | 2))
+					throw new IllegalArgumentException("Unsupported CBOR tag " + tag + " at " + start);
+				BigInteger exponent = readInteger(data, pos);
+				BigInteger mantissa = readInteger(data, pos);
+				return Json.make(new BigDecimal(mantissa, exponent.negate().intValueExact()));
+			}
+			case SIMPLE:
+				if (initial == NULL)
+					return Json.nil();
+				else if (initial == TRUE)
+					return Json.make(true);
+				else if (initial == FALSE)
+					return Json.make(false);
+				else if (initial == DOUBLE)
+					return Json.make(Double.longBitsToDouble(argument(data, pos, info)));
+				// fall through
+			default:
+				throw new IllegalArgumentException("Unsupported CBOR item " + initial + " at " + start);
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package mjson.hgdb;
+
+/**
+ * <p>
+ * Receives operational measurements from a {@link HyperNodeJson}: timings of the main
+ * operations and a few event counters. A node reports to {@link #NOOP} unless configured
+ * otherwise with {@link HyperNodeJson#setMetrics(JsonMetrics)}, in which case instrumentation
+ * costs nothing more than a few empty method calls. {@link JsonMetricsRegistry} is an
+ * implementation keeping counts and latency histograms, and exposing them through JMX.
+ * </p>
+ *
+ * <p>
+ * Implementations must be thread-safe.
+ * </p>
+ */
+public interface JsonMetrics
+{
+	/**
+	 * The operations of a node, each call to them counted once. The latency of a {@link #FIND} 
+	 * covers planning and opening the result set, not iterating over it.
+	 */
+	enum Operation { ADD, GET, FIND, REPLACE, REMOVE }
+
+	enum Counter
+	{
+		/** Calls to assert an immutable JSON value, whether it was found or created. */
+		ATOMS_ASSERTED,
+		/** New atoms created while asserting immutable values. */
+		ATOMS_CREATED,
+		/** Unreferenced value atoms deleted by a {@link ValueCollector}. */
+		ATOMS_RECLAIMED,
+		/** Name/value tuples enumerated by property pattern queries. */
+		CROSS_PRODUCT_TUPLES,
+		/** Lookups of the handle of a Json instance found in the node's atom cache. */
+		ATOM_CACHE_HITS,
+		/** Lookups of the handle of a Json instance not found in the node's atom cache. */
+		ATOM_CACHE_MISSES,
+		/** Transactions of the node's operations that were run again after a conflict. */
+		TRANSACTION_RETRIES
+	}
+
+	/**
+	 * <p>Return a start time to be passed to {@link #stop(Operation, long)} when the operation completes.</p>
+	 */
+	long start();
+
+	/**
+	 * <p>Record the completion of an operation started at <code>start</code>.</p>
+	 */
+	void stop(Operation operation, long start);
+
+	/**
+	 * <p>Add <code>n</code> to a counter.</p>
+	 */
+	void count(Counter counter, long n);
+
+	/**
+	 * Metrics that go nowhere.
+	 */
+	JsonMetrics NOOP = new JsonMetrics() {
+		public long start() { return 0; }
+		public void stop(Operation operation, long start) { }
+		public void count(Counter counter, long n) { }
+	};
+}
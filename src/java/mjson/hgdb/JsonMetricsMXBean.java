@@ -0,0 +1,22 @@
+package mjson.hgdb;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * The JMX view of a {@link JsonMetricsRegistry}. Maps are keyed by counter and operation names. 
+ * </p>
+ */
+public interface JsonMetricsMXBean
+{
+	Map<String, Long> getCounters();
+	Map<String, Long> getOperationCounts();
+	Map<String, Double> getMeanLatencyMicros();
+	Map<String, Long> getMedianLatencyMicros();
+	Map<String, Long> getP99LatencyMicros();
+	/**
+	 * All statistics, including the full latency histograms, as a JSON string.
+	 */
+	String getStats();
+	void reset();
+}
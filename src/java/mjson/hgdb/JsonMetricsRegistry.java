@@ -0,0 +1,242 @@
+package mjson.hgdb;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGException;
+
+/**
+ * <p>
+ * A {@link JsonMetrics} implementation maintaining, for each operation, a count, the total time
+ * and a latency histogram, as well as the event counters. Histogram buckets are powers of 2 in
+ * microseconds so percentiles are approximate: they are reported as the upper bound of the
+ * bucket where they fall. Everything is lock free.
+ * </p>
+ *
+ * <p>
+ * Statistics are available as JSON with {@link #stats()} and through JMX once the registry is
+ * registered with the platform MBean server with {@link #register(String)}. A typical setup:
+ * </p>
+ *
+ * <pre><code>
+ * node.setMetrics(new JsonMetricsRegistry().register("mydb"));
+ * </code></pre>
+ */
+public class JsonMetricsRegistry implements JsonMetrics, JsonMetricsMXBean
+{
+	static final int BUCKETS = 40;
+
+	static class Timer
+	{
+		final AtomicLong count = new AtomicLong(), totalNanos = new AtomicLong();
+		final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		void record(long nanos)
+		{
+			count.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			int bucket = 64 - Long.numberOfLeadingZeros(nanos / 1000);
+			histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+
+		double mean()
+		{
+			long n = count.get();
+			return n == 0 ? 0.0 : totalNanos.get() / 1000.0 / n;
+		}
+
+		long percentile(double p)
+		{
+			long target = (long)Math.ceil(count.get() * p), seen = 0;
+			if (target == 0)
+				return 0;
+			for (int i = 0; i < BUCKETS; i++)
+			{
+				seen += histogram.get(i);
+				if (seen >= target)
+					return 1L << i;
+			}
+			return 1L << (BUCKETS - 1);
+		}
+
+		void reset()
+		{
+			count.set(0);
+			totalNanos.set(0);
+			for (int i = 0; i < BUCKETS; i++)
+				histogram.set(i, 0);
+		}
+
+		Json toJson()
+		{
+			Json buckets = Json.object();
+			for (int i = 0; i < BUCKETS; i++)
+				if (histogram.get(i) > 0)
+					buckets.set("<" + (1L << i), histogram.get(i));
+			return Json.object("count", count.get(),
+							   "meanMicros", mean(),
+							   "medianMicros", percentile(0.5),
+							   "p99Micros", percentile(0.99),
+							   "histogramMicros", buckets);
+		}
+	}
+
+	private final AtomicLong [] counters = new AtomicLong[Counter.values().length];
+	private final Timer [] timers = new Timer[Operation.values().length];
+	private volatile ObjectName objectName = null;
+
+	public JsonMetricsRegistry()
+	{
+		for (int i = 0; i < counters.length; i++)
+			counters[i] = new AtomicLong();
+		for (int i = 0; i < timers.length; i++)
+			timers[i] = new Timer();
+	}
+
+	public long start()
+	{
+		return System.nanoTime();
+	}
+
+	public void stop(Operation operation, long start)
+	{
+		timers[operation.ordinal()].record(System.nanoTime() - start);
+	}
+
+	public void count(Counter counter, long n)
+	{
+		counters[counter.ordinal()].addAndGet(n);
+	}
+
+	public long get(Counter counter)
+	{
+		return counters[counter.ordinal()].get();
+	}
+
+	public long count(Operation operation)
+	{
+		return timers[operation.ordinal()].count.get();
+	}
+
+	/**
+	 * <p>Return the number of asserted immutable values that were found already stored.</p>
+	 */
+	public long deduplicated()
+	{
+		return get(Counter.ATOMS_ASSERTED) - get(Counter.ATOMS_CREATED);
+	}
+
+	/**
+	 * <p>
+	 * Register this registry with the platform MBean server under the name
+	 * <code>mjson.hgdb:type=JsonMetrics,name=&lt;name&gt;</code>.
+	 * </p>
+	 */
+	public JsonMetricsRegistry register(String name)
+	{
+		try
+		{
+			ObjectName on = new ObjectName("mjson.hgdb:type=JsonMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			objectName = on;
+			return this;
+		}
+		catch (JMException ex)
+		{
+			throw new HGException("Could not register JSON metrics " + name + " with JMX.", ex);
+		}
+	}
+
+	/**
+	 * <p>Remove this registry from the platform MBean server, if it was registered.</p>
+	 */
+	public void unregister()
+	{
+		ObjectName on = objectName;
+		if (on == null)
+			return;
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+			objectName = null;
+		}
+		catch (JMException ex)
+		{
+			throw new HGException("Could not unregister JSON metrics " + on, ex);
+		}
+	}
+
+	public Map<String, Long> getCounters()
+	{
+		Map<String, Long> M = new LinkedHashMap<String, Long>();
+		for (Counter c : Counter.values())
+			M.put(c.name(), get(c));
+		M.put("ATOMS_DEDUPLICATED", deduplicated());
+		return M;
+	}
+
+	public Map<String, Long> getOperationCounts()
+	{
+		Map<String, Long> M = new LinkedHashMap<String, Long>();
+		for (Operation op : Operation.values())
+			M.put(op.name(), count(op));
+		return M;
+	}
+
+	public Map<String, Double> getMeanLatencyMicros()
+	{
+		Map<String, Double> M = new LinkedHashMap<String, Double>();
+		for (Operation op : Operation.values())
+			M.put(op.name(), timers[op.ordinal()].mean());
+		return M;
+	}
+
+	public Map<String, Long> getMedianLatencyMicros()
+	{
+		Map<String, Long> M = new LinkedHashMap<String, Long>();
+		for (Operation op : Operation.values())
+			M.put(op.name(), timers[op.ordinal()].percentile(0.5));
+		return M;
+	}
+
+	public Map<String, Long> getP99LatencyMicros()
+	{
+		Map<String, Long> M = new LinkedHashMap<String, Long>();
+		for (Operation op : Operation.values())
+			M.put(op.name(), timers[op.ordinal()].percentile(0.99));
+		return M;
+	}
+
+	public String getStats()
+	{
+		return stats().toString();
+	}
+
+	/**
+	 * <p>Return all statistics as a JSON object with a <code>counters</code> and an
+	 * <code>operations</code> property.</p>
+	 */
+	public Json stats()
+	{
+		Json operations = Json.object();
+		for (Operation op : Operation.values())
+			operations.set(op.name().toLowerCase(), timers[op.ordinal()].toJson());
+		return Json.object("counters", Json.make(getCounters()), "operations", operations);
+	}
+
+	public void reset()
+	{
+		for (AtomicLong c : counters)
+			c.set(0);
+		for (Timer t : timers)
+			t.reset();
+	}
+}
@@ -0,0 +1,149 @@
+package mjson.hgdb;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+
+/**
+ * <p>
+ * Decides how a JSON number is stored. Every number has a single canonical representation so
+ * that equal numbers are stored once and found again regardless of how they were written:
+ * </p>
+ *
+ * <ul>
+ * <li>integers that fit in 64 bits, including doubles with no fractional part such as <code>2.0</code>,
+ * are stored as longs with {@link JsonTypeSchema#longTypeHandle};</li>
+ * <li>other doubles, and decimals that are exactly the double with the same decimal representation,
+ * are stored as doubles with {@link JsonTypeSchema#numberTypeHandle};</li>
+ * <li>everything else, i.e. decimals with more significant digits than a double holds and integers
+ * beyond 64 bits, is stored as a <code>BigDecimal</code> with {@link JsonTypeSchema#decimalTypeHandle}.</li>
+ * </ul>
+ */
+final class JsonNumbers
+{
+	// Integers up to 2^53 are exact as doubles, those were stored as doubles before longs were.
+	static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+	private JsonNumbers() { }
+
+	/**
+	 * Return the exact value of a JSON number, doubles being taken by their shortest decimal form,
+	 * or <code>null</code> for infinities and NaN.
+	 */
+	static BigDecimal decimal(Json n)
+	{
+		Object x = n.getValue();
+		if (x instanceof BigDecimal)
+			return (BigDecimal)x;
+		else if (x instanceof BigInteger)
+			return new BigDecimal((BigInteger)x);
+		else if (x instanceof Long || x instanceof Integer || x instanceof Short || x instanceof Byte)
+			return BigDecimal.valueOf(((Number)x).longValue());
+		else if (x instanceof Float)
+			return Float.isNaN((Float)x) || Float.isInfinite((Float)x) ? null : new BigDecimal(x.toString());
+		double d = ((Number)x).doubleValue();
+		return Double.isNaN(d) || Double.isInfinite(d) ? null : BigDecimal.valueOf(d);
+	}
+
+	/**
+	 * Return the value of a JSON number as a long or <code>null</code> if it's not an integer
+	 * or out of the long range.
+	 */
+	static Long integer(Json n)
+	{
+		Object x = n.getValue();
+		if (x instanceof Long || x instanceof Integer || x instanceof Short || x instanceof Byte)
+			return ((Number)x).longValue();
+		else if (x instanceof Double || x instanceof Float)
+		{
+			double d = ((Number)x).doubleValue();
+			// 2^63 itself is a double but not a long
+			return d == Math.rint(d) && d >= -0x1p63 && d < 0x1p63 ? (Long)(long)d : null;
+		}
+		BigDecimal d = decimal(n);
+		try
+		{
+			return d == null ? null : d.longValueExact();
+		}
+		catch (ArithmeticException ex)
+		{
+			return null;
+		}
+	}
+
+	private static boolean isDouble(Json n)
+	{
+		return n.getValue() instanceof Double || n.getValue() instanceof Float;
+	}
+
+	/**
+	 * Return a JSON number as a double when no other number has the same double value, that is
+	 * for doubles and integers of magnitude below 2^53, or <code>null</code> otherwise.
+	 */
+	static Double exactDouble(Json n)
+	{
+		HGHandle type = type(n);
+		if (JsonTypeSchema.numberTypeHandle.equals(type))
+			return n.asDouble();
+		else if (JsonTypeSchema.longTypeHandle.equals(type))
+		{
+			long x = integer(n);
+			return x > -MAX_EXACT_DOUBLE && x < MAX_EXACT_DOUBLE ? (Double)(double)x : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the canonical form of a decimal: no trailing zeros in the fraction and no
+	 * negative scale, so that it prints without an exponent.
+	 */
+	static BigDecimal canonical(BigDecimal d)
+	{
+		d = d.stripTrailingZeros();
+		return d.scale() < 0 ? d.setScale(0) : d;
+	}
+
+	/**
+	 * Return the atom type a JSON number is stored with.
+	 */
+	static HGHandle type(Json n)
+	{
+		if (integer(n) != null)
+			return JsonTypeSchema.longTypeHandle;
+		if (isDouble(n))
+			return JsonTypeSchema.numberTypeHandle;
+		BigDecimal d = decimal(n);
+		double x = d.doubleValue();
+		if (!Double.isInfinite(x) && BigDecimal.valueOf(x).compareTo(d) == 0)
+			return JsonTypeSchema.numberTypeHandle;
+		return JsonTypeSchema.decimalTypeHandle;
+	}
+
+	/**
+	 * Return the value a JSON number is stored as: a <code>Long</code>, a <code>Double</code> or a
+	 * canonical <code>BigDecimal</code> depending on its {@link #type(Json)}.
+	 */
+	static Object value(Json n)
+	{
+		HGHandle type = type(n);
+		if (JsonTypeSchema.longTypeHandle.equals(type))
+			return integer(n);
+		else if (JsonTypeSchema.numberTypeHandle.equals(type))
+			return n.asDouble();
+		else
+			return canonical(decimal(n));
+	}
+
+	/**
+	 * Return whether the given type is one of the JSON number types.
+	 */
+	static boolean isNumberType(HGHandle type)
+	{
+		return JsonTypeSchema.numberTypeHandle.equals(type) ||
+			   JsonTypeSchema.longTypeHandle.equals(type) ||
+			   JsonTypeSchema.decimalTypeHandle.equals(type);
+	}
+}
@@ -0,0 +1,27 @@
+package mjson.hgdb;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPlainLink;
+
+/**
+ * <p>
+ * Marks a JSON value that was added to the database by itself, rather than only as part of
+ * documents. The link keeps the incidence set of the value non-empty, so a {@link ValueCollector}
+ * never deletes it, and it is removed along with the value.
+ * </p>
+ */
+public class JsonRoot extends HGPlainLink
+{
+    public JsonRoot(HGHandle...args)
+    {
+        super(args);
+    }
+
+    /**
+     * <p>Return the handle of the value atom.</p>
+     */
+    public HGHandle getValue()
+    {
+        return getTargetAt(0);
+    }
+}
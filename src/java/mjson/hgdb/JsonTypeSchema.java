@@ -45,9 +45,18 @@ public final class JsonTypeSchema implements HGTypeSchema<Object>
             graph.getTypeSystem().addPredefinedType(numberTypeHandle.getPersistent(), 
                                                     new NumberTypeJson(), 
                                                     new URI("json:number"));
+            graph.getTypeSystem().addPredefinedType(longTypeHandle.getPersistent(), 
+                                                    new LongTypeJson(), 
+                                                    new URI("json:long"));
+            graph.getTypeSystem().addPredefinedType(decimalTypeHandle.getPersistent(), 
+                                                    new DecimalTypeJson(), 
+                                                    new URI("json:decimal"));
             graph.getTypeSystem().addPredefinedType(stringTypeHandle.getPersistent(), 
                                                     new StringTypeJson(), 
                                                     new URI("json:string"));
+            graph.getTypeSystem().addPredefinedType(blobTypeHandle.getPersistent(), 
+                                                    new BlobTypeJson(), 
+                                                    new URI("json:blob"));
             graph.getTypeSystem().addPredefinedType(arrayTypeHandle.getPersistent(), 
                                                     new ArrayTypeJson(), 
                                                     new URI("json:array"));
@@ -74,6 +83,12 @@ public final class JsonTypeSchema implements HGTypeSchema<Object>
             return stringTypeHandle;
         else if ("number".equals(typeName))
             return numberTypeHandle;
+        else if ("long".equals(typeName))
+            return longTypeHandle;
+        else if ("decimal".equals(typeName))
+            return decimalTypeHandle;
+        else if ("blob".equals(typeName))
+            return blobTypeHandle;
         else if ("array".equals(typeName))
             return arrayTypeHandle;
         else if ("object".equals(typeName))
@@ -128,7 +143,11 @@ public final class JsonTypeSchema implements HGTypeSchema<Object>
             else if (j.isObject())
                 return new URI("json:object");
             else if (j.isNumber())
-                return new URI("json:number");
+            {
+                HGHandle type = JsonNumbers.type(j);
+                return new URI(longTypeHandle.equals(type) ? "json:long" : 
+                               decimalTypeHandle.equals(type) ? "json:decimal" : "json:number");
+            }
             else if (j.isString())
                 return new URI("json:string");
             else if (j.isBoolean())
@@ -153,10 +172,19 @@ public final class JsonTypeSchema implements HGTypeSchema<Object>
         UUIDHandleFactory.I.makeHandle("1182ce94-0d30-4a7a-84eb-308fc9dd6d53");
     public static final HGHandle numberTypeHandle = 
         UUIDHandleFactory.I.makeHandle("27caf688-e8bc-4532-bf43-7d0969b98325");
+    /** The type of JSON numbers that are 64 bit integers. */
+    public static final HGHandle longTypeHandle = 
+        UUIDHandleFactory.I.makeHandle("5f0c9a3e-7b21-4d8e-9c64-2a1e8b7d3f50");
+    /** The type of JSON numbers that only a <code>BigDecimal</code> represents exactly. */
+    public static final HGHandle decimalTypeHandle = 
+        UUIDHandleFactory.I.makeHandle("b3d47e12-96a0-4f5c-8e2b-71c5d0a94e68");
     public static final HGHandle nullTypeHandle = 
         UUIDHandleFactory.I.makeHandle("1fd98211-2412-4a9c-be33-11c07903064a");
     public static final HGHandle stringTypeHandle = 
         UUIDHandleFactory.I.makeHandle("c81e31fb-56a5-47bf-a117-d8586331f369");
+    /** The type of nested objects and arrays stored as a single compact binary atom. */
+    public static final HGHandle blobTypeHandle = 
+        UUIDHandleFactory.I.makeHandle("e6a1d3c8-4f27-4b90-a5d2-0c39f81b7e14");
     public static final HGHandle arrayTypeHandle = 
         UUIDHandleFactory.I.makeHandle("483e588c-e823-4dd7-b77a-80ffdf737e0d");
     public static final HGHandle objectTypeHandle = 
@@ -171,8 +199,11 @@ public final class JsonTypeSchema implements HGTypeSchema<Object>
     {
     	return objectTypeHandle.equals(typeHandle) ||
     		   arrayTypeHandle.equals(typeHandle) ||
+    		   blobTypeHandle.equals(typeHandle) ||
     		   stringTypeHandle.equals(typeHandle) ||
     		   numberTypeHandle.equals(typeHandle) ||
+    		   longTypeHandle.equals(typeHandle) ||
+    		   decimalTypeHandle.equals(typeHandle) ||
     		   nullTypeHandle.equals(typeHandle) ||
     		   booleanTypeHandle.equals(typeHandle);
     }
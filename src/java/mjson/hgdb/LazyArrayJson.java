@@ -0,0 +1,114 @@
+package mjson.hgdb;
+
+import java.util.List;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+
+/**
+ * <p>
+ * A stored JSON array whose elements are loaded from the database only when they are accessed.
+ * An element is read when it is accessed through {@link #at(int)} and all elements are read as
+ * soon as the array is accessed as a whole or modified. See {@link LazyObjectJson}.
+ * </p>
+ */
+class LazyArrayJson extends Json
+{
+	private HyperNodeJson node;
+	private HGHandle [] elementHandles;
+	private Json [] elements;
+	// Once all elements are loaded, the array itself to which everything is delegated.
+	private Json array = null;
+
+	LazyArrayJson(HyperNodeJson node, HGHandle [] elementHandles)
+	{
+		this.node = node;
+		this.elementHandles = elementHandles;
+		this.elements = new Json[elementHandles.length];
+	}
+
+	private synchronized Json load()
+	{
+		if (array == null)
+		{
+			Json A = Json.array();
+			for (int i = 0; i < elements.length; i++)
+				A.add(at(i));
+			array = A;
+			elements = null;
+		}
+		return array;
+	}
+
+	public boolean isArray() { return true; }
+
+	public synchronized Json at(int index)
+	{
+		if (array != null)
+			return array.at(index);
+		if (elements[index] == null)
+			elements[index] = node.nestedValue(elementHandles[index], true);
+		return elements[index];
+	}
+
+	public boolean is(int index, Object value)
+	{
+		synchronized (this)
+		{
+			if (array != null)
+				return array.is(index, value);
+		}
+		return index < elementHandles.length && at(index).equals(Json.make(value));
+	}
+
+	public synchronized Json add(Json el)
+	{
+		load().add(el);
+		return this;
+	}
+
+	public synchronized Json remove(Json el)
+	{
+		load().remove(el);
+		return this;
+	}
+
+	public synchronized Json set(int index, Object value)
+	{
+		load().set(index, value);
+		return this;
+	}
+
+	public synchronized Json atDel(int index)
+	{
+		return load().atDel(index);
+	}
+
+	public synchronized Json delAt(int index)
+	{
+		load().delAt(index);
+		return this;
+	}
+
+	public synchronized Json with(Json other, Json[] options)
+	{
+		load().with(other, options);
+		return this;
+	}
+
+	public List<Json> asJsonList() { return load().asJsonList(); }
+	public List<Object> asList() { return load().asList(); }
+	public Object getValue() { return load().getValue(); }
+	public Json dup() { return load().dup(); }
+	public String toString() { return load().toString(); }
+	public String toString(int maxCharacters) { return load().toString(maxCharacters); }
+	public int hashCode() { return load().hashCode(); }
+
+	public boolean equals(Object x)
+	{
+		if (x instanceof LazyArrayJson)
+			x = ((LazyArrayJson)x).load();
+		return load().equals(x);
+	}
+}
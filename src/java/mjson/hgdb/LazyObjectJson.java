@@ -0,0 +1,132 @@
+package mjson.hgdb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+
+/**
+ * <p>
+ * A stored JSON object whose property values are loaded from the database only when they
+ * are accessed. The <code>JsonProperty</code> links of the object, and the property names,
+ * are read on first access to any property. A value is read when it is accessed through
+ * {@link #at(String)} and all values are read as soon as the object is accessed as a whole
+ * (e.g. with {@link #asJsonMap()}, {@link #toString()} or {@link #dup()}). Nested objects and arrays
+ * are lazy as well.
+ * </p>
+ *
+ * <p>
+ * Note that a regular <code>Json</code> object is never <code>equal</code> to a lazy object.
+ * Compare the <code>dup()</code> of the lazy object if needed.
+ * </p>
+ */
+class LazyObjectJson extends Json
+{
+	private HyperNodeJson node;
+	private HGHandle [] propertyHandles;
+	// Property name -> value handle for the properties not loaded yet.
+	private Map<String, HGHandle> pending = null;
+	private Json object = Json.object();
+
+	LazyObjectJson(HyperNodeJson node, HGHandle [] propertyHandles)
+	{
+		this.node = node;
+		this.propertyHandles = propertyHandles;
+	}
+
+	private synchronized Map<String, HGHandle> pending()
+	{
+		if (pending == null)
+		{
+			pending = new LinkedHashMap<String, HGHandle>();
+			for (HGHandle t : propertyHandles)
+			{
+				JsonProperty prop = node.graph().get(t);
+				pending.put((String)node.graph().get(prop.getName()), prop.getValue());
+			}
+		}
+		return pending;
+	}
+
+	private synchronized Json load(String property)
+	{
+		HGHandle valueHandle = pending().remove(property);
+		if (valueHandle != null)
+			object.set(property, node.nestedValue(valueHandle, true));
+		return object;
+	}
+
+	private synchronized Json load()
+	{
+		for (String property : pending().keySet().toArray(new String[0]))
+			load(property);
+		return object;
+	}
+
+	public boolean isObject() { return true; }
+
+	public synchronized Json at(String property)
+	{
+		return load(property).at(property);
+	}
+
+	public Json at(String property, Json def)
+	{
+		Json x = at(property);
+		if (x != null)
+			return x;
+		set(property, def);
+		return def;
+	}
+
+	public synchronized boolean has(String property)
+	{
+		return object.has(property) || pending().containsKey(property);
+	}
+
+	public synchronized boolean is(String property, Object value)
+	{
+		return load(property).is(property, value);
+	}
+
+	public synchronized Json set(String property, Json value)
+	{
+		pending().remove(property);
+		object.set(property, value);
+		return this;
+	}
+
+	public synchronized Json atDel(String property)
+	{
+		return load(property).atDel(property);
+	}
+
+	public synchronized Json delAt(String property)
+	{
+		load(property).delAt(property);
+		return this;
+	}
+
+	public synchronized Json with(Json other, Json[] options)
+	{
+		load().with(other, options);
+		return this;
+	}
+
+	public Map<String, Json> asJsonMap() { return load().asJsonMap(); }
+	public Map<String, Object> asMap() { return load().asMap(); }
+	public Object getValue() { return load().getValue(); }
+	public Json dup() { return load().dup(); }
+	public String toString() { return load().toString(); }
+	public String toString(int maxCharacters) { return load().toString(maxCharacters); }
+	public int hashCode() { return load().hashCode(); }
+
+	public boolean equals(Object x)
+	{
+		if (x instanceof LazyObjectJson)
+			x = ((LazyObjectJson)x).load();
+		return load().equals(x);
+	}
+}
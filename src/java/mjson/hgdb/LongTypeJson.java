@@ -0,0 +1,41 @@
+package mjson.hgdb;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.IncidenceSetRef;
+import org.hypergraphdb.LazyRef;
+import org.hypergraphdb.type.javaprimitive.LongType;
+
+/**
+ * <p>
+ * The type of JSON numbers that are 64 bit integers, see {@link JsonNumbers}.
+ * </p>
+ */
+public class LongTypeJson extends LongType
+{
+    public static final String INDEX_NAME = "hg_json_long_value_index";
+
+    // Keep JSON integers apart from any java.lang.Long atoms in the same graph.
+    protected String getIndexName()
+    {
+        return INDEX_NAME;
+    }
+
+    public Object make(HGPersistentHandle handle,
+                       LazyRef<HGHandle[]> targetSet,
+                       IncidenceSetRef incidenceSet)
+    {
+        return Json.make(super.make(handle, targetSet, incidenceSet));
+    }
+
+    public HGPersistentHandle store(Object instance)
+    {
+        Json j = (Json)instance;
+        Long value = j.isNumber() ? JsonNumbers.integer(j) : null;
+        if (value == null)
+            throw new IllegalArgumentException("Not a 64 bit integer: " + j);
+        return super.store(value);
+    }
+}
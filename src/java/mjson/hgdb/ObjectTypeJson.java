@@ -20,15 +20,12 @@ public class ObjectTypeJson extends HGAtomTypeBase
 
     /**
      * This will eagerly construct a full Json object graph regardless
-     * of what is being nested into what. There are options to introduce
-     * laziness here: (1) whenever a property value is not a primitive
-     * or (2) whenever a property value is recognized as an entity by
-     * the user provided entityPredicate in the HyperNodeJson instance. 
-     * A similar laziness could be implemented for array as well, except
-     * it makes a little less sense there. 
+     * of what is being nested into what, unless the HyperNodeJson is
+     * configured for lazy materialization in which case a {@link LazyObjectJson}
+     * is returned and property values are loaded only when accessed. 
+     * Nested entities are always replaced by entity references.
      *
-     *
-     * The reason everything is eagerly initialized here is that most JSON
+     * The reason everything is eagerly initialized by default is that most JSON
      * business structures are comparatively small and there's a lot of caching
      * of JSON properties.
      */
@@ -41,21 +38,14 @@ public class ObjectTypeJson extends HGAtomTypeBase
         	// HyperGraph itself will not wrap unless it sees some targets, since there is nothing the type
         	// interface to expect a link.
         		return new HGValueLink(Json.object());
+        if (node.isLazyMaterialization())
+        	return new LazyObjectJson(node, targets);
         Json j = Json.object();
         for (HGHandle t : targets)
         {
             JsonProperty prop = graph.get(t);
             String name = graph.get(prop.getName());
-            Json value = null;            
-            Object x = graph.get(prop.getValue());
-            if (x instanceof HGValueLink)
-                value = (Json)((HGValueLink)x).getValue();
-            else
-                value = (Json)x;         
-            if (value.isObject() && node.getEntityInterface().isEntity(value))
-            	value = node.getEntityInterface().createEntityReference(node, prop.getValue());
-                //value.set("hghandle", prop.getValue().getPersistent().toString());
-            j.set(name, value);
+            j.set(name, node.nestedValue(prop.getValue(), false));
         }
         return j;
     }
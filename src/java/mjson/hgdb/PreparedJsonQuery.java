@@ -0,0 +1,235 @@
+package mjson.hgdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGSearchResult;
+
+/**
+ * <p>
+ * A JSON object pattern parsed once and executed any number of times with different values.
+ * A value in the template may be a bind variable: a string of the form <code>$name</code>. The
+ * value bound to it at execution can be any JSON, including an object. For example:
+ * </p>
+ *
+ * <pre><code>
+ * PreparedJsonQuery byEmail = node.prepare(Json.object("entity", "user", "email", "$email"));
+ * HGHandle user = byEmail.findOne(Json.object("email", "john@example.com"));
+ * </code></pre>
+ *
+ * <p>
+ * Operator properties (regular expressions, keywords, comparisons, property groups) are parsed and
+ * compiled when the query is prepared, unless their value contains a variable in which case they
+ * are parsed at each execution with the bound value. A prepared query is immutable and can be
+ * executed concurrently from several threads. It doesn't go through the node's result cache.
+ * </p>
+ */
+public class PreparedJsonQuery
+{
+	private static final Pattern VARIABLE = Pattern.compile("\\$[A-Za-z_][A-Za-z0-9_]*");
+
+	private final HyperNodeJson node;
+	private final Json template;
+	private final boolean exact;
+	private final Set<String> variables = new LinkedHashSet<String>();
+	// Plain properties, operators removed unless the query is exact.
+	private final Map<String, Json> properties = new LinkedHashMap<String, Json>();
+	// Plain properties with variables in their value.
+	private final Set<String> bound = new LinkedHashSet<String>();
+	private final Collection<HGJsonQuery.ItemMap> maps;
+	private final Collection<HGJsonQuery.RangeCondition> ranges;
+	// Operator properties with variables in their value, parsed at execution.
+	private final Json deferred = Json.object();
+
+	static String variable(Json j)
+	{
+		return j.isString() && VARIABLE.matcher(j.asString()).matches() ? j.asString().substring(1) : null;
+	}
+
+	static void collectVariables(Json j, Set<String> variables)
+	{
+		String var = variable(j);
+		if (var != null)
+			variables.add(var);
+		else if (j.isObject())
+			for (Json x : j.asJsonMap().values())
+				collectVariables(x, variables);
+		else if (j.isArray())
+			for (Json x : j.asJsonList())
+				collectVariables(x, variables);
+	}
+
+	static Json bind(Json j, Json bindings)
+	{
+		String var = variable(j);
+		if (var != null)
+			return bindings.at(var);
+		else if (j.isObject())
+		{
+			Json result = Json.object();
+			for (Map.Entry<String, Json> e : j.asJsonMap().entrySet())
+				result.set(e.getKey(), bind(e.getValue(), bindings));
+			return result;
+		}
+		else if (j.isArray())
+		{
+			Json result = Json.array();
+			for (Json x : j.asJsonList())
+				result.add(bind(x, bindings));
+			return result;
+		}
+		else
+			return j;
+	}
+
+	static boolean isOperator(String name)
+	{
+		return !Character.isLetter(name.charAt(0)) ||
+			   !Character.isLetterOrDigit(name.charAt(name.length() - 1)) ||
+			   name.endsWith(" between");
+	}
+
+	PreparedJsonQuery(HyperNodeJson node, Json template, boolean exact)
+	{
+		if (!template.isObject())
+			throw new IllegalArgumentException("Only object patterns can be prepared, got " + template);
+		this.node = node;
+		this.template = template.dup();
+		this.exact = exact;
+		Json pattern = template.dup();
+		collectVariables(pattern, variables);
+		boolean groupVariables = false;
+		for (Map.Entry<String, Json> e : pattern.asJsonMap().entrySet())
+			if (!Character.isLetter(e.getKey().charAt(0)) && hasVariables(e.getValue()))
+				groupVariables = true;
+		if (!exact)
+			for (String name : new ArrayList<String>(pattern.asJsonMap().keySet()))
+			{
+				// A property group is parsed as a whole, so if one of them has a variable, they all wait.
+				boolean group = !Character.isLetter(name.charAt(0));
+				if (isOperator(name) && (group ? groupVariables : hasVariables(pattern.at(name))))
+					deferred.set(name, pattern.atDel(name));
+			}
+		if (exact)
+		{
+			maps = Collections.emptyList();
+			ranges = Collections.emptyList();
+		}
+		else
+		{
+			HGJsonQuery.ObjectPattern parsed = HGJsonQuery.ObjectPattern.parse(pattern);
+			maps = parsed.maps;
+			ranges = parsed.ranges;
+		}
+		for (Map.Entry<String, Json> e : pattern.asJsonMap().entrySet())
+		{
+			properties.put(e.getKey(), e.getValue());
+			if (hasVariables(e.getValue()))
+				bound.add(e.getKey());
+		}
+	}
+
+	private static boolean hasVariables(Json j)
+	{
+		Set<String> S = new LinkedHashSet<String>();
+		collectVariables(j, S);
+		return !S.isEmpty();
+	}
+
+	/**
+	 * <p>Return the template this query was prepared from.</p>
+	 */
+	public Json template()
+	{
+		return template.dup();
+	}
+
+	public boolean isExact()
+	{
+		return exact;
+	}
+
+	/**
+	 * <p>Return the names of the bind variables, without the <code>$</code> prefix.</p>
+	 */
+	public Set<String> variables()
+	{
+		return Collections.unmodifiableSet(variables);
+	}
+
+	/**
+	 * <p>
+	 * Execute the query with the given variable values, <code>bindings</code> being a JSON object
+	 * with a property for each variable. All variables must be bound.
+	 * </p>
+	 */
+	public HGSearchResult<HGHandle> find(Json bindings)
+	{
+		for (String var : variables)
+			if (!bindings.has(var))
+				throw new IllegalArgumentException("Unbound variable $" + var + " in " + template);
+		JsonMetrics metrics = node.getMetrics();
+		long start = metrics.start();
+		try
+		{
+			Map<String, Json> M = properties;
+			if (!bound.isEmpty())
+			{
+				M = new LinkedHashMap<String, Json>(properties);
+				for (String name : bound)
+					M.put(name, bind(properties.get(name), bindings));
+			}
+			if (exact)
+			{
+				Json j = Json.object();
+				for (Map.Entry<String, Json> e : M.entrySet())
+					j.set(e.getKey(), e.getValue());
+				return HGJsonQuery.findExactObject(node, j);
+			}
+			Collection<HGJsonQuery.ItemMap> maps = this.maps;
+			Collection<HGJsonQuery.RangeCondition> ranges = this.ranges;
+			if (!deferred.asJsonMap().isEmpty())
+			{
+				HGJsonQuery.ObjectPattern parsed = HGJsonQuery.ObjectPattern.parse(bind(deferred, bindings));
+				maps = new ArrayList<HGJsonQuery.ItemMap>(maps);
+				maps.addAll(parsed.maps);
+				ranges = new ArrayList<HGJsonQuery.RangeCondition>(ranges);
+				ranges.addAll(parsed.ranges);
+			}
+			return HGJsonQuery.findObjectPattern(node, new HGJsonQuery.ObjectPattern(M, maps, ranges), null);
+		}
+		finally
+		{
+			metrics.stop(JsonMetrics.Operation.FIND, start);
+		}
+	}
+
+	/**
+	 * <p>Execute the query and return the first result or <code>null</code> if there is none.</p>
+	 */
+	public HGHandle findOne(Json bindings)
+	{
+		try (HGSearchResult<HGHandle> rs = find(bindings))
+		{
+			return rs.hasNext() ? rs.next() : null;
+		}
+	}
+
+	/**
+	 * <p>Execute the query and collect all results in a list.</p>
+	 */
+	public List<HGHandle> findAll(Json bindings)
+	{
+		return HGJsonQuery.collect(find(bindings));
+	}
+}
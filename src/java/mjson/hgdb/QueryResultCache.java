@@ -0,0 +1,416 @@
+package mjson.hgdb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.query.impl.HandleArrayResultSet;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.HGUtils;
+
+/**
+ * <p>
+ * A cache of the results of object pattern queries, enabled with {@link HyperNodeJson#setResultCache(QueryResultCache)}.
+ * Entries are keyed by a canonical form of the pattern (property order and number formatting don't matter)
+ * and the <code>exact</code> flag. The cache is bounded both by the number of entries and by the total number
+ * of result handles it holds, the least recently used entries being evicted first. Results larger than the
+ * latter bound are not cached. Note that results of cached queries are fully read before being returned.
+ * </p>
+ *
+ * <p>
+ * An entry depends on all property names appearing in its pattern. Each property name has a generation
+ * number incremented whenever an object having a property with that name, at any depth, is added,
+ * replaced or removed through the node. An entry is valid only as long as the generations of all its names
+ * are the ones seen when the query started. Writes made inside a transaction are invisible to other threads
+ * until the transaction commits, so until then their property names are considered unstable: results
+ * depending on them are not cached and generations are incremented again once the writing thread is
+ * seen outside of its transaction. Queries executed inside a transaction are never cached.
+ * </p>
+ */
+public class QueryResultCache
+{
+	// The pseudo property name of patterns without any property, which depend on all object writes.
+	static final String ANY = "";
+
+	static class Entry
+	{
+		HGHandle [] results;
+		Map<String, Long> generations;
+
+		Entry(HGHandle [] results, Map<String, Long> generations)
+		{
+			this.results = results;
+			this.generations = generations;
+		}
+	}
+
+	private final int maxEntries;
+	private final long maxHandles;
+	private long handles = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(1024, 0.75f, true);
+	private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentHashMap<String, AtomicInteger> unstable = new ConcurrentHashMap<String, AtomicInteger>();
+	private final ThreadLocal<Set<String>> pending = new ThreadLocal<Set<String>>() {
+		protected Set<String> initialValue() { return new HashSet<String>(); }
+	};
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+							 evictions = new AtomicLong(), invalidations = new AtomicLong();
+
+	/**
+	 * @param maxEntries The maximum number of cached queries.
+	 * @param maxHandles The maximum total number of result handles held by the cache.
+	 */
+	public QueryResultCache(int maxEntries, long maxHandles)
+	{
+		this.maxEntries = maxEntries;
+		this.maxHandles = maxHandles;
+	}
+
+	static void canonical(Json j, StringBuilder sb)
+	{
+		if (j.isObject())
+		{
+			sb.append('{');
+			for (Map.Entry<String, Json> e : new TreeMap<String, Json>(j.asJsonMap()).entrySet())
+			{
+				sb.append(Json.make(e.getKey()).toString()).append(':');
+				canonical(e.getValue(), sb);
+				sb.append(',');
+			}
+			sb.append('}');
+		}
+		else if (j.isArray())
+		{
+			sb.append('[');
+			for (Json x : j.asJsonList())
+			{
+				canonical(x, sb);
+				sb.append(',');
+			}
+			sb.append(']');
+		}
+		else if (j.isNumber())
+			sb.append(JsonNumbers.value(j));
+		else
+			sb.append(j.toString());
+	}
+
+	/**
+	 * <p>Return the cache key of a query.</p>
+	 */
+	public static String key(Json pattern, boolean exact)
+	{
+		StringBuilder sb = new StringBuilder(exact ? "=" : "~");
+		canonical(pattern, sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Collect the plain property names in a pattern property name which may have
+	 * an operator suffix, be part of a property group or be a path. The name without
+	 * its operator is collected as well, in case it's a literal name containing dots.
+	 */
+	static void patternNames(String name, Set<String> names)
+	{
+		if (name.isEmpty())
+			return;
+		if (!Character.isLetter(name.charAt(0)) && name.indexOf(':') > -1) // a property group
+			name = name.substring(name.lastIndexOf(':') + 1);
+		if (name.endsWith(" between"))
+			name = name.substring(0, name.length() - " between".length());
+		int end = name.length();
+		while (end > 0 && !Character.isLetterOrDigit(name.charAt(end - 1)) && name.charAt(end - 1) != ']')
+			end--;
+		String path = name.substring(0, end).trim();
+		// an unindexed dotted name is a literal property name, written as is
+		names.add(path);
+		for (String segment : path.split("\\."))
+		{
+			int bracket = segment.indexOf('[');
+			names.add(bracket > -1 ? segment.substring(0, bracket) : segment);
+		}
+	}
+
+	/**
+	 * <p>Return the property names a pattern depends on.</p>
+	 */
+	static Set<String> patternNames(Json pattern)
+	{
+		Set<String> names = new HashSet<String>();
+		collectNames(pattern, names, true);
+		if (names.isEmpty())
+			names.add(ANY);
+		return names;
+	}
+
+	/**
+	 * <p>Collect all property names in a JSON structure, at any depth.</p>
+	 */
+	static void collectNames(Json j, Set<String> names, boolean pattern)
+	{
+		if (j.isObject())
+			for (Map.Entry<String, Json> e : j.asJsonMap().entrySet())
+			{
+				if (pattern)
+					patternNames(e.getKey(), names);
+				else
+					names.add(e.getKey());
+				collectNames(e.getValue(), names, pattern);
+			}
+		else if (j.isArray())
+			for (Json x : j.asJsonList())
+				collectNames(x, names, pattern);
+	}
+
+	private AtomicLong generation(String name)
+	{
+		AtomicLong g = generations.get(name);
+		if (g == null)
+		{
+			AtomicLong existing = generations.putIfAbsent(name, g = new AtomicLong());
+			if (existing != null)
+				g = existing;
+		}
+		return g;
+	}
+
+	private Map<String, Long> generations(Set<String> names)
+	{
+		Map<String, Long> M = new HashMap<String, Long>();
+		for (String name : names)
+			M.put(name, generation(name).get());
+		return M;
+	}
+
+	private boolean isUnstable(Set<String> names)
+	{
+		for (String name : names)
+		{
+			AtomicInteger count = unstable.get(name);
+			if (count != null && count.get() > 0)
+				return true;
+		}
+		return false;
+	}
+
+	private void bump(Set<String> names)
+	{
+		for (String name : names)
+			generation(name).incrementAndGet();
+		generation(ANY).incrementAndGet();
+	}
+
+	/**
+	 * <p>
+	 * Complete the invalidation for the writes this thread made in transactions that have now ended.
+	 * This is done automatically by the node, but a thread that wrote inside a transaction and doesn't
+	 * use the node afterwards may call it to stop its writes from disabling caching.
+	 * </p>
+	 */
+	public void committed(HGTransactionManager txManager)
+	{
+		Set<String> names = pending.get();
+		if (names.isEmpty() || txManager.getContext().getCurrent() != null)
+			return;
+		bump(names);
+		for (String name : names)
+			unstable.get(name).decrementAndGet();
+		names.clear();
+	}
+
+	/**
+	 * <p>
+	 * Called before a JSON value is added, replaced or removed. Entries depending on its property names are
+	 * invalidated and, if the write is within a transaction, the names remain unstable until it ends.
+	 * </p>
+	 */
+	void writing(HGTransactionManager txManager, Json value)
+	{
+		committed(txManager);
+		if (!value.isObject() && !value.isArray())
+			return;
+		Set<String> names = new HashSet<String>();
+		collectNames(value, names, false);
+		bump(names);
+		if (txManager.getContext().getCurrent() != null)
+		{
+			Set<String> P = pending.get();
+			for (String name : names)
+				if (P.add(name))
+				{
+					AtomicInteger count = unstable.get(name);
+					if (count == null)
+					{
+						AtomicInteger existing = unstable.putIfAbsent(name, count = new AtomicInteger());
+						if (existing != null)
+							count = existing;
+					}
+					count.incrementAndGet();
+				}
+		}
+	}
+
+	/**
+	 * <p>Called after a write completes: if the write ran in its own transaction, it has been committed by now.</p>
+	 */
+	void written(HGTransactionManager txManager, Json value)
+	{
+		if (txManager.getContext().getCurrent() != null || (!value.isObject() && !value.isArray()))
+			return;
+		Set<String> names = new HashSet<String>();
+		collectNames(value, names, false);
+		bump(names);
+	}
+
+	/**
+	 * <p>Return the result of a pattern query, from the cache if possible.</p>
+	 */
+	HGSearchResult<HGHandle> find(HyperNodeJson node, Json pattern, boolean exact)
+	{
+		HGTransactionManager txManager = node.graph().getTransactionManager();
+		committed(txManager);
+		String key = key(pattern, exact);
+		Set<String> names = patternNames(pattern);
+		synchronized (entries)
+		{
+			Entry entry = entries.get(key);
+			if (entry != null)
+			{
+				if (entry.generations.equals(generations(entry.generations.keySet())))
+				{
+					hits.incrementAndGet();
+					return new HandleArrayResultSet(entry.results);
+				}
+				entries.remove(key);
+				handles -= entry.results.length;
+				invalidations.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+		Map<String, Long> before = generations(names);
+		boolean cacheable = !isUnstable(names);
+		List<HGHandle> L = new ArrayList<HGHandle>();
+		HGSearchResult<HGHandle> rs = node.findUncached(pattern, exact);
+		try
+		{
+			while (rs.hasNext())
+				L.add(rs.next().getPersistent());
+		}
+		finally
+		{
+			HGUtils.closeNoException(rs);
+		}
+		HGHandle [] results = L.toArray(new HGHandle[L.size()]);
+		if (cacheable && results.length <= maxHandles && before.equals(generations(names)) && !isUnstable(names))
+			put(key, new Entry(results, before));
+		return new HandleArrayResultSet(results);
+	}
+
+	private void put(String key, Entry entry)
+	{
+		synchronized (entries)
+		{
+			Entry previous = entries.put(key, entry);
+			if (previous != null)
+				handles -= previous.results.length;
+			handles += entry.results.length;
+			Iterator<Entry> I = entries.values().iterator();
+			while ((entries.size() > maxEntries || handles > maxHandles) && I.hasNext())
+			{
+				Entry eldest = I.next();
+				if (eldest == entry)
+					continue;
+				I.remove();
+				handles -= eldest.results.length;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * <p>Remove all entries.</p>
+	 */
+	public void clear()
+	{
+		synchronized (entries)
+		{
+			entries.clear();
+			handles = 0;
+		}
+	}
+
+	public int size()
+	{
+		synchronized (entries)
+		{
+			return entries.size();
+		}
+	}
+
+	public long hits()
+	{
+		return hits.get();
+	}
+
+	public long misses()
+	{
+		return misses.get();
+	}
+
+	public long evictions()
+	{
+		return evictions.get();
+	}
+
+	/**
+	 * <p>Return the number of entries found stale because of writes.</p>
+	 */
+	public long invalidations()
+	{
+		return invalidations.get();
+	}
+
+	public double hitRatio()
+	{
+		long h = hits(), total = h + misses();
+		return total == 0 ? 0.0 : (double)h / total;
+	}
+
+	/**
+	 * <p>Return the cache statistics: <code>size</code>, <code>handles</code>, <code>maxEntries</code>,
+	 * <code>maxHandles</code>, <code>hits</code>, <code>misses</code>, <code>hitRatio</code>,
+	 * <code>evictions</code> and <code>invalidations</code>.</p>
+	 */
+	public Json stats()
+	{
+		long h;
+		int size;
+		synchronized (entries)
+		{
+			h = handles;
+			size = entries.size();
+		}
+		return Json.object("size", size,
+						   "handles", h,
+						   "maxEntries", maxEntries,
+						   "maxHandles", maxHandles,
+						   "hits", hits(),
+						   "misses", misses(),
+						   "hitRatio", hitRatio(),
+						   "evictions", evictions(),
+						   "invalidations", invalidations());
+	}
+}
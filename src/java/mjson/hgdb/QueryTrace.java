@@ -0,0 +1,112 @@
+package mjson.hgdb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.util.HGUtils;
+
+/**
+ * <p>
+ * Collects the plan of a single pattern query, and optionally its execution statistics,
+ * for {@link HyperNodeJson#explain(Json, boolean)} and {@link HyperNodeJson#profile(Json, boolean)}.
+ * The plan is built as the query is being set up, each step of the query adding a stage to it.
+ * </p>
+ */
+class QueryTrace
+{
+	final Json plan;
+	final AtomicLong tuples = new AtomicLong(),
+					 linkQueries = new AtomicLong(),
+					 filterChecks = new AtomicLong(),
+					 filterRejections = new AtomicLong();
+	private final long started = System.nanoTime();
+
+	/**
+	 * Counts the tuples enumerated by property pattern lookups, each one resulting in a link query.
+	 */
+	final JsonMetrics tupleCounter = new JsonMetrics() {
+		public long start() { return 0; }
+		public void stop(Operation operation, long start) { }
+		public void count(Counter counter, long n)
+		{
+			if (counter == Counter.CROSS_PRODUCT_TUPLES)
+			{
+				tuples.addAndGet(n);
+				linkQueries.addAndGet(n);
+			}
+		}
+	};
+
+	static double millis(long startNanos)
+	{
+		return (System.nanoTime() - startNanos) / 1000000.0;
+	}
+
+	QueryTrace(Json pattern, boolean exact)
+	{
+		plan = Json.object("pattern", pattern.dup(), "exact", exact, "stages", Json.array());
+	}
+
+	QueryTrace strategy(String strategy)
+	{
+		plan.set("strategy", strategy);
+		return this;
+	}
+
+	/**
+	 * Add a stage to the plan and return it so that more details can be set.
+	 */
+	Json stage(String kind, Object label)
+	{
+		Json stage = Json.object("kind", kind, "label", label);
+		plan.at("stages").add(stage);
+		return stage;
+	}
+
+	/**
+	 * Note that the query was found to have no results while planning, at the given stage.
+	 */
+	void empty(Json stage)
+	{
+		stage.set("empty", true);
+		plan.set("empty", true);
+	}
+
+	/**
+	 * Complete the plan. If <code>run</code> is true, the result set is consumed and execution
+	 * statistics are added. The result set is closed either way.
+	 */
+	Json finish(HGSearchResult<HGHandle> rs, boolean run)
+	{
+		plan.set("planMillis", millis(started));
+		try
+		{
+			if (run)
+			{
+				long start = System.nanoTime();
+				long results = 0;
+				while (rs.hasNext())
+				{
+					rs.next();
+					results++;
+				}
+				plan.set("results", results)
+					.set("executeMillis", millis(start));
+			}
+		}
+		finally
+		{
+			HGUtils.closeNoException(rs);
+		}
+		plan.set("tuples", tuples.get())
+			.set("linkQueries", linkQueries.get());
+		if (run)
+			plan.set("filterChecks", filterChecks.get())
+				.set("filterRejections", filterRejections.get())
+				.set("totalMillis", millis(started));
+		return plan;
+	}
+}
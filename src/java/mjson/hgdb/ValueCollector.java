@@ -0,0 +1,386 @@
+package mjson.hgdb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mjson.Json;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.transaction.HGTransactionManager;
+import org.hypergraphdb.util.HGUtils;
+
+/**
+ * <p>
+ * Reclaims the immutable values that are no longer part of any document. Values are shared between
+ * documents, so replacing or removing a document never deletes the property links, property names,
+ * primitives and nested objects or arrays it was made of. With a collector enabled through
+ * {@link HyperNodeJson#setValueCollector(ValueCollector)}, those atoms become candidates for
+ * collection and {@link #collect()} deletes the ones nothing refers to anymore, following through
+ * to their own components.
+ * </p>
+ *
+ * <p>
+ * The reference count of an atom is the size of its incidence set, which the database maintains
+ * persistently: a candidate is deleted, in a transaction, only if no link points to it. Entities,
+ * <code>null</code> and booleans are never deleted, and neither are the values added by themselves
+ * with {@link HyperNodeJson#add(Object)} once a collector was first set for the database: those are
+ * marked persistently by a {@link JsonRoot} link, which counts as a reference, until they are removed.
+ * Values added by themselves earlier are not marked, see {@link HyperNodeJson#setValueCollector(ValueCollector)}.
+ * </p>
+ *
+ * <p>
+ * Collection can run alongside writers. Handles the node keeps in memory (interned names and
+ * property links) are dropped from its caches when the atoms are deleted, both before and after
+ * the deletion commits, and collection is postponed while a bulk load is in progress. Candidates are only
+ * kept in memory: after a restart, {@link #scan()} queues all property links so that whatever
+ * was left over gets collected. Collection runs on demand or periodically, see {@link #start(long, TimeUnit)}.
+ * </p>
+ */
+public class ValueCollector
+{
+	private final HyperNodeJson node;
+	private final ConcurrentLinkedQueue<HGPersistentHandle> candidates = new ConcurrentLinkedQueue<HGPersistentHandle>();
+	private final Set<HGPersistentHandle> queued = ConcurrentHashMap.newKeySet();
+	// Candidates from writes made in transactions that may not be committed yet.
+	private final ThreadLocal<List<HGPersistentHandle>> pending = new ThreadLocal<List<HGPersistentHandle>>() {
+		protected List<HGPersistentHandle> initialValue() { return new ArrayList<HGPersistentHandle>(); }
+	};
+	private final AtomicInteger bulkLoads = new AtomicInteger();
+	private final Object collecting = new Object();
+	private volatile int batchSize = 100;
+	private ScheduledExecutorService scheduler = null;
+	private final AtomicLong runs = new AtomicLong(), objects = new AtomicLong(), arrays = new AtomicLong(),
+							 properties = new AtomicLong(), names = new AtomicLong(), primitives = new AtomicLong(),
+							 failures = new AtomicLong();
+	private volatile String lastFailure = null;
+
+	/**
+	 * @param node The node whose values are collected. The collector must be enabled with
+	 * {@link HyperNodeJson#setValueCollector(ValueCollector)} on that same node.
+	 */
+	public ValueCollector(HyperNodeJson node)
+	{
+		this.node = node;
+	}
+
+	HyperNodeJson node()
+	{
+		return node;
+	}
+
+	public int batchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * <p>Set the number of candidates examined in a single transaction, 100 by default.</p>
+	 */
+	public ValueCollector batchSize(int batchSize)
+	{
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * Queue the components of an atom that is about to be replaced or removed.
+	 */
+	void released(HGTransactionManager txManager, HGPersistentHandle [] link)
+	{
+		if (link == null || link.length <= 2)
+			return;
+		List<HGPersistentHandle> L = new ArrayList<HGPersistentHandle>(link.length - 2);
+		for (int i = 2; i < link.length; i++)
+			L.add(link[i]);
+		if (txManager.getContext().getCurrent() == null)
+			enqueue(L);
+		else
+			pending.get().addAll(L);
+	}
+
+	/**
+	 * <p>
+	 * Queue the candidates of the writes this thread made in transactions that have now ended.
+	 * This is done automatically by the node on the next operation of the thread.
+	 * </p>
+	 */
+	public void committed(HGTransactionManager txManager)
+	{
+		List<HGPersistentHandle> L = pending.get();
+		if (L.isEmpty() || txManager.getContext().getCurrent() != null)
+			return;
+		enqueue(L);
+		L.clear();
+	}
+
+	private void enqueue(Collection<HGPersistentHandle> handles)
+	{
+		for (HGPersistentHandle h : handles)
+			if (queued.add(h))
+				candidates.add(h);
+	}
+
+	void bulkLoadStarted()
+	{
+		bulkLoads.incrementAndGet();
+	}
+
+	void bulkLoadEnded()
+	{
+		bulkLoads.decrementAndGet();
+	}
+
+	/**
+	 * <p>
+	 * Queue all property links of the node for collection and return their number. Orphaned
+	 * values are reached through the property links that referred to them, so this recovers
+	 * the candidates lost when the application stopped before collecting them.
+	 * </p>
+	 */
+	public int scan()
+	{
+		List<HGPersistentHandle> L = new ArrayList<HGPersistentHandle>();
+		HGSearchResult<HGHandle> rs = node.graph().find(hg.type(JsonProperty.class));
+		try
+		{
+			while (rs.hasNext())
+				L.add(rs.next().getPersistent());
+		}
+		finally
+		{
+			HGUtils.closeNoException(rs);
+		}
+		enqueue(L);
+		return L.size();
+	}
+
+	/**
+	 * <p>
+	 * Delete the queued candidates that are no longer referred to, and the components they
+	 * leave unreferenced in turn, until the queue is empty. Return the number of deleted atoms.
+	 * Nothing is collected while a bulk load is in progress, candidates stay queued.
+	 * </p>
+	 */
+	public long collect()
+	{
+		synchronized (collecting)
+		{
+			committed(node.graph().getTransactionManager());
+			long total = 0;
+			while (bulkLoads.get() == 0 && !candidates.isEmpty())
+			{
+				final List<HGPersistentHandle> batch = new ArrayList<HGPersistentHandle>(batchSize);
+				while (batch.size() < batchSize)
+				{
+					HGPersistentHandle h = candidates.poll();
+					if (h == null)
+						break;
+					queued.remove(h);
+					batch.add(h);
+				}
+				final List<Object> dropped = new ArrayList<Object>();
+				final List<Json> values = new ArrayList<Json>();
+				final List<HGPersistentHandle> next = new ArrayList<HGPersistentHandle>();
+				final long [] counts = new long[5];
+				node.graph().getTransactionManager().ensureTransaction(new Callable<Object>() {
+					public Object call()
+					{
+						dropped.clear();
+						values.clear();
+						next.clear();
+						Arrays.fill(counts, 0);
+						for (HGPersistentHandle h : batch)
+							reclaim(h, dropped, values, next, counts);
+						// so that no other thread picks up the handles once deleted, they're dropped again after
+						dropCached(dropped);
+						return null;
+					}
+				});
+				dropCached(dropped);
+				QueryResultCache cache = node.getResultCache();
+				if (cache != null) // deleted objects may be among cached results
+					for (Json value : values)
+						cache.written(node.graph().getTransactionManager(), value);
+				enqueue(next);
+				objects.addAndGet(counts[0]);
+				arrays.addAndGet(counts[1]);
+				properties.addAndGet(counts[2]);
+				names.addAndGet(counts[3]);
+				primitives.addAndGet(counts[4]);
+				long n = counts[0] + counts[1] + counts[2] + counts[3] + counts[4];
+				node.getMetrics().count(JsonMetrics.Counter.ATOMS_RECLAIMED, n);
+				total += n;
+			}
+			runs.incrementAndGet();
+			return total;
+		}
+	}
+
+	/**
+	 * Delete an atom if it's an unreferenced value, recording the keys under which the node may
+	 * have cached its handle, the deleted objects and queuing its components.
+	 */
+	private void reclaim(HGPersistentHandle h, List<Object> dropped, List<Json> values, List<HGPersistentHandle> next, long [] counts)
+	{
+		HyperGraph graph = node.graph();
+		HGPersistentHandle [] link = graph.getStore().getLink(h);
+		if (link == null || graph.getIncidenceSet(h).size() > 0)
+			return;
+		HGPersistentHandle type = link[0];
+		int kind;
+		if (type.equals(JsonTypeSchema.objectTypeHandle))
+		{
+			Object x = graph.get(h);
+			if (x instanceof Json && node.getEntityInterface().isEntity((Json)x))
+				return;
+			if (x instanceof Json)
+				values.add((Json)x);
+			kind = 0;
+		}
+		else if (type.equals(JsonTypeSchema.arrayTypeHandle))
+			kind = 1;
+		else if (type.equals(graph.getTypeSystem().getTypeHandle(JsonProperty.class).getPersistent()))
+		{
+			dropped.add(JsonBulkLoader.key(link[2], link[3]));
+			kind = 2;
+		}
+		else if (type.equals(graph.getTypeSystem().getTypeHandle(String.class).getPersistent()))
+		{
+			dropped.add(graph.get(h));
+			kind = 3;
+		}
+		else if (type.equals(JsonTypeSchema.stringTypeHandle) || JsonNumbers.isNumberType(type) ||
+				 type.equals(JsonTypeSchema.blobTypeHandle))
+			kind = 4;
+		else
+			return;
+		graph.remove(h);
+		counts[kind]++;
+		for (int i = 2; i < link.length; i++)
+			next.add(link[i]);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void dropCached(List<Object> keys)
+	{
+		for (Object key : keys)
+			if (key instanceof String)
+				node.getNameCache().drop((String)key);
+			else
+				node.getPropertyCache().drop((List<HGHandle>)key);
+	}
+
+	/**
+	 * <p>Run {@link #collect()} periodically on a daemon thread, until {@link #stop()}.</p>
+	 */
+	public synchronized ValueCollector start(long period, TimeUnit unit)
+	{
+		if (scheduler != null)
+			throw new IllegalStateException("The value collector is already running.");
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "mjson-value-collector");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run()
+			{
+				try
+				{
+					collect();
+				}
+				catch (Throwable t)
+				{
+					// keep collecting on the next round, the failure is reported by stats()
+					failures.incrementAndGet();
+					lastFailure = t.toString();
+				}
+			}
+		}, period, period, unit);
+		return this;
+	}
+
+	/**
+	 * <p>Stop the periodic collection, waiting for a collection in progress to complete.</p>
+	 */
+	public void stop()
+	{
+		ScheduledExecutorService s;
+		synchronized (this)
+		{
+			s = scheduler;
+			scheduler = null;
+		}
+		if (s == null)
+			return;
+		s.shutdown();
+		try
+		{
+			s.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException ex)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * <p>Return the number of queued candidates.</p>
+	 */
+	public int pending()
+	{
+		return queued.size();
+	}
+
+	/**
+	 * <p>Return the total number of atoms deleted.</p>
+	 */
+	public long reclaimed()
+	{
+		return objects.get() + arrays.get() + properties.get() + names.get() + primitives.get();
+	}
+
+	/**
+	 * <p>Return the collector statistics: the number of <code>runs</code> of {@link #collect()},
+	 * of <code>pending</code> candidates, the total number of atoms <code>reclaimed</code> and
+	 * the number of <code>objects</code>, <code>arrays</code>, <code>properties</code>,
+	 * <code>names</code> and <code>primitives</code> (compact values included) among them. The
+	 * number of periodic collections that failed is reported as <code>failures</code>, along with
+	 * the <code>lastFailure</code> if there was one.</p>
+	 */
+	public Json stats()
+	{
+		Json stats = Json.object("runs", runs.get(),
+								 "pending", pending(),
+								 "reclaimed", reclaimed(),
+								 "objects", objects.get(),
+								 "arrays", arrays.get(),
+								 "properties", properties.get(),
+								 "names", names.get(),
+								 "primitives", primitives.get(),
+								 "failures", failures.get());
+		String failure = lastFailure;
+		if (failure != null)
+			stats.set("lastFailure", failure);
+		return stats;
+	}
+}
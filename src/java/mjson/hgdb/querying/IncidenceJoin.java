@@ -0,0 +1,298 @@
+package mjson.hgdb.querying;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGPersistentHandle;
+import org.hypergraphdb.HGQuery.hg;
+import org.hypergraphdb.HGRandomAccessResult;
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.HyperGraph;
+import org.hypergraphdb.query.impl.FilteredResultSet;
+import org.hypergraphdb.query.impl.ZigZagIntersectionResult;
+import org.hypergraphdb.util.ArrayBasedSet;
+import org.hypergraphdb.util.HGUtils;
+import org.hypergraphdb.util.Mapping;
+
+/**
+ * <p>
+ * Finds all links that point to at least one atom from each of a number of target
+ * groups. Each group (an {@link Operand}) yields a sorted, random access set of links
+ * and the final result is the intersection of all those sets. Operands are intersected
+ * starting from the one with the smallest estimated cardinality so the cost of the join
+ * is driven by the most selective operand rather than by the product of the sizes of
+ * all operands.
+ * </p>
+ *
+ * <p>
+ * Operands may also come straight from an index (see {@link IndexLookup}), in which case
+ * the atoms it yields take part in the intersection like any other operand.
+ * </p>
+ *
+ * <p>
+ * The estimate of an operand consisting of target atoms is the sum of the sizes of their
+ * incidence sets. Nothing is read from storage until {@link #execute()} is called,
+ * except for those incidence set sizes.
+ * </p>
+ */
+public class IncidenceJoin
+{
+	/**
+	 * <p>
+	 * One input of the join: a set of links, sorted by handle, and an estimate of
+	 * its size.
+	 * </p>
+	 */
+	public static abstract class Operand
+	{
+		private Object label;
+		private long estimate = -1;
+
+		public Operand(Object label)
+		{
+			this.label = label;
+		}
+
+		/**
+		 * <p>Return the user provided label of this operand (e.g. a property name).</p>
+		 */
+		public Object getLabel()
+		{
+			return label;
+		}
+
+		/**
+		 * <p>Return the (cached) estimated number of links this operand will produce.</p>
+		 */
+		public long getEstimate(HyperGraph graph)
+		{
+			if (estimate < 0)
+				estimate = estimate(graph);
+			return estimate;
+		}
+
+		protected abstract long estimate(HyperGraph graph);
+
+		public abstract HGRandomAccessResult<HGHandle> open(HyperGraph graph);
+	}
+
+	/**
+	 * <p>
+	 * An operand producing all links that point to at least one of a given
+	 * set of atoms.
+	 * </p>
+	 */
+	public static class IncidentToAny extends Operand
+	{
+		private List<HGHandle> targets;
+
+		public IncidentToAny(Object label, Collection<HGHandle> targets)
+		{
+			super(label);
+			this.targets = new ArrayList<HGHandle>(targets);
+		}
+
+		public List<HGHandle> getTargets()
+		{
+			return targets;
+		}
+
+		protected long estimate(HyperGraph graph)
+		{
+			long total = 0;
+			for (HGHandle t : targets)
+				total += graph.getIncidenceSet(t).size();
+			return total;
+		}
+
+		public HGRandomAccessResult<HGHandle> open(HyperGraph graph)
+		{
+			if (targets.size() == 1)
+				return graph.getIncidenceSet(targets.get(0)).getSearchResult();
+			TreeSet<HGPersistentHandle> union = new TreeSet<HGPersistentHandle>();
+			for (HGHandle t : targets)
+			{
+				HGRandomAccessResult<HGHandle> rs = graph.getIncidenceSet(t).getSearchResult();
+				try
+				{
+					while (rs.hasNext())
+						union.add(rs.next().getPersistent());
+				}
+				finally
+				{
+					HGUtils.closeNoException(rs);
+				}
+			}
+			return new ArrayBasedSet<HGHandle>(union.toArray(new HGHandle[union.size()])).getSearchResult();
+		}
+	}
+
+	/**
+	 * <p>
+	 * An operand producing the atoms stored under a given key in an index.
+	 * </p>
+	 */
+	public static class IndexLookup extends Operand
+	{
+		private HGIndex<Object, HGPersistentHandle> index;
+		private Object key;
+
+		public IndexLookup(Object label, HGIndex<Object, HGPersistentHandle> index, Object key)
+		{
+			super(label);
+			this.index = index;
+			this.key = key;
+		}
+
+		public Object getKey()
+		{
+			return key;
+		}
+
+		protected long estimate(HyperGraph graph)
+		{
+			return index.count(key);
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		public HGRandomAccessResult<HGHandle> open(HyperGraph graph)
+		{
+			return (HGRandomAccessResult)index.find(key);
+		}
+	}
+
+	/**
+	 * <p>
+	 * An operand producing the atoms of an arbitrary result set, not necessarily sorted by
+	 * handle, such as an index range scan. The result set is obtained from {@link #execute(HyperGraph)},
+	 * read entirely and closed the first time the operand is estimated or opened.
+	 * </p>
+	 */
+	public static abstract class MaterializedResult extends Operand
+	{
+		private HGHandle [] atoms = null;
+
+		public MaterializedResult(Object label)
+		{
+			super(label);
+		}
+
+		protected abstract HGSearchResult<? extends HGHandle> execute(HyperGraph graph);
+
+		private HGHandle [] atoms(HyperGraph graph)
+		{
+			if (atoms == null)
+			{
+				TreeSet<HGPersistentHandle> sorted = new TreeSet<HGPersistentHandle>();
+				HGSearchResult<? extends HGHandle> rs = execute(graph);
+				try
+				{
+					while (rs.hasNext())
+						sorted.add(rs.next().getPersistent());
+				}
+				finally
+				{
+					HGUtils.closeNoException(rs);
+				}
+				atoms = sorted.toArray(new HGHandle[sorted.size()]);
+			}
+			return atoms;
+		}
+
+		protected long estimate(HyperGraph graph)
+		{
+			return atoms(graph).length;
+		}
+
+		public HGRandomAccessResult<HGHandle> open(HyperGraph graph)
+		{
+			return new ArrayBasedSet<HGHandle>(atoms(graph)).getSearchResult();
+		}
+	}
+
+	private HyperGraph graph;
+	private HGHandle linkType;
+	private List<Operand> operands = new ArrayList<Operand>();
+
+	/**
+	 * @param graph The graph to work with.
+	 * @param linkType The type of the links that we are looking for, or <code>null</code>
+	 * if links of any type should be returned.
+	 */
+	public IncidenceJoin(HyperGraph graph, HGHandle linkType)
+	{
+		this.graph = graph;
+		this.linkType = linkType;
+	}
+
+	public IncidenceJoin add(Operand operand)
+	{
+		operands.add(operand);
+		return this;
+	}
+
+	/**
+	 * <p>Add an operand matching links that point to any of the passed in <code>targets</code>.</p>
+	 */
+	public IncidenceJoin add(Object label, Collection<HGHandle> targets)
+	{
+		return add(new IncidentToAny(label, targets));
+	}
+
+	/**
+	 * <p>
+	 * Return the operands of this join in the order in which they will be intersected,
+	 * most selective first.
+	 * </p>
+	 */
+	public List<Operand> plan()
+	{
+		List<Operand> ordered = new ArrayList<Operand>(operands);
+		Collections.sort(ordered, new Comparator<Operand>() {
+			public int compare(Operand left, Operand right)
+			{
+				return Long.compare(left.getEstimate(graph), right.getEstimate(graph));
+			}
+		});
+		return ordered;
+	}
+
+	/**
+	 * <p>
+	 * Execute the join and return a result set of all the links matching every operand.
+	 * There must be at least one operand.
+	 * </p>
+	 */
+	public HGSearchResult<HGHandle> execute()
+	{
+		if (operands.isEmpty())
+			throw new IllegalStateException("Attempt to execute an incidence join without operands.");
+		List<Operand> ordered = plan();
+		HGRandomAccessResult<HGHandle> rs = ordered.get(0).open(graph);
+		for (int i = 1; i < ordered.size(); i++)
+			rs = new ZigZagIntersectionResult<HGHandle>(rs, ordered.get(i).open(graph));
+		if (linkType == null)
+			return rs;
+		else
+			return new FilteredResultSet<HGHandle>(rs, new Mapping<HGHandle, Boolean>() {
+				public Boolean eval(HGHandle h)
+				{
+					return linkType.equals(graph.getType(h));
+				}
+			}, 0);
+	}
+
+	/**
+	 * <p>Return all links of the join's type.</p>
+	 */
+	public HGSearchResult<HGHandle> all()
+	{
+		return graph.find(hg.type(linkType));
+	}
+}
@@ -0,0 +1,143 @@
+package mjson.hgdb.querying;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.hypergraphdb.HGSearchResult;
+import org.hypergraphdb.util.HGUtils;
+import org.hypergraphdb.util.Mapping;
+import org.hypergraphdb.util.Ref;
+
+/**
+ * <p>
+ * Publishes the elements of a search result to a single subscriber, on demand. Nothing is read
+ * from the result until the subscriber requests it, and at most the requested number of elements
+ * is read, so memory stays constant regardless of the size of the result. When the publisher is
+ * given a query rather than an open result set, the query runs only on the first request, so no
+ * cursor is held for a subscriber that never comes or never requests anything. The result set is
+ * closed when it is exhausted, when the subscriber cancels or when an error occurs.
+ * </p>
+ *
+ * <p>
+ * The {@link Subscriber} and {@link Subscription} interfaces follow the contract of
+ * <code>java.util.concurrent.Flow</code> (and Reactive Streams) so adapting to either is a thin
+ * wrapper. Elements are delivered synchronously, on the thread calling {@link Subscription#request(long)},
+ * and calls to <code>request</code> must not be concurrent. Since the underlying result set holds a
+ * database cursor, the subscriber should consume the elements promptly and always reach completion or
+ * cancel.
+ * </p>
+ *
+ * @param <S> The type of the elements of the underlying search result.
+ * @param <T> The type of the published elements.
+ */
+public class SearchResultPublisher<S, T>
+{
+	public interface Subscription
+	{
+		void request(long n);
+		void cancel();
+	}
+
+	public interface Subscriber<T>
+	{
+		void onSubscribe(Subscription subscription);
+		void onNext(T item);
+		void onError(Throwable throwable);
+		void onComplete();
+	}
+
+	private Ref<HGSearchResult<S>> query;
+	private HGSearchResult<S> rs;
+	private Mapping<S, T> transform;
+	private AtomicBoolean subscribed = new AtomicBoolean(false);
+
+	/**
+	 * @param rs The result set to publish. The publisher takes ownership of it.
+	 * @param transform Maps each element of the result set to the element actually published.
+	 */
+	public SearchResultPublisher(HGSearchResult<S> rs, Mapping<S, T> transform)
+	{
+		this.rs = rs;
+		this.transform = transform;
+	}
+
+	/**
+	 * @param query Opens the result set to publish on the subscriber's first request. The publisher
+	 * takes ownership of the result set.
+	 * @param transform Maps each element of the result set to the element actually published.
+	 */
+	public SearchResultPublisher(Ref<HGSearchResult<S>> query, Mapping<S, T> transform)
+	{
+		this.query = query;
+		this.transform = transform;
+	}
+
+	public void subscribe(final Subscriber<? super T> subscriber)
+	{
+		if (!subscribed.compareAndSet(false, true))
+		{
+			subscriber.onError(new IllegalStateException("Only a single subscriber is supported."));
+			return;
+		}
+		subscriber.onSubscribe(new Subscription() {
+			long demand = 0;
+			boolean emitting = false, done = false;
+
+			private void finish()
+			{
+				done = true;
+				if (rs != null)
+					HGUtils.closeNoException(rs);
+			}
+
+			public void request(long n)
+			{
+				if (done)
+					return;
+				if (n <= 0)
+				{
+					finish();
+					subscriber.onError(new IllegalArgumentException("Non-positive request: " + n));
+					return;
+				}
+				demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+				if (emitting) // request called from onNext, the loop below will pick it up
+					return;
+				emitting = true;
+				try
+				{
+					if (rs == null)
+						rs = query.get();
+					while (demand > 0 && !done)
+					{
+						if (!rs.hasNext())
+						{
+							finish();
+							subscriber.onComplete();
+							break;
+						}
+						demand--;
+						subscriber.onNext(transform.eval(rs.next()));
+					}
+				}
+				catch (Throwable t)
+				{
+					if (!done)
+					{
+						finish();
+						subscriber.onError(t);
+					}
+				}
+				finally
+				{
+					emitting = false;
+				}
+			}
+
+			public void cancel()
+			{
+				if (!done)
+					finish();
+			}
+		});
+	}
+}
@@ -1,12 +1,23 @@
 package hgtest.mjsonapp;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 import org.hypergraphdb.HGConfiguration;
 import org.hypergraphdb.HGEnvironment;
 import org.hypergraphdb.HGHandle;
+import org.hypergraphdb.HGIndex;
+import org.hypergraphdb.HGPersistentHandle;
 import org.hypergraphdb.HGSearchResult;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
@@ -22,6 +33,9 @@ import static mjson.Json.*;
 import static mjson.hgdb.Helpers.resolveEntities;
 import mjson.hgdb.HyperNodeJson;
 import mjson.hgdb.JsonTypeSchema;
+import mjson.hgdb.PreparedJsonQuery;
+import mjson.hgdb.QueryResultCache;
+import mjson.hgdb.querying.SearchResultPublisher;
 
 /**
  * <p>
@@ -147,6 +161,293 @@ public class JsonQueryTests extends HGTestBase
 		System.out.println(L);
 	}
 	
+	@Test
+	public void testProjection()
+	{
+		Json L = node.getAll(object("entity", "person", "firstName", "Joe"), "lastName", "nickName");
+		Assert.assertEquals(1, L.asJsonList().size());
+		Assert.assertEquals(object("lastName", "Bonny", 
+								   "hghandle", "640ce985-25fd-454b-a882-bbb3ce59ab47"), L.at(0));
+		L = node.getAll(object("username", "morbo"), "stats.shows.watched");
+		Assert.assertTrue(L.at(0).at("stats").at("shows").is("watched", 93));
+		Assert.assertFalse(L.at(0).at("stats").has("friends"));
+	}
+	
+	@Test
+	public void testStreaming()
+	{
+		Json pattern = object("entity", "person");
+		Stream<HGHandle> handles = node.findStream(pattern);
+		try
+		{
+			Assert.assertEquals(node.findAll(pattern).size(), handles.count());
+		}
+		finally
+		{
+			handles.close();
+		}
+		final List<Json> received = new ArrayList<Json>();
+		final boolean [] completed = new boolean[1];
+		node.publish(pattern).subscribe(new SearchResultPublisher.Subscriber<Json>() {
+			SearchResultPublisher.Subscription subscription;
+			public void onSubscribe(SearchResultPublisher.Subscription subscription)
+			{
+				this.subscription = subscription;
+				subscription.request(1);
+			}
+			public void onNext(Json item)
+			{
+				received.add(item);
+				subscription.request(1);
+			}
+			public void onError(Throwable t) { throw new RuntimeException(t); }
+			public void onComplete() { completed[0] = true; }
+		});
+		Assert.assertTrue(completed[0]);
+		Assert.assertEquals(node.getAll(pattern).asJsonList(), received);
+	}
+	
+	@Test
+	public void testPropertyIndex()
+	{
+		Json pattern = object("entity", "person", "lastName", "Bonny");
+		Set<HGHandle> expected = new HashSet<HGHandle>(node.findAll(pattern));
+		Assert.assertFalse(expected.isEmpty());
+		HGIndex<Object, HGPersistentHandle> index = node.createIndex("lastName", JsonTypeSchema.stringTypeHandle);
+		try
+		{
+			Assert.assertTrue(index.count("Bonny") >= expected.size());
+			Assert.assertEquals(expected, new HashSet<HGHandle>(node.findAll(pattern)));
+		}
+		finally
+		{
+			Assert.assertTrue(node.dropIndex("lastName"));
+		}
+		Assert.assertNull(node.getIndex("lastName"));
+	}
+	
+	@Test
+	public void testRangeOperators()
+	{
+		Json window = object("entity", "person", "age>", 23, "age<=", 29);
+		Assert.assertEquals(3, node.findAll(window).size());
+		Assert.assertEquals(4, node.findAll(object("entity", "person", "age between", array(20, 24))).size());
+		Assert.assertEquals(2, node.findAll(object("entity", "person", "registered>=", "2016")).size());
+		Assert.assertEquals(0, node.findAll(object("entity", "person", "age<", 20)).size());
+		node.createIndex("age", JsonTypeSchema.numberTypeHandle);
+		try
+		{
+			Assert.assertEquals(3, node.findAll(window).size());
+		}
+		finally
+		{
+			node.dropIndex("age");
+		}
+	}
+	
+	@Test
+	public void testPreciseNumbers()
+	{
+		long big = 9007199254740993L; // 2^53 + 1, not a double
+		HGHandle a = node.add(object("entity", "account", "gid", big, "balance", new BigDecimal("1234567890.123456789012")));
+		HGHandle b = node.add(object("entity", "account", "gid", big + 1, "balance", new BigDecimal("1234567890.123456789013")));
+		HGHandle c = node.add(object("entity", "account", "gid", big + 2, "balance", 2.5));
+		HGHandle d = node.add(object("entity", "account", "gid", big - 1)); // the double of big
+		HGHandle e = node.add(object("entity", "account", "gid", new BigDecimal("9007199254740993.5")));
+		Json between = object("entity", "account", "gid between", array(big, big + 1));
+		Set<HGHandle> inBetween = new HashSet<HGHandle>(Arrays.asList(a, b, e));
+		Assert.assertNotEquals(node.exactly(make(big)), node.exactly(make(big + 1)));
+		Assert.assertEquals(node.add(make(42)), node.add(make(42.0)));
+		Assert.assertEquals(big, node.<Json>get(a).at("gid").asLong());
+		Assert.assertEquals(0, new BigDecimal("1234567890.123456789012").compareTo(
+				(BigDecimal)node.<Json>get(a).at("balance").getValue()));
+		
+		Assert.assertEquals(Arrays.asList(b), node.findAll(object("entity", "account", "gid", big + 1)));
+		Assert.assertEquals(Arrays.asList(a), node.findAll(object("entity", "account", "balance", new BigDecimal("1234567890.123456789012"))));
+		Json window = object("entity", "account", "gid>=", big + 1);
+		Assert.assertEquals(new HashSet<HGHandle>(Arrays.asList(b, c)), new HashSet<HGHandle>(node.findAll(window)));
+		Json amounts = object("entity", "account", "balance>", new BigDecimal("1234567890.123456789012"));
+		Assert.assertEquals(Arrays.asList(b), node.findAll(amounts));
+		Assert.assertEquals(inBetween, new HashSet<HGHandle>(node.findAll(between)));
+		// a double index must neither confuse nor lose the numbers it can't hold exactly
+		node.createIndex("gid", JsonTypeSchema.numberTypeHandle);
+		try
+		{
+			Assert.assertEquals(Arrays.asList(a), node.findAll(object("entity", "account", "gid", big)));
+			Assert.assertEquals(Arrays.asList(d), node.findAll(object("entity", "account", "gid", big - 1)));
+			Assert.assertEquals(new HashSet<HGHandle>(Arrays.asList(b, c)), new HashSet<HGHandle>(node.findAll(window)));
+			Assert.assertEquals(inBetween, new HashSet<HGHandle>(node.findAll(between)));
+		}
+		finally
+		{
+			node.dropIndex("gid");
+		}
+		node.createIndex("gid", JsonTypeSchema.longTypeHandle);
+		node.createIndex("balance", JsonTypeSchema.decimalTypeHandle);
+		try
+		{
+			Assert.assertEquals(Arrays.asList(b), node.findAll(object("entity", "account", "gid", big + 1)));
+			Assert.assertEquals(new HashSet<HGHandle>(Arrays.asList(b, c)), new HashSet<HGHandle>(node.findAll(window)));
+			Assert.assertEquals(Arrays.asList(c), node.findAll(object("entity", "account", "gid>", new BigDecimal("9007199254740994.5"))));
+			// the decimal is not in the long index but is still found
+			Assert.assertEquals(inBetween, new HashSet<HGHandle>(node.findAll(between)));
+			Assert.assertEquals(Arrays.asList(b), node.findAll(amounts));
+		}
+		finally
+		{
+			node.dropIndex("gid");
+			node.dropIndex("balance");
+		}
+	}
+	
+	@Test
+	public void testPathIndex()
+	{
+		Json nested = object("username", "morbo", "stats", object("shows", object("watched", 93)));
+		Set<HGHandle> expected = new HashSet<HGHandle>(node.findAll(nested));
+		Assert.assertEquals(1, expected.size());
+		node.add(object("entity", "scored", "scores", array(5, 50)));
+		HGHandle inRange = node.add(object("entity", "scored", "scores", array(5, 15)));
+		node.createIndex("stats.shows.watched", JsonTypeSchema.numberTypeHandle);
+		node.createIndex("tags[*]", JsonTypeSchema.stringTypeHandle);
+		node.createIndex("scores[*]", JsonTypeSchema.numberTypeHandle);
+		try
+		{
+			Assert.assertEquals(expected, new HashSet<HGHandle>(node.findAll(nested)));
+			Assert.assertEquals(4, node.findAll(object("entity", "person", "tags[*]", "eu")).size());
+			Assert.assertEquals(2, node.findAll(object("entity", "person", "tags[*]", "officia")).size());
+			// an element must be within both bounds, not one element above the lower and another below the upper
+			Assert.assertEquals(Arrays.asList(inRange), node.findAll(object("entity", "scored", "scores[*] between", array(10, 20))));
+			Assert.assertEquals(2, node.findAll(object("entity", "scored", "scores[*]>=", 5)).size());
+		}
+		finally
+		{
+			node.dropIndex("stats.shows.watched");
+			node.dropIndex("tags[*]");
+			node.dropIndex("scores[*]");
+		}
+	}
+	
+	@Test
+	public void testExplainAndProfile()
+	{
+		Json pattern = object("entity", "person", "eyeColor", "brown", "name~=", "S.*");
+		Json plan = node.explain(pattern, false);
+		Assert.assertEquals("incidence-join", plan.at("strategy").asString());
+		Assert.assertEquals(2, plan.at("joinOrder").asJsonList().size());
+		Assert.assertFalse(plan.has("results"));
+		Json profile = node.profile(pattern, false);
+		Assert.assertEquals(node.findAll(pattern).size(), profile.at("results").asInteger());
+		Assert.assertEquals(profile.at("filterChecks").asLong(), 
+							profile.at("results").asLong() + profile.at("filterRejections").asLong());
+		Assert.assertTrue(node.explain(object("entity", "nosuchthing"), false).is("empty", true));
+	}
+
+	static void readRounds(final List<Json> patterns, final List<Integer> expected, int threads, final int rounds) throws Exception
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int t = 0; t < threads; t++)
+				futures.add(executor.submit(new Callable<Object>() {
+					public Object call()
+					{
+						for (int r = 0; r < rounds; r++)
+							for (int i = 0; i < patterns.size(); i++)
+								Assert.assertEquals(patterns.get(i).toString(), 
+													expected.get(i).intValue(), 
+													node.findAll(patterns.get(i)).size());
+						return null;
+					}
+				}));
+			for (Future<Object> f : futures)
+				f.get();
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+	
+	@Test
+	public void testConcurrentReads() throws Exception
+	{
+		List<Json> patterns = new ArrayList<Json>();
+		patterns.add(Json.make("brown"));
+		patterns.add(Json.make(25));
+		patterns.add(Json.make(true));
+		patterns.add(object("entity", "person", "eyeColor", "brown"));
+		patterns.add(object("entity", "person", "eyeColor", "blue", "name~=", "S.*"));
+		patterns.add(object("entity", "person", "age between", array(22, 29)));
+		patterns.add(object("username", "morbo"));
+		List<Integer> expected = new ArrayList<Integer>();
+		for (Json p : patterns)
+			expected.add(node.findAll(p).size());
+		int rounds = 50, threads = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+		readRounds(patterns, expected, threads, rounds);
+	}
+	
+	@Test
+	public void testPreparedQuery()
+	{
+		PreparedJsonQuery byColor = node.prepare(object("entity", "person", "eyeColor", "$color", "name~=", "S.*"));
+		Assert.assertEquals(1, byColor.variables().size());
+		for (String color : new String[] { "brown", "blue", "green" })
+			Assert.assertEquals(
+				node.findAll(object("entity", "person", "eyeColor", color, "name~=", "S.*")).size(),
+				byColor.findAll(object("color", color)).size());
+		PreparedJsonQuery byAge = node.prepare(object("entity", "person", "age between", array("$min", "$max")));
+		Assert.assertEquals(3, byAge.findAll(object("min", 22, "max", 24)).size());
+		Assert.assertEquals(2, byAge.findAll(object("min", 29, "max", 40)).size());
+		try
+		{
+			byAge.find(object("min", 22));
+			Assert.fail("Expected an unbound variable error.");
+		}
+		catch (IllegalArgumentException ex) { }
+	}
+	
+	@Test
+	public void testResultCache()
+	{
+		QueryResultCache cache = new QueryResultCache(2, 1000);
+		node.setResultCache(cache);
+		try
+		{
+			Json pattern = object("entity", "person", "eyeColor", "brown");
+			int count = node.findAll(pattern).size();
+			Assert.assertEquals(count, node.findAll(object("eyeColor", "brown", "entity", "person")).size());
+			Assert.assertEquals(1, cache.hits());
+			Assert.assertEquals(1, cache.misses());
+			// Unrelated writes leave the entry alone.
+			HGHandle other = node.add(object("cacheTestColor", "brown"));
+			node.findAll(pattern);
+			Assert.assertEquals(2, cache.hits());
+			HGHandle person = node.add(object("entity", "person", "eyeColor", "brown", "name", "Cache Test"));
+			Assert.assertEquals(count + 1, node.findAll(pattern).size());
+			Assert.assertEquals(1, cache.invalidations());
+			node.remove(person);
+			node.remove(other);
+			Assert.assertEquals(count, node.findAll(pattern).size());
+			node.findAll(object("entity", "person", "eyeColor", "blue"));
+			node.findAll(object("entity", "person", "eyeColor", "green"));
+			Assert.assertEquals(2, cache.size());
+			Assert.assertEquals(1, cache.evictions());
+			Assert.assertTrue(cache.stats().at("hitRatio").asDouble() > 0);
+			// A dotted name that is not an index path is a literal property name.
+			Json dotted = object("cache.dotted", "rc-dotted");
+			Assert.assertEquals(0, node.findAll(dotted).size());
+			HGHandle literal = node.add(object("cache.dotted", "rc-dotted"));
+			Assert.assertEquals(1, node.findAll(dotted).size());
+			node.remove(literal);
+		}
+		finally
+		{
+			node.setResultCache(null);
+		}
+	}
+	
 	@Test
 	public void testMatchArray()
 	{
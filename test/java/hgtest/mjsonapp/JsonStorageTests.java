@@ -1,7 +1,11 @@
 package hgtest.mjsonapp;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import org.hypergraphdb.HGConfiguration;
 import org.hypergraphdb.HGEnvironment;
@@ -17,9 +21,16 @@ import org.junit.Test;
 import hgtest.HGTestBase;
 import hgtest.T;
 import mjson.Json;
+import mjson.hgdb.DocumentCache;
 import mjson.hgdb.EntityInterfaceImpl;
+import mjson.hgdb.EntityResolver;
+import mjson.hgdb.FrozenJson;
 import mjson.hgdb.HyperNodeJson;
+import mjson.hgdb.JsonBulkLoader;
+import mjson.hgdb.JsonMetrics;
+import mjson.hgdb.JsonMetricsRegistry;
 import mjson.hgdb.JsonTypeSchema;
+import mjson.hgdb.ValueCollector;
 import static mjson.hgdb.Helpers.*;
 
 public class JsonStorageTests extends HGTestBase
@@ -268,6 +279,424 @@ public class JsonStorageTests extends HGTestBase
     	Assert.assertEquals(Json.object("type", "foo", "nested", Json.object()), node.get(h));
     }
     
+    @Test
+    public void testBulkLoad()
+    {
+    	List<Json> docs = new java.util.ArrayList<Json>();
+    	for (int i = 0; i < 25; i++)
+    		docs.add(Json.object("entity", "bulkitem", 
+    							 "seq", i, 
+    							 "color", i % 2 == 0 ? "red" : "blue",
+    							 "dimensions", Json.object("width", 10, "height", 20)));
+    	Json stats = new JsonBulkLoader(node).chunkSize(10).load(docs);
+    	Assert.assertEquals(25, stats.at("documents").asInteger());
+    	Assert.assertEquals(3, stats.at("chunks").asInteger());
+    	for (Json doc : docs)
+    		Assert.assertTrue(doc.has("hghandle"));
+    	// the nested value is asserted only once, across chunks
+    	Assert.assertEquals(1, node.findAll(Json.object("width", 10, "height", 20)).size());
+    	reopen();
+    	Assert.assertEquals(13, node.findAll(Json.object("entity", "bulkitem", "color", "red")).size());
+    	Assert.assertTrue(node.retrieve(Json.object("entity", "bulkitem", "seq", 7)).is("color", "blue"));
+    }
+    
+    @Test
+    public void testInternCache()
+    {
+    	long nameHits = node.getNameCache().hits();
+    	long propertyHits = node.getPropertyCache().hits();
+    	node.add(Json.object("entity", "cached", "label", "one"));
+    	node.add(Json.object("entity", "cached", "label", "one"));
+    	Assert.assertTrue(node.getNameCache().hits() > nameHits);
+    	Assert.assertTrue(node.getPropertyCache().hits() > propertyHits);
+    	Assert.assertEquals(2, node.findAll(Json.object("entity", "cached", "label", "one")).size());
+    }
+    
+    @Test
+    public void testMetrics()
+    {
+    	JsonMetricsRegistry metrics = new JsonMetricsRegistry();
+    	node.setMetrics(metrics);
+    	try
+    	{
+	    	Json o = Json.object("entity", "measured", "color", "red", "size", 42);
+	    	HGHandle h = node.add(o);
+	    	node.add(Json.object("entity", "measured", "color", "red", "size", 43));
+	    	node.get(h);
+	    	node.findAll(Json.object("color", "red"));
+	    	Assert.assertEquals(2, metrics.count(JsonMetrics.Operation.ADD));
+	    	Assert.assertEquals(1, metrics.count(JsonMetrics.Operation.GET));
+	    	Assert.assertEquals(1, metrics.count(JsonMetrics.Operation.FIND));
+	    	Assert.assertTrue(metrics.deduplicated() > 0); // "measured" and "red" the second time
+	    	Assert.assertTrue(metrics.get(JsonMetrics.Counter.ATOMS_CREATED) > 0);
+	    	Assert.assertEquals(2, metrics.stats().at("operations").at("add").at("count").asInteger());
+    	}
+    	finally
+    	{
+    		node.setMetrics(null);
+    	}
+    }
+    
+    @Test
+    public void testLazyGet()
+    {
+    	Json o = Json.object("entity", "lazything", 
+    						 "name", "Lazy", 
+    						 "address", Json.object("street", "1 Main", 
+    								 				"city", Json.object("name", "Sofia")),
+    						 "tags", Json.array("a", "b"));
+    	HGHandle h = node.add(o).getPersistent();
+    	reopen();
+    	Json lazy = node.getLazy(h);
+    	Assert.assertEquals("Lazy", lazy.at("name").asString());
+    	Assert.assertEquals("Sofia", lazy.at("address").at("city").at("name").asString());
+    	Assert.assertEquals("b", lazy.at("tags").at(1).asString());
+    	Assert.assertEquals(o.dup(), lazy.dup());
+    	
+    	reopen();
+    	node.setLazyMaterialization(true);
+    	try
+    	{
+    		Json loaded = node.get(h);
+    		Assert.assertTrue(loaded.has("tags"));
+    		Assert.assertFalse(loaded.has("missing"));
+    		Assert.assertEquals("1 Main", loaded.at("address").at("street").asString());
+    		Assert.assertEquals("a", loaded.at("tags").at(0).asString());
+    		Assert.assertEquals(o.dup(), loaded.dup());
+    	}
+    	finally
+    	{
+    		node.setLazyMaterialization(false);
+    	}
+    }
+
+    @Test
+    public void testFrozenGet()
+    {
+    	Json address = Json.object("street", "2 Frozen Lane", "city", "Oslo");
+    	HGHandle h1 = node.add(Json.object("entity", "frozenthing", "name", "First", "address", address));
+    	HGHandle h2 = node.add(Json.object("entity", "frozenthing", "name", "Second", "address", address.dup()));
+    	h1 = h1.getPersistent();
+    	h2 = h2.getPersistent();
+    	reopen();
+    	FrozenJson f1 = node.getFrozen(h1), f2 = node.getFrozen(h2);
+    	Assert.assertEquals("First", f1.at("name").asString());
+    	Assert.assertEquals(h1.getPersistent().toString(), f1.at("hghandle").asString());
+    	// The address is stored once, so its frozen form is shared.
+    	Assert.assertSame(f1.at("address"), f2.at("address"));
+    	try
+    	{
+    		f1.set("name", "Changed");
+    		Assert.fail("A frozen document must not be modifiable.");
+    	}
+    	catch (UnsupportedOperationException ex) { }
+    	Json copy = f1.dup().set("name", "Changed");
+    	Assert.assertEquals("First", f1.at("name").asString());
+    	node.add(copy);
+    	Assert.assertEquals("Changed", node.getFrozen(h1).at("name").asString());
+    	Assert.assertEquals(FrozenJson.freeze(address), address.dup());
+    	
+    	// An array element edited in place and written back is frozen again.
+    	HGHandle h3 = node.add(Json.object("entity", "frozenthing", "name", "Listed", 
+    									   "items", Json.array(Json.object("label", "frozen-old"))));
+    	Assert.assertEquals("frozen-old", node.getFrozen(h3).at("items").at(0).at("label").asString());
+    	Json listed = node.get(h3);
+    	listed.at("items").at(0).set("label", "frozen-new");
+    	node.replace(h3, listed, node.getType(h3));
+    	Assert.assertEquals("frozen-new", node.getFrozen(h3).at("items").at(0).at("label").asString());
+    }
+
+    @Test
+    public void testDocumentCache()
+    {
+    	DocumentCache docs = new DocumentCache(100, 1000000).quota("cachedsmall", 2);
+    	node.setDocumentCache(docs);
+    	try
+    	{
+    		HGHandle h = node.add(Json.object("entity", "cachedbig", "name", "Big", "size", 1));
+    		Json j = node.get(h);
+    		Assert.assertSame(j, node.get(h));
+    		Assert.assertEquals(1, docs.hits());
+    		node.replace(h, Json.object("entity", "cachedbig", "name", "Big", "size", 2), JsonTypeSchema.objectTypeHandle);
+    		Assert.assertEquals(2, node.get(h).at("size").asInteger());
+    		for (int i = 0; i < 3; i++)
+    			node.get(node.add(Json.object("entity", "cachedsmall", "index", i)));
+    		Assert.assertEquals(2, docs.stats().at("types").at("cachedsmall").at("size").asInteger());
+    		Assert.assertEquals(1, docs.evictions());
+    		node.remove(h);
+    		Assert.assertNull(node.get(h));
+    	}
+    	finally
+    	{
+    		node.setDocumentCache(null);
+    	}
+    }
+
+    @Test
+    public void testGetMany()
+    {
+    	List<HGHandle> handles = new ArrayList<HGHandle>();
+    	for (int i = 0; i < 20; i++)
+    		handles.add(node.add(Json.object("entity", "many", "index", i, "shared", Json.object("x", 1))));
+    	handles.add(handles.get(3));
+    	handles.add(node.graph().getHandleFactory().makeHandle());
+    	for (int parallelism : new int[] { 1, 4 })
+    	{
+    		List<Json> L = node.getMany(handles, parallelism);
+    		Assert.assertEquals(handles.size(), L.size());
+    		for (int i = 0; i < 20; i++)
+    			Assert.assertEquals(i, L.get(i).at("index").asInteger());
+    		Assert.assertEquals(3, L.get(20).at("index").asInteger());
+    		Assert.assertNull(L.get(21));
+    	}
+    }
+
+    @Test
+    public void testEntityResolver()
+    {
+    	HGHandle company = node.add(Json.object("entity", "company", "name", "Acme",
+    											"address", Json.object("city", "Sofia", "street", "Vitosha")));
+    	HGHandle boss = node.add(Json.object("entity", "employee", "name", "Ann",
+    										 "employer", node.getEntityInterface().createEntityReference(node, company)));
+    	HGHandle worker = node.add(Json.object("entity", "employee", "name", "Bob",
+    										   "employer", node.getEntityInterface().createEntityReference(node, company),
+    										   "manager", node.getEntityInterface().createEntityReference(node, boss)));
+    	Json bossRef = node.getEntityInterface().createEntityReference(node, boss);
+    	node.replace(company, node.get(company).dup().set("staff", Json.array(bossRef,
+    			node.getEntityInterface().createEntityReference(node, worker))), node.getType(company));
+    	Json team = Json.object("team", Json.array(bossRef, node.getEntityInterface().createEntityReference(node, worker)));
+
+    	Json resolved = new EntityResolver(node).parallelism(2).resolve(team);
+    	Assert.assertTrue(team.at("team").at(0).isString());
+    	Json bob = resolved.at("team").at(1);
+    	Assert.assertEquals("Bob", bob.at("name").asString());
+    	Assert.assertEquals("Ann", bob.at("manager").at("name").asString());
+    	Assert.assertEquals("Sofia", bob.at("manager").at("employer").at("address").at("city").asString());
+    	// Ann and Bob share one expansion of their employer, both are in its staff so these
+    	// references stay as is.
+    	Assert.assertSame(resolved.at("team").at(0).at("employer"), bob.at("employer"));
+    	Assert.assertTrue(bob.at("employer").at("staff").at(0).isString());
+    	Assert.assertTrue(bob.at("employer").at("staff").at(1).isString());
+
+    	resolved = new EntityResolver(node).maxDepth(1).resolve(team);
+    	Assert.assertTrue(resolved.at("team").at(1).at("manager").isString());
+
+    	resolved = new EntityResolver(node).select("company", "name", "address.city").resolve(team);
+    	Json employer = resolved.at("team").at(1).at("employer");
+    	Assert.assertEquals(Json.object("name", "Acme", "address", Json.object("city", "Sofia")), employer);
+
+    	Assert.assertEquals("Ann", new EntityResolver(node).resolve(bossRef).at("name").asString());
+    	resolveEntities(node, team);
+    	Assert.assertEquals("Acme", team.at("team").at(0).at("employer").at("name").asString());
+    }
+    
+    @Test
+    public void testValueCollector()
+    {
+    	ValueCollector collector = new ValueCollector(node);
+    	node.setValueCollector(collector);
+    	try
+    	{
+	    	HGHandle doc = node.add(Json.object("entity", "gcdoc", "gcOnly", "gc-unique-1",
+	    										"gcNested", Json.object("gcInner", "gc-unique-2"),
+	    										"gcShared", "gc-shared",
+	    										"gcRooted", Json.object("gcInner", "gc-root")));
+	    	// values added by themselves are kept
+	    	HGHandle root = node.add(Json.object("gcInner", "gc-root"));
+	    	HGHandle other = node.add(Json.object("entity", "gcdoc", "gcShared", "gc-shared"));
+	    	Assert.assertNotNull(node.exactly(Json.make("gc-unique-1")));
+	    	HGHandle nested = node.exactly(Json.object("gcInner", "gc-unique-2"));
+	    	Assert.assertNotNull(nested);
+	    	
+	    	node.replace(doc, Json.object("entity", "gcdoc", "gcShared", "gc-shared", "gcNew", "gc-unique-3"), 
+	    				 node.getType(doc));
+	    	Assert.assertTrue(collector.collect() > 0);
+	    	Assert.assertNull(node.exactly(Json.make("gc-unique-1")));
+	    	Assert.assertNull(node.exactly(Json.make("gc-unique-2")));
+	    	Assert.assertNull(node.get(nested));
+	    	Assert.assertTrue(node.findPropertyValues("gcInner").isEmpty());
+	    	Assert.assertNotNull(node.exactly(Json.make("gc-shared")));
+	    	Assert.assertEquals("gc-unique-3", node.get(doc).at("gcNew").asString());
+	    	Assert.assertEquals(root, node.exactly(Json.object("gcInner", "gc-root")));
+	    	Assert.assertEquals(Json.object("gcInner", "gc-root"), node.get(root));
+	    	
+	    	node.remove(doc);
+	    	collector.collect();
+	    	Assert.assertNull(node.exactly(Json.make("gc-unique-3")));
+	    	Assert.assertEquals("gc-shared", node.get(other).at("gcShared").asString());
+	    	// The names are gone, adding them again must not reuse the cached handles.
+	    	HGHandle again = node.add(Json.object("entity", "gcdoc", "gcOnly", "gc-unique-1", "gcNew", 1));
+	    	reopen();
+	    	// root marking is a property of the database, it survives the collector
+	    	Assert.assertTrue(node.isRootMarking());
+	    	Assert.assertEquals("gc-unique-1", node.get(again).at("gcOnly").asString());
+	    	Assert.assertEquals(0, collector.pending());
+	    	Assert.assertTrue(collector.stats().at("properties").asLong() >= 4);
+	    	Assert.assertEquals(0, collector.stats().at("failures").asLong());
+    	}
+    	finally
+    	{
+    		node.setValueCollector(null);
+    	}
+    }
+    
+    @Test
+    public void testCompactValues()
+    {
+    	node.setCompactValues(256, 3).atomizeProperty("cvQueried");
+    	try
+    	{
+	    	Json address = Json.object("cvStreet", "1 Compact Way", "zip", 12345, 
+	    							   "geo", Json.array(42.6977, 23.3219), "big", new java.math.BigDecimal("1.00000000000000000001"));
+	    	HGHandle doc = node.add(Json.object("entity", "cvdoc", "cvAddress", address, 
+	    										"cvQueried", Json.object("cvInner", "cv-atomized"),
+	    										"cvLarge", Json.object("cvText", new String(new char[300]).replace('\0', 'x'))));
+	    	HGHandle compact = node.exactly(address);
+	    	Assert.assertNotNull(compact);
+	    	Assert.assertEquals(JsonTypeSchema.blobTypeHandle, node.getType(compact));
+	    	Assert.assertTrue(node.findPropertyValues("cvStreet").isEmpty());
+	    	Assert.assertFalse(node.findPropertyValues("cvInner").isEmpty());
+	    	Assert.assertFalse(node.findPropertyValues("cvText").isEmpty());
+	    	
+	    	HGHandle other = node.add(Json.object("entity", "cvdoc", "cvAddress", address.dup()));
+	    	Assert.assertEquals(compact, node.findProperty("cvAddress", address));
+	    	Assert.assertEquals(2, node.findAll(Json.object("entity", "cvdoc", "cvAddress", address)).size());
+	    	
+	    	reopen();
+	    	node.setCompactValues(256, 3).atomizeProperty("cvQueried");
+	    	Json stored = node.get(doc);
+	    	Assert.assertEquals(address, stored.at("cvAddress"));
+	    	Assert.assertEquals("cv-atomized", stored.at("cvQueried").at("cvInner").asString());
+	    	Assert.assertEquals(address, node.getLazy(other).at("cvAddress"));
+	    	
+	    	Json moved = stored.dup().set("cvAddress", address.dup().set("zip", 54321));
+	    	moved.delAt("hghandle");
+	    	node.replace(doc, moved, node.getType(doc));
+	    	Assert.assertEquals(54321, node.get(doc).at("cvAddress").at("zip").asInteger());
+	    	Assert.assertEquals(JsonTypeSchema.blobTypeHandle, node.getType(node.exactly(moved.at("cvAddress"))));
+	    	Assert.assertEquals(12345, node.get(other).at("cvAddress").at("zip").asInteger());
+    	}
+    	finally
+    	{
+    		node.setCompactValues(0, 0);
+    	}
+    }
+    
+    @Test
+    public void testContentAddressing()
+    {
+    	node.setContentAddressing(true);
+    	try
+    	{
+	    	Json tags = Json.array("ca-tag", 7, 7.5, Json.object("caKey", true));
+	    	HGHandle first = node.add(Json.object("entity", "cadoc", "caTags", tags));
+	    	HGHandle second = node.add(Json.object("entity", "cadoc", "caTags", tags.dup()));
+	    	Assert.assertNotEquals(first, second);
+	    	HGHandle value = node.exactly(tags);
+	    	Assert.assertNotNull(value);
+	    	Assert.assertEquals(value, node.findPropertyValues("caTags").get(0));
+	    	Assert.assertEquals(1, node.findPropertyValues("caTags").size());
+	    	Assert.assertEquals(node.exactly(Json.make("ca-tag")), node.add(Json.make("ca-tag")));
+	    	
+	    	reopen();
+	    	node.setContentAddressing(true);
+	    	// The handles only depend on the values.
+	    	Assert.assertEquals(value, node.add(Json.array("ca-tag", 7, 7.5, Json.object("caKey", true))));
+	    	Assert.assertEquals(tags, node.get(second).at("caTags"));
+	    	node.replace(second, Json.object("entity", "cadoc", "caTags", Json.array("ca-tag")), node.getType(second));
+	    	Assert.assertEquals(tags, node.get(first).at("caTags"));
+	    	Assert.assertEquals(Json.array("ca-tag"), node.get(second).at("caTags"));
+	    	// A value's handle is bound to its content, so the value can't be replaced.
+	    	HGHandle standalone = node.add(Json.object("caStandalone", 1));
+	    	try
+	    	{
+	    		node.replace(standalone, Json.object("caStandalone", 2), JsonTypeSchema.objectTypeHandle);
+	    		Assert.fail("Replaced a content addressed value");
+	    	}
+	    	catch (IllegalArgumentException ex) { }
+	    	Assert.assertEquals(standalone, node.exactly(Json.object("caStandalone", 1)));
+	    	Assert.assertEquals(Json.object("caStandalone", 1), node.get(standalone));
+    	}
+    	finally
+    	{
+    		node.setContentAddressing(false);
+    	}
+    }
+    
+    @Test
+    public void testStructureIndex()
+    {
+    	Json before = Json.object("siName", "before", "siTags", Json.array("si-a", "si-b"));
+    	HGHandle existing = node.add(Json.object("entity", "sidoc", "siValue", before));
+    	node.createStructureIndex();
+    	try
+    	{
+	    	HGHandle nested = node.exactly(before);
+	    	Assert.assertNotNull(nested);
+	    	Assert.assertEquals(node.exactly(Json.array("si-a", "si-b")), node.add(Json.array("si-a", "si-b")));
+	    	Assert.assertNull(node.exactly(Json.array("si-b", "si-a")));
+	    	Assert.assertNull(node.exactly(Json.object("siName", "before")));
+	    	
+	    	Json after = Json.object("siTags", Json.array("si-b", "si-a"), "siName", "after");
+	    	HGHandle doc = node.add(Json.object("entity", "sidoc", "siValue", after));
+	    	Assert.assertEquals(node.get(doc).at("siValue"), after);
+	    	reopen();
+	    	// the index is found again and maintained on replace
+	    	Assert.assertEquals(nested, node.exactly(Json.object("siTags", Json.array("si-a", "si-b"), "siName", "before")));
+	    	HGHandle value = node.exactly(after);
+	    	Assert.assertNotNull(value);
+	    	node.replace(value, Json.object("siName", "replaced"), JsonTypeSchema.objectTypeHandle);
+	    	Assert.assertNull(node.exactly(after));
+	    	Assert.assertEquals(value, node.exactly(Json.object("siName", "replaced")));
+	    	Assert.assertEquals("before", node.get(existing).at("siValue").at("siName").asString());
+    	}
+    	finally
+    	{
+    		Assert.assertTrue(node.dropStructureIndex());
+    	}
+    }
+
+    @Test
+    public void testTextIndex()
+    {
+    	HGHandle once = node.add(Json.object("entity", "tidoc", "tiText", "A graph database stores a graph."));
+    	node.createTextIndex("tiText");
+    	try
+    	{
+	    	HGHandle twice = node.add(Json.object("entity", "tidoc", "tiText", "Graph, graph: HyperGraph stores graph atoms"));
+	    	HGHandle none = node.add(Json.object("entity", "tidoc", "tiText", "Nothing relevant here"));
+	    	Assert.assertEquals(new HashSet<HGHandle>(Arrays.asList(once, twice)),
+	    						new HashSet<HGHandle>(node.findAll(Json.object("entity", "tidoc", "tiText@=", "GRAPH"))));
+	    	Assert.assertEquals(Arrays.asList(none), node.findAll(Json.object("tiText@=", "relevant, missing")));
+	    	Assert.assertTrue(node.findAll(Json.object("tiText@=", "full-text")).isEmpty());
+
+	    	Map<HGHandle, Double> ranked = node.search("tiText", "graph atoms", 10);
+	    	Assert.assertEquals(Arrays.asList(twice, once), new ArrayList<HGHandle>(ranked.keySet()));
+	    	Assert.assertEquals(Arrays.asList(twice), new ArrayList<HGHandle>(node.search("tiText", "graph", 1).keySet()));
+
+	    	reopen();
+	    	node.replace(twice, Json.object("entity", "tidoc", "tiText", "Now it is relevant"), JsonTypeSchema.objectTypeHandle);
+	    	node.remove(once);
+	    	Assert.assertTrue(node.findAll(Json.object("tiText@=", "graph")).isEmpty());
+	    	Assert.assertEquals(2, node.findAll(Json.object("entity", "tidoc", "tiText@=", "relevant")).size());
+	    	Assert.assertEquals(2, node.getTextIndexer("tiText").indexStats(node.graph()).at("documents").asLong());
+    	}
+    	finally
+    	{
+    		Assert.assertTrue(node.dropTextIndex("tiText"));
+    	}
+    	// the statistics went with the index, a new one only counts the remaining documents
+    	node.createTextIndex("tiText");
+    	try
+    	{
+    		Assert.assertEquals(2, node.getTextIndexer("tiText").indexStats(node.graph()).at("documents").asLong());
+    	}
+    	finally
+    	{
+    		Assert.assertTrue(node.dropTextIndex("tiText"));
+    	}
+    }
+    
     public static void main(String[] argv)
     {
         JsonStorageTests test = new JsonStorageTests();